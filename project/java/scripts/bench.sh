@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+# benchmark the data-access layer
+# Usage: bench.sh [-wi N] [-i N] [-r S] [-t N,...] [-p orders=N,...] [regex]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CafeBench $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+# load the data files (default: project/data) into the database
+# Usage: load_data.sh [data dir] [batch size]
+DATA=${1:-$DIR/../../data}
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CafeLoader $USER"_DB" $PGPORT $USER $DATA $2
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+# drive concurrent traffic against the database and report latencies
+# Usage: loadgen.sh [threads] [seconds] [browse-heavy|order-heavy|browse=N,order=N,update=N,manager=N]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CafeLoadGen $USER"_DB" $PGPORT $USER $DIR/../../data ${1:-16} ${2:-30} ${3:-browse-heavy}
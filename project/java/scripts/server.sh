@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -cp $DIR/../lib/pg73jdbc3.jar -d $DIR/../classes $DIR/../src/*.java
+
+# run the JSON/HTTP server (default port 8080)
+# Usage: server.sh [http port]
+# Size the connection pool for the expected number of concurrent clients.
+# Read replicas, if any, are listed as e.g. CAFE_REPLICAS=host1:5432,host2:5432
+java -Dcafe.pool.max=32 -Dcafe.replicas=$CAFE_REPLICAS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CafeServer $USER"_DB" $PGPORT $USER ${1:-8080}
@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over strings: a fixed-size bit set in which every added
+ * string sets a few hashed bits. mightContain() answers false only for
+ * strings that were never added; true means "possibly added", wrong at
+ * about the false positive rate the filter was sized for.
+ *
+ * The bit positions come from one 64-bit hash split in two halves and
+ * combined as h1 + i * h2 (Kirsch and Mitzenmacher), so a lookup hashes
+ * the string once. Bits are set atomically: adds and lookups may run on
+ * any threads without locking. Strings cannot be removed.
+ */
+public class BloomFilter {
+
+   private final AtomicLongArray _bits;
+   private final long _size;
+   private final int _hashes;
+
+   /**
+    * Creates an empty filter sized for the given number of strings.
+    *
+    * @param expected the number of strings expected to be added
+    * @param falsePositiveRate the wanted chance that mightContain() is
+    *        wrongly true once that many strings were added, e.g. 0.01
+    */
+   public BloomFilter(long expected, double falsePositiveRate) {
+      long n = Math.max(1, expected);
+      double p = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+      long bits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+      int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bits + 63) / 64));
+      this._bits = new AtomicLongArray(words);
+      this._size = 64L * words;
+      this._hashes = Math.max(1, (int) Math.round((double) this._size / n * Math.log(2)));
+   }// end BloomFilter
+
+   /**
+    * @param value the string added, ignored when null
+    */
+   public void add(String value) {
+      if (value == null) {
+         return;
+      }
+      long hash = hash(value);
+      long h1 = hash >>> 32;
+      long h2 = (hash & 0xffffffffL) | 1;
+      for (int i = 0; i < this._hashes; ++i) {
+         long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this._size;
+         int word = (int) (bit >>> 6);
+         long mask = 1L << bit;
+         long old = this._bits.get(word);
+         while ((old & mask) == 0 && !this._bits.compareAndSet(word, old, old | mask)) {
+            old = this._bits.get(word);
+         }
+      }
+   }// end add
+
+   /**
+    * @param value the string looked up
+    * @return false if the string was certainly never added, true if it may have been
+    */
+   public boolean mightContain(String value) {
+      if (value == null) {
+         return false;
+      }
+      long hash = hash(value);
+      long h1 = hash >>> 32;
+      long h2 = (hash & 0xffffffffL) | 1;
+      for (int i = 0; i < this._hashes; ++i) {
+         long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this._size;
+         if ((this._bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+            return false;
+         }
+      }
+      return true;
+   }// end mightContain
+
+   public long getSizeInBits() {
+      return this._size;
+   }
+
+   public int getHashCount() {
+      return this._hashes;
+   }
+
+   /*
+    * FNV-1a over the characters, finished with the MurmurHash3 mixer so
+    * both halves of the result are well distributed.
+    */
+   private static long hash(String value) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < value.length(); ++i) {
+         h ^= value.charAt(i);
+         h *= 0x100000001b3L;
+      }
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+}// end BloomFilter
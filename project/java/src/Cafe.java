@@ -9,16 +9,20 @@
  * Target DBMS: 'Postgres'
  */
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.BufferedReader;
+import java.math.BigDecimal;
 import java.io.InputStreamReader;
 import java.util.List;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -26,8 +30,93 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // Reference to physical database connection.
-   private Connection _connection = null;
+   // Number of prepared statements kept open on each connection.
+   private static final int STATEMENT_CACHE_SIZE = 64;
+
+   // Pool sizing, overridable with -Dcafe.pool.* system properties.
+   private static final int POOL_MIN_SIZE = Integer.getInteger("cafe.pool.min", 1);
+   private static final int POOL_MAX_SIZE = Integer.getInteger("cafe.pool.max", 8);
+   private static final long POOL_BORROW_TIMEOUT_MS = Long.getLong("cafe.pool.borrowTimeoutMs", 5000L);
+   private static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("cafe.pool.idleTimeoutMs", 300000L);
+   private static final long POOL_VALIDATION_INTERVAL_MS = Long.getLong("cafe.pool.validationIntervalMs", 1000L);
+
+   // Read replicas as a comma-separated list of JDBC URLs, host:port or
+   // ports on localhost; empty for none.
+   private static final String REPLICAS = System.getProperty("cafe.replicas", "");
+   private static final long REPLICA_CHECK_INTERVAL_MS = Long.getLong("cafe.replica.checkIntervalMs", 2000L);
+   private static final long REPLICA_MAX_LAG_MS = Long.getLong("cafe.replica.maxLagMs", 5000L);
+
+   // How long a user's reads stay on the primary after the user wrote.
+   private static final long READ_YOUR_WRITES_MS = Long.getLong("cafe.replica.readYourWritesMs", 5000L);
+
+   // Pools of physical database connections shared by the query helpers,
+   // routing writes to the primary and reads to the replicas.
+   private ReplicaRouter _router = null;
+
+   // The logged in user served by the current thread, for read-your-writes.
+   private final ThreadLocal<Session> _boundSession = new ThreadLocal<Session>();
+
+   // Until when the current thread reads from the primary, for threads
+   // with no user bound (e.g. a sign up followed by a log in).
+   private final ThreadLocal<Long> _threadPrimaryUntil = new ThreadLocal<Long>();
+
+   // Rows fetched per round trip when streaming through a cursor.
+   private static final int FETCH_SIZE = Integer.getInteger("cafe.fetchSize", 100);
+
+   // How often the cached menu checks the database for edits.
+   private static final long MENU_CHECK_INTERVAL_MS = Long.getLong("cafe.menu.checkIntervalMs", 5000L);
+
+   // Per-query latency, row and byte counts, -Dcafe.metrics=false to turn off.
+   private final QueryMetrics _metrics = new QueryMetrics(
+         Boolean.parseBoolean(System.getProperty("cafe.metrics", "true")));
+
+   // How often the query metrics are printed to stderr, 0 to never print them.
+   private static final long METRICS_DUMP_INTERVAL_MS = Long.getLong("cafe.metrics.dumpIntervalMs", 0L);
+
+   // Matches listed by the menu search screen and by "did you mean".
+   private static final int MENU_SEARCH_LIMIT = 10;
+   private static final int SUGGESTION_LIMIT = 3;
+
+   // Orders per page in the order history screens.
+   private static final int ORDER_PAGE_SIZE = 5;
+   private static final int MANAGER_PAGE_SIZE = 20;
+
+   // Periods shown on the managers' sales dashboard.
+   private static final int DASHBOARD_HOURS = 24;
+   private static final int DASHBOARD_DAYS = 14;
+   private static final int DASHBOARD_ITEM_DAYS = 7;
+   private static final int DASHBOARD_TOP_ITEMS = 10;
+
+   // Write-behind order intake, overridable with -Dcafe.intake.* system properties.
+   private static final int INTAKE_CAPACITY = Integer.getInteger("cafe.intake.capacity", 1000);
+   private static final int INTAKE_BATCH_SIZE = Integer.getInteger("cafe.intake.batchSize", 100);
+   private static final long INTAKE_OFFER_TIMEOUT_MS = Long.getLong("cafe.intake.offerTimeoutMs", 5000L);
+   private static final int INTAKE_ID_BLOCK_SIZE = Integer.getInteger("cafe.intake.idBlockSize", 50);
+   private static final long INTAKE_DRAIN_TIMEOUT_MS = Long.getLong("cafe.intake.drainTimeoutMs", 30000L);
+
+   // Orders placed from the order screen, written in batches in the background.
+   private final OrderIntakeQueue _intake = new OrderIntakeQueue(this, INTAKE_CAPACITY, INTAKE_BATCH_SIZE,
+         INTAKE_OFFER_TIMEOUT_MS, INTAKE_ID_BLOCK_SIZE);
+
+   // Archiving of old orders, overridable with -Dcafe.archive.* system
+   // properties; an interval of 0 turns it off.
+   private static final long ARCHIVE_INTERVAL_MS = Long.getLong("cafe.archive.intervalMs", 3600000L);
+   private static final int ARCHIVE_RETENTION_DAYS = Integer.getInteger("cafe.archive.retentionDays", 90);
+   private static final int ARCHIVE_BATCH_SIZE = Integer.getInteger("cafe.archive.batchSize", 500);
+   private static final int ARCHIVE_MONTHS_AHEAD = Integer.getInteger("cafe.archive.monthsAhead", 1);
+
+   // Moves closed orders out of the live partitions in the background.
+   private final OrderArchiver _archiver = new OrderArchiver(this, ARCHIVE_INTERVAL_MS, ARCHIVE_RETENTION_DAYS,
+         ARCHIVE_BATCH_SIZE, ARCHIVE_MONTHS_AHEAD);
+
+   // In-memory filters over the taken logins and phone numbers.
+   private static final long USER_FILTER_REBUILD_MS = Long.getLong("cafe.userFilter.rebuildIntervalMs", 600000L);
+   private static final double USER_FILTER_FALSE_POSITIVE_RATE =
+         Double.parseDouble(System.getProperty("cafe.userFilter.falsePositiveRate", "0.01"));
+   private final UserFilter _userFilter = new UserFilter(this, USER_FILTER_REBUILD_MS, USER_FILTER_FALSE_POSITIVE_RATE);
+
+   // In-memory copy of the Menu table.
+   private final MenuCache _menuCache = new MenuCache(this, MENU_CHECK_INTERVAL_MS);
 
    // Handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -35,7 +124,8 @@ public class Cafe {
          new InputStreamReader(System.in));
 
    /**
-    * Creates a new instance of Cafe
+    * Creates a new instance of Cafe on the local primary, with the read
+    * replicas listed in -Dcafe.replicas
     *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
@@ -44,15 +134,40 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this("jdbc:postgresql://localhost:" + dbport + "/" + dbname, replicaUrls(REPLICAS, dbname), user, passwd);
+   }// end Cafe
+
+   /**
+    * Creates a new instance of Cafe
+    *
+    * @param primaryUrl the JDBC URL of the primary, which takes every write
+    * @param replicaUrls the JDBC URLs of read replicas, may be empty
+    * @param user the user name used to login to the databases
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Cafe(String primaryUrl, List<String> replicaUrls, String user, String passwd) throws SQLException {
 
       System.out.print("Connecting to database...");
       try {
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         String url = primaryUrl;
          System.out.println("Connection URL: " + url + "\n");
+         for (String replicaUrl : replicaUrls) {
+            System.out.println("Replica URL: " + replicaUrl + "\n");
+         }
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pools
+         ConnectionPool primary = new ConnectionPool(url, user, passwd, POOL_MIN_SIZE, POOL_MAX_SIZE,
+               POOL_BORROW_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, POOL_VALIDATION_INTERVAL_MS, STATEMENT_CACHE_SIZE);
+         this._router = new ReplicaRouter(primary, replicaUrls, user, passwd, POOL_MAX_SIZE,
+               POOL_BORROW_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, POOL_VALIDATION_INTERVAL_MS, STATEMENT_CACHE_SIZE,
+               REPLICA_CHECK_INTERVAL_MS, REPLICA_MAX_LAG_MS);
+         if (this._metrics.isEnabled()) {
+            this._metrics.registerMBean();
+            this._metrics.startDump(System.err, METRICS_DUMP_INTERVAL_MS);
+         }
+         this._archiver.start();
+         this._userFilter.start();
          System.out.println("Done");
       } catch (Exception e) {
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -61,22 +176,165 @@ public class Cafe {
       } // end catch
    }// end Cafe
 
+   /*
+    * Turns the -Dcafe.replicas list into JDBC URLs: full URLs are kept,
+    * host:port and bare ports (on localhost) get the primary's database.
+    */
+   private static List<String> replicaUrls(String replicas, String dbname) {
+      List<String> urls = new ArrayList<String>();
+      for (String replica : replicas.split(",")) {
+         String entry = replica.trim();
+         if (entry.length() == 0) {
+            continue;
+         }
+         if (entry.startsWith("jdbc:")) {
+            urls.add(entry);
+         } else if (entry.indexOf(':') >= 0) {
+            urls.add("jdbc:postgresql://" + entry + "/" + dbname);
+         } else {
+            urls.add("jdbc:postgresql://localhost:" + entry + "/" + dbname);
+         }
+      }
+      return urls;
+   }// end replicaUrls
+
+   /*
+    * Borrows a connection for a statement: from the primary if the caller
+    * said the statement writes, the current user wrote recently or the
+    * thread is pinned to the primary, otherwise from a replica.
+    */
+   private PooledConnection borrow(boolean readOnly) throws SQLException {
+      if (!readOnly) {
+         noteWrite();
+         return this._router.borrowPrimary();
+      }
+      Session session = this._boundSession.get();
+      Long threadPrimaryUntil = this._threadPrimaryUntil.get();
+      if ((session != null && session.readsFromPrimary())
+            || (threadPrimaryUntil != null && System.currentTimeMillis() < threadPrimaryUntil)) {
+         return this._router.borrowPrimary();
+      }
+      return this._router.borrowRead();
+   }// end borrow
+
+   /**
+    * Binds the logged in user to the current thread, so the user's own
+    * writes are followed by reads from the primary.
+    *
+    * @param session the user served by this thread, or null to unbind
+    */
+   public void bindSession(Session session) {
+      if (session == null) {
+         this._boundSession.remove();
+      } else {
+         this._boundSession.set(session);
+      }
+   }
+
+   /**
+    * Sends every read of the current thread to the primary, for background
+    * threads that act on just-committed changes.
+    */
+   public void readFromPrimaryOnThisThread() {
+      this._threadPrimaryUntil.set(Long.MAX_VALUE);
+   }
+
+   /**
+    * Records that the user bound to the current thread, or the thread
+    * itself if no user is bound, changed something, e.g. queued an order,
+    * so its reads go to the primary for a while.
+    */
+   public void noteWrite() {
+      Session session = this._boundSession.get();
+      if (session != null) {
+         session.readFromPrimaryFor(READ_YOUR_WRITES_MS);
+         return;
+      }
+      Long until = this._threadPrimaryUntil.get();
+      long next = System.currentTimeMillis() + READ_YOUR_WRITES_MS;
+      if (until == null || until < next) {
+         this._threadPrimaryUntil.set(next);
+      }
+   }
+
+   /*
+    * The work a query helper does on a borrowed connection. It reports the
+    * rows and bytes it read through the tally, for the query metrics.
+    */
+   private interface ConnectionCallback<T> {
+      T run(PooledConnection conn, Tally tally) throws SQLException;
+   }
+
+   /*
+    * The rows and bytes read by one ConnectionCallback.
+    */
+   private static class Tally {
+      int rows = 0;
+      long bytes = 0;
+   }
+
+   /*
+    * Borrows a connection for a statement, runs the callback on it and
+    * gives the connection back, dropping it from the pool if the failure
+    * broke it. Every query helper goes through here, so each call is timed
+    * and recorded in the query metrics once per attempt. A statement that is
+    * not readOnly runs on the primary and counts as a write of the current
+    * user. A read that fails because its replica went away, before it handed
+    * out any row, is retried once on the primary.
+    */
+   private <T> T withConnection(String sql, boolean readOnly, ConnectionCallback<T> callback) throws SQLException {
+      // borrows a connection from the pool
+      PooledConnection conn = borrow(readOnly);
+      Tally tally = new Tally();
+      try {
+         return runOn(conn, sql, tally, callback);
+      } catch (SQLException e) {
+         if (!readOnly || !this._router.isBrokenReplica(conn) || tally.rows > 0 || tally.bytes > 0) {
+            throw e;
+         }
+      }
+      return runOn(this._router.borrowPrimary(), sql, new Tally(), callback);
+   }// end withConnection
+
+   /*
+    * Runs the callback on a borrowed connection and gives the connection
+    * back, dropping it from the pool if the failure broke it.
+    */
+   private <T> T runOn(PooledConnection conn, String sql, Tally tally, ConnectionCallback<T> callback)
+         throws SQLException {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+         T result = callback.run(conn, tally);
+         failed = false;
+         return result;
+      } catch (SQLException e) {
+         conn.checkBroken(e);
+         throw e;
+      } finally {
+         // the pool rolls back and restores autocommit on release
+         this._router.release(conn);
+         this._metrics.record(sql, System.nanoTime() - start, tally.rows, tally.bytes, failed);
+      }
+   }// end runOn
+
    /**
     * Method to execute an update SQL statement. Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with '?' placeholders for parameters
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the update instruction
-      stmt.executeUpdate(sql);
-
-      // close the instruction
-      stmt.close();
+   public int executeUpdate(final String sql, final Object... params) throws SQLException {
+      return withConnection(sql, false, new ConnectionCallback<Integer>() {
+         public Integer run(PooledConnection conn, Tally tally) throws SQLException {
+            // fetches a cached statement, binds the parameters and issues the update instruction
+            tally.rows = prepare(conn, sql, params).executeUpdate();
+            return tally.rows;
+         }
+      });
    }// end executeUpdate
 
    /**
@@ -84,138 +342,914 @@ public class Cafe {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
+   public int executeQueryAndPrintResult(final String query, final Object... params) throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<Integer>() {
+         public Integer run(PooledConnection conn, Tally tally) throws SQLException {
+            // fetches a cached statement, binds the parameters and issues the query instruction
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+
+            /*
+             ** obtains the metadata object for the returned result set. The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+
+            // iterates through the result set and output them to standard out.
+            boolean outputHeader = true;
+            while (rs.next()) {
+               if (outputHeader) {
+                  for (int i = 1; i <= numCol; i++) {
+                     System.out.print(rsmd.getColumnName(i) + "\t");
+                  }
+                  System.out.println();
+                  outputHeader = false;
+               }
+               for (int i = 1; i <= numCol; ++i) {
+                  String value = rs.getString(i);
+                  tally.bytes += value == null ? 0 : value.length();
+                  System.out.print(value + "\t");
+               }
+               System.out.println();
+               ++tally.rows;
+            } // end while
+            rs.close();
+            return tally.rows;
          }
-         for (int i = 1; i <= numCol; ++i) {
-            System.out.print(rs.getString(i) + "\t");
+      });
+   }// end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a callback as it arrives. The query runs through a
+    * server-side cursor inside a transaction and rows are fetched in batches
+    * of the default fetch size (-Dcafe.fetchSize), so memory use does not
+    * grow with the size of the result. The cursor costs four extra round
+    * trips, so only scans of whole tables (e.g. the UserFilter rebuild)
+    * should use it.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param handler called once for every row
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int streamQuery(String query, RowHandler handler, Object... params) throws SQLException {
+      return streamQuery(query, FETCH_SIZE, handler, params);
+   }
+
+   /**
+    * Same as streamQuery(query, handler, params), fetching fetchSize rows
+    * per round trip.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param fetchSize the number of rows fetched from the cursor at a time
+    * @param handler called once for every row
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int streamQuery(final String query, final int fetchSize, final RowHandler handler, final Object... params)
+         throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<Integer>() {
+         public Integer run(PooledConnection conn, Tally tally) throws SQLException {
+            // cursors only live inside a transaction
+            conn.getConnection().setAutoCommit(false);
+            prepare(conn, "DECLARE cafe_stream NO SCROLL CURSOR FOR " + query, params).execute();
+
+            // fetches batches until the cursor runs dry
+            PreparedStatement fetch = prepare(conn, "FETCH FORWARD " + fetchSize + " FROM cafe_stream");
+            int fetched;
+            do {
+               ResultSet rs = fetch.executeQuery();
+               int numCol = Cafe.this._metrics.isEnabled() ? rs.getMetaData().getColumnCount() : 0;
+               fetched = 0;
+               while (rs.next()) {
+                  tally.bytes += QueryMetrics.rowBytes(rs, numCol);
+                  handler.handleRow(rs);
+                  ++fetched;
+               } // end while
+               rs.close();
+               tally.rows += fetched;
+            } while (fetched == fetchSize);
+
+            prepare(conn, "CLOSE cafe_stream").execute();
+            conn.getConnection().commit();
+            return tally.rows;
          }
-         System.out.println();
-         ++rowCount;
-      } // end while
-      stmt.close();
-      return rowCount;
-   }// end executeQuery
+      });
+   }// end streamQuery
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param params the values bound to the placeholders, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      // int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      // boolean outputHeader = false;
-      List<List<String>> result = new ArrayList<List<String>>();
-      while (rs.next()) {
-         List<String> record = new ArrayList<String>();
-         for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      } // end while
-      stmt.close();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult(final String query, final Object... params)
+         throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<List<List<String>>>() {
+         public List<List<String>> run(PooledConnection conn, Tally tally) throws SQLException {
+            // fetches a cached statement, binds the parameters and issues the query instruction
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+
+            /*
+             ** obtains the metadata object for the returned result set. The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numCol = rsmd.getColumnCount();
+
+            // iterates through the result set and saves the data returned by the query.
+            List<List<String>> result = new ArrayList<List<String>>();
+            while (rs.next()) {
+               List<String> record = new ArrayList<String>();
+               for (int i = 1; i <= numCol; ++i) {
+                  String value = rs.getString(i);
+                  tally.bytes += value == null ? 0 : value.length();
+                  record.add(value);
+               }
+               result.add(record);
+            } // end while
+            rs.close();
+            tally.rows = result.size();
+            return result;
+         }
+      });
    }// end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and map
+    * every row to an object with the given mapper. Columns are read with
+    * their typed getters, so no per-cell Strings are built.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param mapper converts one row into an object
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped rows, in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> queryForList(String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      return queryForList(true, query, mapper, params);
+   }
+
+   /**
+    * Same as queryForList(query, mapper, params), for a statement the
+    * caller marks as reading or writing, e.g. an INSERT ... RETURNING or a
+    * SELECT of a function that changes data.
+    *
+    * @param readOnly false if the statement writes, so it must run on the primary
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param mapper converts one row into an object
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped rows, in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> queryForList(boolean readOnly, final String query, final RowMapper<T> mapper,
+         final Object... params) throws SQLException {
+      return withConnection(query, readOnly, new ConnectionCallback<List<T>>() {
+         public List<T> run(PooledConnection conn, Tally tally) throws SQLException {
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+            int numCol = Cafe.this._metrics.isEnabled() ? rs.getMetaData().getColumnCount() : 0;
+            List<T> result = new ArrayList<T>();
+            while (rs.next()) {
+               tally.bytes += QueryMetrics.rowBytes(rs, numCol);
+               result.add(mapper.mapRow(rs));
+            } // end while
+            rs.close();
+            tally.rows = result.size();
+            return result;
+         }
+      });
+   }// end queryForList
+
+   /**
+    * Same as queryForList, for queries returning at most one row.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param mapper converts the row into an object
+    * @param params the values bound to the placeholders, in order
+    * @return the mapped first row, or null when there are no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryForObject(final String query, final RowMapper<T> mapper, final Object... params)
+         throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<T>() {
+         public T run(PooledConnection conn, Tally tally) throws SQLException {
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+            T result = null;
+            if (rs.next()) {
+               tally.bytes = QueryMetrics.rowBytes(rs,
+                     Cafe.this._metrics.isEnabled() ? rs.getMetaData().getColumnCount() : 0);
+               result = mapper.mapRow(rs);
+               tally.rows = 1;
+            }
+            rs.close();
+            return result;
+         }
+      });
+   }// end queryForObject
+
+   /**
+    * Method to read a single float (e.g. a price or an order total) from
+    * the first column of the first row, without string parsing.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param defaultValue returned when the query has no rows
+    * @param params the values bound to the placeholders, in order
+    * @return the value read, or defaultValue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public float queryForFloat(final String query, final float defaultValue, final Object... params)
+         throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<Float>() {
+         public Float run(PooledConnection conn, Tally tally) throws SQLException {
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+            float result = defaultValue;
+            if (rs.next()) {
+               tally.bytes = QueryMetrics.rowBytes(rs, Cafe.this._metrics.isEnabled() ? 1 : 0);
+               result = rs.getFloat(1);
+               tally.rows = 1;
+            }
+            rs.close();
+            return result;
+         }
+      });
+   }// end queryForFloat
+
+   /**
+    * Method to read a single exact decimal (e.g. a price or an order total)
+    * from the first column of the first row.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param defaultValue returned when the query has no rows or the value is NULL
+    * @param params the values bound to the placeholders, in order
+    * @return the value read, or defaultValue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public BigDecimal queryForBigDecimal(final String query, final BigDecimal defaultValue, final Object... params)
+         throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<BigDecimal>() {
+         public BigDecimal run(PooledConnection conn, Tally tally) throws SQLException {
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+            BigDecimal result = defaultValue;
+            if (rs.next()) {
+               tally.bytes = QueryMetrics.rowBytes(rs, Cafe.this._metrics.isEnabled() ? 1 : 0);
+               BigDecimal value = rs.getBigDecimal(1);
+               result = value == null ? defaultValue : value;
+               tally.rows = 1;
+            }
+            rs.close();
+            return result;
+         }
+      });
+   }// end queryForBigDecimal
+
+   /**
+    * Method to read a single integer (e.g. an id, a count or a version)
+    * from the first column of the first row.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param defaultValue returned when the query has no rows
+    * @param params the values bound to the placeholders, in order
+    * @return the value read, or defaultValue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long queryForLong(String query, long defaultValue, Object... params) throws SQLException {
+      return queryForLong(true, query, defaultValue, params);
+   }
+
+   /**
+    * Same as queryForLong(query, defaultValue, params), for a statement the
+    * caller marks as reading or writing, e.g. an INSERT ... RETURNING or a
+    * SELECT of a function that changes data.
+    *
+    * @param readOnly false if the statement writes, so it must run on the primary
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param defaultValue returned when the query has no rows
+    * @param params the values bound to the placeholders, in order
+    * @return the value read, or defaultValue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long queryForLong(boolean readOnly, final String query, final long defaultValue, final Object... params)
+         throws SQLException {
+      return withConnection(query, readOnly, new ConnectionCallback<Long>() {
+         public Long run(PooledConnection conn, Tally tally) throws SQLException {
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+            long result = defaultValue;
+            if (rs.next()) {
+               tally.bytes = QueryMetrics.rowBytes(rs, Cafe.this._metrics.isEnabled() ? 1 : 0);
+               result = rs.getLong(1);
+               tally.rows = 1;
+            }
+            rs.close();
+            return result;
+         }
+      });
+   }// end queryForLong
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param params the values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+   public int executeQuery(String query, Object... params) throws SQLException {
+      // the rows are counted by the server, see count()
+      return count(query, params);
+   }
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   /**
+    * Method to check whether an input query returns any rows. The query is
+    * wrapped in EXISTS so the DBMS stops at the first match and no row data
+    * is sent back.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param params the values bound to the placeholders, in order
+    * @return true if the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists(final String query, final Object... params) throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<Boolean>() {
+         public Boolean run(PooledConnection conn, Tally tally) throws SQLException {
+            // issues the wrapped query, a single boolean comes back
+            ResultSet rs = prepare(conn, "SELECT EXISTS (" + query + ")", params).executeQuery();
+            boolean found = rs.next() && rs.getBoolean(1);
+            rs.close();
+            tally.rows = found ? 1 : 0;
+            return found;
+         }
+      });
+   }// end exists
 
-      int rowCount = 0;
+   /**
+    * Method to count the rows an input query returns. The count is done by
+    * the DBMS with COUNT(*), so no row data is sent back.
+    *
+    * @param query the input query string, with '?' placeholders for parameters
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows the query returns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int count(final String query, final Object... params) throws SQLException {
+      return withConnection(query, true, new ConnectionCallback<Integer>() {
+         public Integer run(PooledConnection conn, Tally tally) throws SQLException {
+            // issues the wrapped query, a single count comes back
+            ResultSet rs = prepare(conn, "SELECT COUNT(*) FROM (" + query + ") AS C", params).executeQuery();
+            tally.rows = rs.next() ? rs.getInt(1) : 0;
+            rs.close();
+            return tally.rows;
+         }
+      });
+   }// end count
 
-      // iterates through the result set and counts the number of results.
-      while (rs.next()) {
-         rowCount++;
-      } // end while
-      stmt.close();
-      return rowCount;
-   }
+   /**
+    * Looks up the cached statement for a query shape and binds its
+    * parameters. Strings, numbers, booleans and timestamps are bound with
+    * their typed setters; anything else goes through setObject.
+    *
+    * @param conn the borrowed connection whose statement cache is used
+    * @param sql the SQL text with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the bound statement, owned by the statement cache
+    * @throws java.sql.SQLException when the statement cannot be prepared or bound
+    */
+   private static PreparedStatement prepare(PooledConnection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.getStatements().prepare(sql);
+      for (int i = 0; i < params.length; ++i) {
+         Object param = params[i];
+         if (param == null) {
+            stmt.setNull(i + 1, Types.VARCHAR);
+         } else if (param instanceof String) {
+            stmt.setString(i + 1, (String) param);
+         } else if (param instanceof Integer) {
+            stmt.setInt(i + 1, ((Integer) param).intValue());
+         } else if (param instanceof Float) {
+            stmt.setFloat(i + 1, ((Float) param).floatValue());
+         } else if (param instanceof BigDecimal) {
+            stmt.setBigDecimal(i + 1, (BigDecimal) param);
+         } else if (param instanceof Boolean) {
+            stmt.setBoolean(i + 1, ((Boolean) param).booleanValue());
+         } else if (param instanceof Timestamp) {
+            stmt.setTimestamp(i + 1, (Timestamp) param);
+         } else {
+            stmt.setObject(i + 1, param);
+         }
+      }
+      return stmt;
+   }// end prepare
+
+   /**
+    * Writes values as a PostgreSQL array literal, e.g. {"Latte","Mocha"},
+    * to be bound to a CAST(? AS text[]) placeholder and read back with
+    * unnest(). A list of any length binds to the same statement, so batches
+    * of every size share one cached statement and one metrics entry.
+    *
+    * @param values the elements, written with String.valueOf; nulls stay NULL
+    * @return the array literal
+    */
+   static String toArrayLiteral(List<?> values) {
+      StringBuilder literal = new StringBuilder("{");
+      for (int i = 0; i < values.size(); ++i) {
+         Object value = values.get(i);
+         literal.append(i == 0 ? "" : ",");
+         if (value == null) {
+            literal.append("NULL");
+            continue;
+         }
+         literal.append('"');
+         String text = String.valueOf(value);
+         for (int c = 0; c < text.length(); ++c) {
+            char ch = text.charAt(c);
+            if (ch == '"' || ch == '\\') {
+               literal.append('\\');
+            }
+            literal.append(ch);
+         }
+         literal.append('"');
+      }
+      return literal.append('}').toString();
+   }// end toArrayLiteral
 
    /**
     * Method to fetch the next value from a sequence. This
     * method issues the query to the DBMS and returns the next
     * value of sequence used for autogenerated keys
     *
+    * Orders do not need this: placeOrder() takes the orderid from the
+    * insert's RETURNING clause.
+    *
     * @param sequence name of the DB sequence
     * @return next value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getNextSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
+      // the sequence name is bound, so one cached statement serves every sequence
+      return (int) queryForLong(false, "SELECT nextval(?)", -1, sequence);
+   }
+
+   /**
+    * Reserves several values of a sequence in one round trip.
+    *
+    * @param sequence name of the DB sequence
+    * @param count how many values to reserve
+    * @return the reserved values, in increasing order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Integer> reserveSequenceValues(String sequence, int count) throws SQLException {
+      return queryForList(false, "SELECT nextval(?) FROM generate_series(1, ?) ORDER BY 1", new RowMapper<Integer>() {
+         public Integer mapRow(ResultSet rs) throws SQLException {
+            return rs.getInt(1);
+         }
+      }, sequence, count);
+   }
+
+   /**
+    * Method to place an order together with all of its items. The Orders
+    * row and every ItemStatus row are written by one INSERT statement (the
+    * order insert runs in a WITH clause and hands its generated orderid to
+    * a multi-row item insert), so the whole order is a single round trip
+    * and a single commit, and either all of it is stored or none of it is.
+    * The order total is summed from the Menu prices by the server.
+    * The items are bound as two arrays, so orders of every size share one
+    * cached statement.
+    *
+    * @param login the customer placing the order
+    * @param itemNames the names of the ordered menu items, at least one, no duplicates
+    * @param comments the comment for each item, in the same order
+    * @return the orderid assigned to the new order
+    * @throws java.sql.SQLException when the order could not be stored
+    */
+   public int placeOrder(String login, List<String> itemNames, List<String> comments) throws SQLException {
+      final String query = "WITH I (itemName, comments) AS (SELECT * FROM unnest(CAST(? AS text[]), CAST(? AS text[]))), " +
+            "O AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+            "SELECT ?, false, now(), COALESCE(SUM(M.price), 0) FROM I JOIN Menu M ON M.itemName = I.itemName RETURNING orderid, timeStampRecieved) " +
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price) " +
+            "SELECT O.orderid, I.itemName, now(), CAST('Hasn''t started' AS item_status), I.comments, O.timeStampRecieved, M.price " +
+            "FROM O, I LEFT JOIN Menu M ON M.itemName = I.itemName RETURNING orderid";
+      final Object[] params = { toArrayLiteral(itemNames), toArrayLiteral(comments), login };
+      final int items = itemNames.size();
+      return withConnection(query, false, new ConnectionCallback<Integer>() {
+         public Integer run(PooledConnection conn, Tally tally) throws SQLException {
+            ResultSet rs = prepare(conn, query, params).executeQuery();
+            int orderID = rs.next() ? rs.getInt(1) : -1;
+            rs.close();
+            tally.rows = 1 + items;
+            return orderID;
+         }
+      });
+   }// end placeOrder
+
+   /**
+    * Places an order for every one of a user's favorite items, in a single
+    * INSERT ... SELECT: the order and its items are copied from
+    * FavoriteItems and Menu on the server.
+    *
+    * @param login the customer placing the order
+    * @return the orderid assigned to the new order, or -1 if the user has no favorites
+    * @throws java.sql.SQLException when the order could not be stored
+    */
+   public int orderFavorites(String login) throws SQLException {
+      return (int) queryForLong(false,
+            "WITH O AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+            "SELECT ?, false, now(), SUM(M.price) FROM FavoriteItems F JOIN Menu M ON M.itemName = F.itemName " +
+            "WHERE F.login = ? HAVING count(*) > 0 RETURNING orderid, timeStampRecieved) " +
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price) " +
+            "SELECT O.orderid, F.itemName, now(), CAST('Hasn''t started' AS item_status), '', O.timeStampRecieved, M.price " +
+            "FROM O, FavoriteItems F JOIN Menu M ON M.itemName = F.itemName WHERE F.login = ? RETURNING orderid", -1, login, login, login);
+   }// end orderFavorites
+
+   /**
+    * Places a new order with the same items and comments as the user's
+    * latest order, archived or not, at today's prices, in a single
+    * INSERT ... SELECT.
+    *
+    * @param login the customer placing the order
+    * @return the orderid assigned to the new order, or -1 if the user has no orders
+    * @throws java.sql.SQLException when the order could not be stored
+    */
+   public int repeatLastOrder(String login) throws SQLException {
+      return (int) queryForLong(false,
+            "WITH L AS (SELECT orderid FROM AllOrders WHERE login = ? ORDER BY timeStampRecieved DESC, orderid DESC LIMIT 1), " +
+            "O AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+            "SELECT ?, false, now(), SUM(M.price) FROM L JOIN AllItemStatus I ON I.orderid = L.orderid " +
+            "JOIN Menu M ON M.itemName = I.itemName HAVING count(*) > 0 RETURNING orderid, timeStampRecieved) " +
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price) " +
+            "SELECT O.orderid, I.itemName, now(), CAST('Hasn''t started' AS item_status), I.comments, O.timeStampRecieved, M.price " +
+            "FROM O, L JOIN AllItemStatus I ON I.orderid = L.orderid JOIN Menu M ON M.itemName = I.itemName RETURNING orderid", -1, login, login);
+   }// end repeatLastOrder
+
+   /**
+    * Replaces a user's favorite items in one statement: favorites no longer
+    * listed are deleted, kept ones are renumbered and new ones inserted.
+    *
+    * @param login the user
+    * @param itemNames the exact Menu names of the new favorites, in order, no duplicates
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public void setFavorites(String login, List<String> itemNames) throws SQLException {
+      if (itemNames.isEmpty()) {
+         executeUpdate("DELETE FROM FavoriteItems WHERE login = ?", login);
+         return;
+      }
+      // the names come as one array, so lists of every length share one statement
+      executeUpdate("WITH N (itemName, position) AS (SELECT * FROM unnest(CAST(? AS text[])) WITH ORDINALITY), " +
+            "D AS (DELETE FROM FavoriteItems F WHERE F.login = ? AND F.itemName NOT IN (SELECT itemName FROM N)), " +
+            "U AS (UPDATE FavoriteItems F SET position = N.position FROM N " +
+            "WHERE F.login = ? AND F.itemName = N.itemName RETURNING F.itemName) " +
+            "INSERT INTO FavoriteItems (login, itemName, position) " +
+            "SELECT ?, N.itemName, N.position FROM N WHERE N.itemName NOT IN (SELECT itemName FROM U)",
+            toArrayLiteral(itemNames), login, login, login);
+   }// end setFavorites
+
+   /**
+    * Checks a user's credentials and reads the user's profile in the same
+    * query.
+    *
+    * @param login the user login
+    * @param password the user password
+    * @return the new session, or null if no user has this login and password
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session logIn(String login, String password) throws SQLException {
+      return queryForObject("SELECT " + Session.COLUMNS + " FROM Users WHERE login = ? AND password = ?",
+            Session.MAPPER, login, password);
+   }
+
+   /**
+    * Reads a user's profile without checking a password, e.g. for a manager
+    * editing another user.
+    *
+    * @param login the user login
+    * @return the user's profile, or null if the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session loadSession(String login) throws SQLException {
+      return queryForObject("SELECT " + Session.COLUMNS + " FROM Users WHERE login = ?", Session.MAPPER, login);
+   }
+
+   /**
+    * @param login the login wanted
+    * @return true if a user already has the login; free logins are
+    *         usually answered from memory, see UserFilter
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isLoginTaken(String login) throws SQLException {
+      return this._userFilter.isLoginTaken(login);
+   }
+
+   /**
+    * @param phone the phone number wanted
+    * @return true if a user already has the phone number
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isPhoneTaken(String phone) throws SQLException {
+      return this._userFilter.isPhoneTaken(phone);
+   }
+
+   /**
+    * Stores a new user and records the login and phone number as taken.
+    *
+    * @throws java.sql.SQLException when the user could not be stored,
+    *         e.g. because the login or phone number was taken meanwhile
+    */
+   public void createUser(String login, String password, String phone, String type) throws SQLException {
+      executeUpdate("INSERT INTO Users (phoneNum, login, password, favItems, type) VALUES (?, ?, ?, ?, ?)",
+            phone, login, password, "", type);
+      this._userFilter.add(login, phone);
+   }
+
+   /**
+    * Changes a user's phone number and records it as taken.
+    *
+    * @throws java.sql.SQLException when the phone number could not be stored
+    */
+   public void updatePhone(String login, String phone) throws SQLException {
+      executeUpdate("UPDATE Users SET phoneNum = ? WHERE login = ?", phone, login);
+      this._userFilter.add(null, phone);
+   }
+
+   /**
+    * Decides whether a user may change an order: managers may change any
+    * order, customers only their own unpaid ones.
+    *
+    * @param login the user asking
+    * @param isManager whether the user is a Manager
+    * @param orderid the order to change
+    * @return null when allowed, otherwise the reason it is not
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String checkOrderAccess(String login, boolean isManager, int orderid) throws SQLException {
+      awaitOrderWritten(orderid);
+      if (!exists("SELECT 1 FROM Orders WHERE orderid = ?", orderid)) {
+         if (exists("SELECT 1 FROM OrdersArchive WHERE orderid = ?", orderid)) {
+            return String.format("Orderid '%d' is archived. Cannot change order.", orderid);
+         }
+         return String.format("Orderid '%d' not found.", orderid);
+      }
+      if (isManager) {
+         return null;
+      }
+      if (!exists("SELECT 1 FROM Orders WHERE login = ? AND orderid = ?", login, orderid)) {
+         return String.format("Not authorized to change orderid '%d'.", orderid);
+      }
+      if (!exists("SELECT 1 FROM Orders WHERE login = ? AND orderid = ? AND paid = false", login, orderid)) {
+         return String.format("Orderid '%d' already paid for. Cannot change order.", orderid);
+      }
+      return null;
+   }// end checkOrderAccess
+
+   /**
+    * Decides whether a user may view an order, live or archived: employees
+    * and managers may view any order, customers only their own.
+    *
+    * @param login the user asking
+    * @param isStaff whether the user is an Employee or a Manager
+    * @param orderid the order to view
+    * @return null when allowed, otherwise the reason it is not
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String checkOrderReadAccess(String login, boolean isStaff, int orderid) throws SQLException {
+      awaitOrderWritten(orderid);
+      if (!exists("SELECT 1 FROM AllOrders WHERE orderid = ?", orderid)) {
+         return String.format("Orderid '%d' not found.", orderid);
+      }
+      if (!isStaff && !exists("SELECT 1 FROM AllOrders WHERE login = ? AND orderid = ?", login, orderid)) {
+         return String.format("Not authorized to view orderid '%d'.", orderid);
+      }
+      return null;
+   }// end checkOrderReadAccess
+
+   /*
+    * Waits for an order that may still be in the intake queue, so it can be
+    * read back right after it was placed. Throws
+    * OrderIntakeQueue.OrderNotStoredException if its write failed.
+    */
+   private void awaitOrderWritten(int orderid) throws SQLException {
+      if (!this._intake.awaitWritten(orderid, INTAKE_OFFER_TIMEOUT_MS)) {
+         throw new SQLException(String.format("Order %d is still being stored, try again shortly.", orderid));
+      }
+   }
+
+   /**
+    * @param orderid the order, live or archived
+    * @return the order's items and their status
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<OrderItem> getOrderItems(int orderid) throws SQLException {
+      awaitOrderWritten(orderid);
+      return queryForList("SELECT " + OrderItem.COLUMNS + " FROM AllItemStatus WHERE orderid = ?", OrderItem.MAPPER,
+            orderid);
+   }
+
+   /**
+    * @param orderid the order, live or archived
+    * @return the order's total, or 0 if the order does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public BigDecimal getOrderTotal(int orderid) throws SQLException {
+      awaitOrderWritten(orderid);
+      return queryForBigDecimal("SELECT total FROM AllOrders WHERE orderid = ?", BigDecimal.ZERO, orderid);
+   }
+
+   /**
+    * Adds an item to an existing order and raises the order total by the
+    * item's menu price, which is stored with the item as the price charged.
+    * Both happen in one statement: the item insert runs in a WITH clause and
+    * the total is incremented in place by the server, so concurrent edits of
+    * the same order cannot lose an update. Nothing is added if the item left
+    * the menu since it was looked up.
+    *
+    * @param orderid the order
+    * @param item the menu item added
+    * @param comment the item comment, may be empty
+    * @return true if the item was added
+    * @throws java.sql.SQLException when the item could not be added
+    */
+   public boolean addOrderItem(int orderid, MenuItem item, String comment) throws SQLException {
+      return executeUpdate(
+            "WITH I AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price) " +
+            "SELECT O.orderid, M.itemName, now(), CAST('Hasn''t started' AS item_status), ?, O.timeStampRecieved, M.price " +
+            "FROM Orders O JOIN Menu M ON M.itemName = ? WHERE O.orderid = ? " +
+            "RETURNING orderid, timeStampRecieved, price) " +
+            "UPDATE Orders O SET total = O.total + I.price FROM I " +
+            "WHERE O.orderid = I.orderid AND O.timeStampRecieved = I.timeStampRecieved",
+            comment, item.getName(), orderid) > 0;
+   }// end addOrderItem
+
+   /**
+    * Removes an item from an order and lowers the order total by the price
+    * charged for it, in one statement like addOrderItem, so the total is
+    * right even if the menu price changed since. The total is left alone if
+    * the item was not on the order.
+    *
+    * @param orderid the order
+    * @param item the menu item removed
+    * @return true if the item was on the order
+    * @throws java.sql.SQLException when the item could not be removed
+    */
+   public boolean removeOrderItem(int orderid, MenuItem item) throws SQLException {
+      return queryForLong(false,
+            "WITH D AS (DELETE FROM ItemStatus WHERE orderid = ? AND itemName = ? RETURNING orderid, timeStampRecieved, price), " +
+            "U AS (UPDATE Orders O SET total = O.total - COALESCE(D.price, 0) FROM D " +
+            "WHERE O.orderid = D.orderid AND O.timeStampRecieved = D.timeStampRecieved) " +
+            "SELECT count(*) FROM D",
+            0, orderid, item.getName()) > 0;
+   }// end removeOrderItem
+
+   /**
+    * Replaces the comment on one item of an order.
+    *
+    * @return true if the item was on the order
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public boolean updateItemComment(int orderid, String itemName, String comment) throws SQLException {
+      return executeUpdate("UPDATE ItemStatus SET comments = ? WHERE orderid = ? AND itemName = ?", comment, orderid, itemName) > 0;
+   }
+
+   /**
+    * @return true if the order exists
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public boolean markOrderPaid(int orderid) throws SQLException {
+      return executeUpdate("UPDATE Orders SET paid = 'true' WHERE orderid = ?", orderid) > 0;
+   }
+
+   /**
+    * Deletes an order and all of its items.
+    *
+    * @return true if the order existed
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public boolean deleteOrder(int orderid) throws SQLException {
+      // one statement, so the order and its items go together or not at all
+      return executeUpdate("WITH D AS (DELETE FROM ItemStatus WHERE orderid = ? RETURNING 1) "
+            + "DELETE FROM Orders WHERE orderid = ?", orderid, orderid) > 0;
+   }
+
+   /**
+    * Reads the hourly sales rollup, summing each hour's shards. The cost
+    * depends on the number of hours, not on the number of orders in them.
+    *
+    * @param hours how many hours back to go, the current one included
+    * @return the hours with orders in them, oldest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<SalesBucket> getHourlySales(int hours) throws SQLException {
+      return queryForList(
+            "SELECT hour, sum(orders), sum(revenue), sum(paidOrders), sum(paidRevenue) FROM SalesByHour " +
+            "WHERE hour > date_trunc('hour', now()) - CAST(? AS integer) * interval '1 hour' " +
+            "GROUP BY hour HAVING sum(orders) <> 0 ORDER BY hour",
+            SalesBucket.MAPPER, hours);
+   }
+
+   /**
+    * Reads the daily sales, summed from the hourly rollup.
+    *
+    * @param days how many days back to go, today included
+    * @return the days with orders in them, oldest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<SalesBucket> getDailySales(int days) throws SQLException {
+      return queryForList(
+            "SELECT date_trunc('day', hour), sum(orders), sum(revenue), sum(paidOrders), sum(paidRevenue) FROM SalesByHour " +
+            "WHERE hour >= current_date - CAST(? AS integer) + 1 GROUP BY 1 HAVING sum(orders) <> 0 ORDER BY 1",
+            SalesBucket.MAPPER, days);
+   }
 
-      ResultSet rs = stmt.executeQuery(String.format("Select nextval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+   /**
+    * Reads the best selling menu items from the daily item rollup.
+    *
+    * @param days how many days back to go, today included
+    * @param limit the most items returned
+    * @return the items with the most units sold, most first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<ItemSales> getTopItems(int days, int limit) throws SQLException {
+      return queryForList(
+            "SELECT itemName, sum(units) FROM ItemSalesByDay WHERE day > current_date - CAST(? AS integer) " +
+            "GROUP BY itemName HAVING sum(units) > 0 ORDER BY 2 DESC, 1 LIMIT ?",
+            ItemSales.MAPPER, days, limit);
    }
 
    /*
-    * Method to close the physical connection if it is open.
+    * Method to close the physical connections if they are open.
     */
    public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
+      // queued orders are written before the connections go away
+      if (!this._intake.close(INTAKE_DRAIN_TIMEOUT_MS)) {
+         System.err.println("Some queued orders were not written: " + this._intake.getStats());
+      }
+      this._metrics.stopDump();
+      this._archiver.stop();
+      this._userFilter.stop();
+      if (this._router != null) {
+         this._router.close();
+      } // end if
    }// end cleanup
 
+   /*
+    * Opens a dedicated connection outside the pool. The caller closes it.
+    */
+   public Connection openDedicatedConnection() throws SQLException {
+      return this._router.getPrimary().openUnpooled();
+   }
+
+   /*
+    * Returns the write-behind queue for new orders.
+    */
+   public OrderIntakeQueue getOrderIntake() {
+      return this._intake;
+   }
+
+   /*
+    * Returns the background job that archives old orders.
+    */
+   public OrderArchiver getOrderArchiver() {
+      return this._archiver;
+   }
+
+   /*
+    * Returns the filters that answer login and phone number checks.
+    */
+   public UserFilter getUserFilter() {
+      return this._userFilter;
+   }
+
+   /*
+    * Returns the process-local copy of the Menu table.
+    */
+   public MenuCache getMenuCache() {
+      return this._menuCache;
+   }
+
+   /*
+    * Returns the per-query latency histograms and counters.
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }
+
+   /*
+    * Returns the connection pools' size and borrow wait statistics, and
+    * the health and read counts of the replicas.
+    */
+   public String getPoolStats() {
+      return this._router.getStats();
+   }
+
    /**
     * The main execution method
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
@@ -250,13 +1284,14 @@ public class Cafe {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorizedUser = null;
+            Session session = null;
             switch (readChoice()) {
                case 1:
                   CreateUser(esql);
                   break;
                case 2:
-                  authorizedUser = LogIn(esql);
+                  session = LogIn(esql);
+                  esql.bindSession(session);
                   break;
                case 9:
                   keepon = false;
@@ -265,7 +1300,7 @@ public class Cafe {
                   System.out.println("Unrecognized choice, try again.");
                   break;
             }// end switch
-            if (authorizedUser != null) {
+            if (session != null) {
                boolean usermenu = true;
                while (usermenu) {
                   System.out.println("\nMAIN MENU");
@@ -274,23 +1309,33 @@ public class Cafe {
                   System.out.println("2. Update Profile");
                   System.out.println("3. Place an Order");
                   System.out.println("4. Update an Order");
+                  if (session.isManager()) System.out.println("5. Sales Dashboard");
                   System.out.println(".........................");
                   System.out.println("9. Log Out");
                   switch (readChoice()) {
                      case 1:
-                        Menu(esql, authorizedUser);
+                        Menu(esql, session);
                         break;
                      case 2:
-                        UpdateProfile(esql, authorizedUser);
+                        UpdateProfile(esql, session);
                         break;
                      case 3:
-                        PlaceOrder(esql, authorizedUser);
+                        PlaceOrder(esql, session);
                         break;
                      case 4:
-                        UpdateOrder(esql, authorizedUser);
+                        UpdateOrder(esql, session);
+                        break;
+                     case 5:
+                        if (!session.isManager()) {
+                           System.out.println("Unrecognized choice!");
+                        }
+                        else {
+                           SalesDashboard(esql);
+                        }
                         break;
                      case 9:
                         System.out.println("\nSuccessfully logged out.");
+                        esql.bindSession(null);
                         usermenu = false;
                         break;
                      default:
@@ -299,7 +1344,7 @@ public class Cafe {
                   }
                }
             }
-            // FIX: ELSE STATEMENT for authorizedUser == null (Print wrong user or password)
+            // FIX: ELSE STATEMENT for session == null (Print wrong user or password)
          } // end while
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -307,7 +1352,11 @@ public class Cafe {
          // make sure to cleanup the created table and close the connection.
          try {
             if (esql != null) {
-               System.out.print("\nDisconnecting from the database... ");
+               System.out.println("\n" + esql.getPoolStats());
+               System.out.println(esql.getOrderIntake().getStats());
+               System.out.println(esql.getOrderArchiver().getStats());
+               System.out.println(esql.getUserFilter().getStats());
+               System.out.print("Disconnecting from the database... ");
                esql.cleanup();
                System.out.println("Done!\n\nBye!");
             } // end if
@@ -358,6 +1407,51 @@ public class Cafe {
       return true;
    }
 
+   /*
+    * Prints menu items in the same layout as executeQueryAndPrintResult.
+    * @return the number of items printed
+    */
+   public static int printMenuItems(List<MenuItem> items) {
+      if (items.size() > 0) {
+         System.out.println("name\tprice\ttypes\t");
+      }
+      for (MenuItem item : items) {
+         System.out.println(item.getName() + "\t" + item.getPrice() + "\t" + item.getDescription() + "\t");
+      }
+      return items.size();
+   }
+
+   /*
+    * Prints the menu items whose names or variants are closest to a name
+    * that was not found, if any are close.
+    */
+   public static void printSuggestions(Cafe esql, String name) throws SQLException {
+      List<MenuSearchIndex.Match> matches = esql.getMenuCache().getSearchIndex().search(name, SUGGESTION_LIMIT);
+      if (matches.isEmpty()) {
+         return;
+      }
+      StringBuilder line = new StringBuilder("Did you mean: ");
+      for (int i = 0; i < matches.size(); ++i) {
+         line.append(i == 0 ? "" : ", ").append(matches.get(i));
+      }
+      System.out.println(line.append('?'));
+   }
+
+   /*
+    * Prints orders in the same layout as executeQueryAndPrintResult.
+    * @return the number of orders printed
+    */
+   public static int printOrders(List<Order> orders) {
+      if (orders.size() > 0) {
+         System.out.println("orderid\tlogin\tpaid\ttimestamprecieved\ttotal\t");
+      }
+      for (Order order : orders) {
+         System.out.println(order.getOrderid() + "\t" + order.getLogin() + "\t" + (order.isPaid() ? "t" : "f") + "\t"
+               + order.getTimeStampRecieved() + "\t" + order.getTotal() + "\t");
+      }
+      return orders.size();
+   }
+
    /*
     * Checks passwords for num chars, special chars etc.
     */
@@ -389,12 +1483,7 @@ public class Cafe {
          String login = in.readLine();
 
          // (EC) Add check if the login is already taken
-         boolean alreadyExists = false;
-         String query = String.format("SELECT * FROM Users U WHERE U.login = '%s'", login);
-         int numLogin = esql.executeQuery(query);
-         if (numLogin > 0) {
-            alreadyExists = true;
-         }
+         boolean alreadyExists = esql.isLoginTaken(login);
          if (alreadyExists) {
             System.out.println("Username already taken please try again.");
          }
@@ -405,14 +1494,13 @@ public class Cafe {
             if (checkPassword(password)) {
                System.out.print("\tEnter user phone: ");
                String phone = in.readLine();
+               while (esql.isPhoneTaken(phone)) {
+                  System.out.print("\tPhone number is taken, please try again: ");
+                  phone = in.readLine();
+               }
 
                String type = "Customer";
-               String favItems = "";
-               String query2 = String.format(
-                     "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone,
-                     login, password, favItems, type);
-
-               esql.executeUpdate(query2);
+               esql.createUser(login, password, phone, type);
                System.out.println("User successfully created!");
             }
             else {
@@ -426,21 +1514,20 @@ public class Cafe {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the user's session or null is the user does not exist
     */
-   public static String LogIn(Cafe esql) {
+   public static Session LogIn(Cafe esql) {
       try {
          System.out.print("\nEnter user login: ");
          String login = in.readLine();
          System.out.print("Enter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
-            String welcome = String.format("\nLogin successful. Welcome, %s!", login);
+         Session session = esql.logIn(login, password);
+         if (session != null) {
+            String welcome = String.format("\nLogin successful. Welcome, %s!", session.getLogin());
             System.out.println(welcome);
-            return login;
+            return session;
          } else {
             System.out.println("\nLogin not found! Please try again.");
             return null;
@@ -455,14 +1542,9 @@ public class Cafe {
     * Users can browse menu and search by name/category.
     * Managers can also update menu items.
     */
-   public static void Menu(Cafe esql, String authorizedUser) {
+   public static void Menu(Cafe esql, Session session) {
       try {
-         // Check if the user is a Manager
-         boolean isManager = false;
-         String query = String.format("SELECT * FROM Users U WHERE U.login = '%s' AND U.type = 'Manager'", authorizedUser);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
-            isManager = true;
+         boolean isManager = session.isManager();
 
          System.out.println("\nMENU OPTIONS");
          System.out.println("---------");
@@ -473,23 +1555,21 @@ public class Cafe {
          System.out.println(".........................");
          System.out.println("9. Return to Main Menu");
          int rowNum = 0;
+         boolean found = false;
 
          switch (readChoice()) {
 
             case 1:
                System.out.println("\nDrinks:\n-------------------------");
-               query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Drinks'");
-               rowNum = esql.executeQueryAndPrintResult(query);
+               rowNum = printMenuItems(esql.getMenuCache().getByType("Drinks"));
                System.out.println(String.format("(%d items)", rowNum));
 
                System.out.println("\nSweets:\n-------------------------");
-               query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Sweets'");
-               rowNum = esql.executeQueryAndPrintResult(query);
+               rowNum = printMenuItems(esql.getMenuCache().getByType("Sweets"));
                System.out.println(String.format("(%d items)", rowNum));
 
                System.out.println("\nSoup:\n-------------------------");
-               query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Soup'");
-               rowNum = esql.executeQueryAndPrintResult(query);
+               rowNum = printMenuItems(esql.getMenuCache().getByType("Soup"));
                System.out.println(String.format("(%d items)", rowNum));
                break;
 
@@ -497,8 +1577,16 @@ public class Cafe {
                System.out.print("\nEnter item name: ");
                String itemName = in.readLine();
                System.out.println();
-               query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemName);
-               rowNum = esql.executeQueryAndPrintResult(query);
+               // exact name or variant, else names starting with it, else near misses
+               List<MenuSearchIndex.Match> matches = esql.getMenuCache().getSearchIndex().search(itemName, MENU_SEARCH_LIMIT);
+               List<MenuItem> searchItems = new ArrayList<MenuItem>();
+               for (MenuSearchIndex.Match match : matches) {
+                  searchItems.add(match.getItem());
+               }
+               if (!matches.isEmpty() && matches.get(0).getDistance() > 0) {
+                  System.out.println("No exact match. Did you mean:");
+               }
+               rowNum = printMenuItems(searchItems);
                if (rowNum > 0) {
                   System.out.println(String.format("(%d items)", rowNum));
                } else {
@@ -510,8 +1598,7 @@ public class Cafe {
                System.out.print("\nEnter 'Drinks', 'Sweets', or 'Soup': ");
                String type = in.readLine();
                System.out.println();
-               query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = '%s'", type);
-               rowNum = esql.executeQueryAndPrintResult(query);
+               rowNum = printMenuItems(esql.getMenuCache().getByType(type));
                if (rowNum > 0) {
                   System.out.println(String.format("(%d items)", rowNum));
                } else {
@@ -538,13 +1625,13 @@ public class Cafe {
                   case 1:
                      System.out.println("\nEnter the name of the new item: ");
                      String newName = in.readLine();
-                     String newNameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", newName);
-                     rowNum = esql.executeQuery(newNameQuery);
-                     while ((newName.length() > 50) || (rowNum > 0)) {
+                     String newNameQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                     found = esql.exists(newNameQuery, newName);
+                     while ((newName.length() > 50) || found) {
                         System.out.println("Name already exists, or is > 50 characters. Try again: ");
                         newName = in.readLine();
-                        newNameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", newName);
-                        rowNum = esql.executeQuery(newNameQuery);
+                        newNameQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                        found = esql.exists(newNameQuery, newName);
                      }
 
                      System.out.println("Enter the item's type ('Drinks', 'Sweets', or 'Soup'): ");
@@ -556,9 +1643,9 @@ public class Cafe {
 
                      System.out.println("Enter the item's price (exclude '$'): ");
                      String newPrice = in.readLine();
-                     Float newPriceFloat;
+                     BigDecimal newPriceAmount;
                      try {
-                        newPriceFloat = Float.parseFloat(newPrice);  // Parse string as a float
+                        newPriceAmount = new BigDecimal(newPrice.trim());  // Parse string as an exact amount
                      } catch (Exception e) {
                         System.out.println("Price must be of the form '12.34'. Please re-add the item.");
                         break;
@@ -578,37 +1665,39 @@ public class Cafe {
                         newImageURL = in.readLine();
                      }
 
-                     String newItemUpdate = String.format("INSERT INTO Menu VALUES ('%s', '%s', '%s', '%s', '%s')", newName, newType, newPriceFloat.toString(), newDescription, newImageURL);
-                     esql.executeUpdate(newItemUpdate);
+                     String newItemUpdate = "INSERT INTO Menu VALUES (?, ?, ?, ?, ?)";
+                     esql.executeUpdate(newItemUpdate, newName, newType, newPriceAmount, newDescription, newImageURL);
+                     esql.getMenuCache().invalidate();
                      System.out.println("\nItem added!");
                      break;
 
                   case 2:
                      System.out.println("\nEnter the name of the item to delete: ");
                      String deleteName = in.readLine();
-                     String deleteNameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", deleteName);
-                     rowNum = esql.executeQuery(deleteNameQuery);
-                     while ((deleteName.length() > 50) || (rowNum == 0)) {
+                     String deleteNameQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                     found = esql.exists(deleteNameQuery, deleteName);
+                     while ((deleteName.length() > 50) || !found) {
                         System.out.println("Name not found, or is > 50 characters. Try again: ");
                         deleteName = in.readLine();
-                        deleteNameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", deleteName);
-                        rowNum = esql.executeQuery(deleteNameQuery);
+                        deleteNameQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                        found = esql.exists(deleteNameQuery, deleteName);
                      }
-                     String deletionUpdate = String.format("DELETE FROM Menu WHERE itemName = '%s'", deleteName);
-                     esql.executeUpdate(deletionUpdate);
+                     String deletionUpdate = "DELETE FROM Menu WHERE itemName = ?";
+                     esql.executeUpdate(deletionUpdate, deleteName);
+                     esql.getMenuCache().invalidate();
                      System.out.println("\nItem deleted!");
                      break;
 
                   case 3:
                      System.out.println("\nEnter the name of the item to update: ");
                      String itemToUpdate = in.readLine();
-                     String itemToUpdateQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", itemToUpdate);
-                     rowNum = esql.executeQuery(itemToUpdateQuery);
-                     while ((itemToUpdate.length() > 50) || (rowNum == 0)) {
+                     String itemToUpdateQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                     found = esql.exists(itemToUpdateQuery, itemToUpdate);
+                     while ((itemToUpdate.length() > 50) || !found) {
                         System.out.println("Item doesn't exist, or is > 50 characters. Try again: ");
                         itemToUpdate = in.readLine();
-                        itemToUpdateQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", itemToUpdate);
-                        rowNum = esql.executeQuery(itemToUpdateQuery);
+                        itemToUpdateQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                        found = esql.exists(itemToUpdateQuery, itemToUpdate);
                      }
 
                      System.out.println(String.format("\nUPDATE ITEM MENU (updating '%s')", itemToUpdate));
@@ -626,16 +1715,17 @@ public class Cafe {
                         case 1:
                            System.out.println(String.format("Enter a new name for '%s': ", itemToUpdate));
                            String newItemName = in.readLine();
-                           String newItemNameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", newItemName);
-                           rowNum = esql.executeQuery(newItemNameQuery);
-                           while ((newItemName.length() > 50) || (rowNum > 0)) {
+                           String newItemNameQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                           found = esql.exists(newItemNameQuery, newItemName);
+                           while ((newItemName.length() > 50) || found) {
                               System.out.println("Name already exists, or is > 50 characters. Try again: ");
                               newItemName = in.readLine();
-                              newItemNameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", newItemName);
-                              rowNum = esql.executeQuery(newItemNameQuery);
+                              newItemNameQuery = "SELECT 1 FROM Menu WHERE itemName = ?";
+                              found = esql.exists(newItemNameQuery, newItemName);
                            }
-                           String itemNameUpdate = String.format("UPDATE Menu SET itemName = '%s' WHERE itemName = '%s'", newItemName, itemToUpdate);
-                           esql.executeUpdate(itemNameUpdate);
+                           String itemNameUpdate = "UPDATE Menu SET itemName = ? WHERE itemName = ?";
+                           esql.executeUpdate(itemNameUpdate, newItemName, itemToUpdate);
+                           esql.getMenuCache().invalidate();
                            System.out.println("\nName updated!");
                            break;
 
@@ -646,23 +1736,25 @@ public class Cafe {
                               System.out.println("Type must be 'Drinks', 'Sweets', or 'Soup'. Try again: ");
                               newItemType = in.readLine();
                            }
-                           String itemTypeUpdate = String.format("UPDATE Menu SET type = '%s' WHERE itemName = '%s'", newItemType, itemToUpdate);
-                           esql.executeUpdate(itemTypeUpdate);
+                           String itemTypeUpdate = "UPDATE Menu SET type = ? WHERE itemName = ?";
+                           esql.executeUpdate(itemTypeUpdate, newItemType, itemToUpdate);
+                           esql.getMenuCache().invalidate();
                            System.out.println("\nType updated!");
                            break;
 
                         case 3:
                            System.out.println(String.format("Enter a new price for '%s' (of the form 12.34): ", itemToUpdate));
                            String newItemPrice = in.readLine();
-                           Float newItemPriceFloat;
+                           BigDecimal newItemPriceAmount;
                            try {
-                              newItemPriceFloat = Float.parseFloat(newItemPrice);  // Parse string as a float
+                              newItemPriceAmount = new BigDecimal(newItemPrice.trim());  // Parse string as an exact amount
                            } catch (Exception e) {
                               System.out.println("Price must be of the form '12.34'. Please restart the update.");
                               break;
                            }
-                           String itemPriceUpdate = String.format("UPDATE Menu SET price = '%s' WHERE itemName = '%s'", newItemPriceFloat.toString(), itemToUpdate);
-                           esql.executeUpdate(itemPriceUpdate);
+                           String itemPriceUpdate = "UPDATE Menu SET price = ? WHERE itemName = ?";
+                           esql.executeUpdate(itemPriceUpdate, newItemPriceAmount, itemToUpdate);
+                           esql.getMenuCache().invalidate();
                            System.out.println("\nPrice updated!");
                            break;
 
@@ -673,8 +1765,9 @@ public class Cafe {
                               System.out.println("Description must be less than 400 characters. Try again: ");
                               newItemDescription = in.readLine();
                            }
-                           String itemDescriptionUpdate = String.format("UPDATE Menu SET description = '%s' WHERE itemName = '%s'", newItemDescription, itemToUpdate);
-                           esql.executeUpdate(itemDescriptionUpdate);
+                           String itemDescriptionUpdate = "UPDATE Menu SET description = ? WHERE itemName = ?";
+                           esql.executeUpdate(itemDescriptionUpdate, newItemDescription, itemToUpdate);
+                           esql.getMenuCache().invalidate();
                            System.out.println("\nDescription updated!");
                            break;
 
@@ -685,8 +1778,9 @@ public class Cafe {
                               System.out.println("Image URL must be less than 256 characters. Try again: ");
                               newItemImageURL = in.readLine();
                            }
-                           String itemImageURLUpdate = String.format("UPDATE Menu SET imageURL = '%s' WHERE itemName = '%s'", newItemImageURL, itemToUpdate);
-                           esql.executeUpdate(itemImageURLUpdate);
+                           String itemImageURLUpdate = "UPDATE Menu SET imageURL = ? WHERE itemName = ?";
+                           esql.executeUpdate(itemImageURLUpdate, newItemImageURL, itemToUpdate);
+                           esql.getMenuCache().invalidate();
                            System.out.println("\nImage URL updated!");
                            break;
 
@@ -718,21 +1812,24 @@ public class Cafe {
     * Users can update their own profile information.
     * Managers can update the profiles of other users.
     */
-   public static void UpdateProfile(Cafe esql, String authorizedUser) {
+   public static void UpdateProfile(Cafe esql, Session session) {
+      UpdateProfile(esql, session, session);
+   }
+
+   /*
+    * Edits the profile of the given user. Privileges come from session,
+    * the user logged in; profile is the user being edited, the same
+    * session unless a manager is editing someone else.
+    */
+   public static void UpdateProfile(Cafe esql, Session session, Session profile) {
       try {
-         boolean isManager = false;
-         String query = String.format("SELECT * FROM Users U WHERE U.login = '%s' AND U.type = 'Manager'", authorizedUser);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
-            isManager = true;
-         }
+         String query;
+         boolean isManager = session.isManager();
 
-         String updatedUser = authorizedUser;
-         List<List<String>> queryResults = new ArrayList<List<String>>();
-         queryResults = esql.executeQueryAndReturnResult(String.format("SELECT * FROM Users WHERE login = '%s'", authorizedUser));
-         String userPassword = queryResults.get(0).get(2);
-         String userPhone = queryResults.get(0).get(1);
-         String userFavItems = queryResults.get(0).get(3);
+         String updatedUser = profile.getLogin();
+         String userPassword = profile.getPassword();
+         String userPhone = profile.getPhoneNum();
+         String userFavItems = profile.getFavItems();
 
          System.out.println(String.format("\nUPDATE PROFILE OPTIONS (user: %s)", updatedUser));
          System.out.println("----------------------");
@@ -746,7 +1843,7 @@ public class Cafe {
          if (isManager) System.out.println("4. Update a Different User");
          System.out.println(".........................");
          System.out.println("9. Return to Main Menu");
-         int rowNum = 0;
+         boolean found = false;
 
          switch (readChoice()) {
 
@@ -757,8 +1854,9 @@ public class Cafe {
                   System.out.println("Password must have a minimum of 8 characters including a capital letter and a special character (ex: ~!@#$%^&*_-+=`|(){}[]:;'<>,.?)");
                   password = in.readLine();
                }
-               query = String.format("UPDATE USERS SET password = '%s' WHERE login = '%s'", password, updatedUser);
-               esql.executeUpdate(query);
+               query = "UPDATE USERS SET password = ? WHERE login = ?";
+               esql.executeUpdate(query, password, updatedUser);
+               profile.refresh(esql);
                System.out.println("User successfully created!");
                System.out.println("\nYour password has been updated.");
                break;
@@ -766,34 +1864,36 @@ public class Cafe {
             case 2:
                System.out.println("\nEnter a new phone number: ");
                String phoneNum = in.readLine().trim();
-               String newPhoneQuery = String.format("SELECT * FROM Users WHERE phoneNum = '%s'", phoneNum);
-               rowNum = esql.executeQuery(newPhoneQuery);
-               while ((rowNum > 0) || (phoneNum.length() > 11)) {
+               while (phoneNum.length() > 11 || esql.isPhoneTaken(phoneNum)) {
                   System.out.println("Phone number is taken or is too long, please try again: ");
                   phoneNum = in.readLine().trim();
-                  newPhoneQuery = String.format("SELECT * FROM Users WHERE phoneNum = '%s'", phoneNum);
-                  rowNum = esql.executeQuery(newPhoneQuery);
                }
-               query = String.format("UPDATE USERS SET phoneNum = '%s' WHERE login = '%s'", phoneNum, updatedUser);
-               esql.executeUpdate(query);
+               esql.updatePhone(updatedUser, phoneNum);
+               profile.refresh(esql);
                System.out.println("\nYour phone number has been updated.");
                break;
 
             case 3:
                System.out.println("\nList of your favorite items: \n");
-               query = String.format("SELECT favItems FROM USERS WHERE login = '%s'", updatedUser);
-               rowNum = esql.executeQueryAndPrintResult(query);
-               if (rowNum > 0) {
-                  System.out.println(String.format("(%d items)", rowNum));
-               }
-               else {
-                  System.out.println("ERROR: Issue with finding favorite items. Please try again later.");
-               }
+               System.out.println(userFavItems);
 
                System.out.println("\nPlease enter your new list of favorite items separated by commas.\n");
                String favItems = in.readLine();
-               query = String.format("UPDATE USERS SET favItems = '%s' WHERE login = '%s'", favItems, updatedUser);
-               esql.executeUpdate(query);
+               List<String> favorites = new ArrayList<String>();
+               for (String favItem : favItems.split(",")) {
+                  if (favItem.trim().length() == 0) {
+                     continue;
+                  }
+                  MenuSearchIndex.Match match = esql.getMenuCache().getSearchIndex().find(favItem);
+                  if (match == null) {
+                     System.out.println(String.format("'%s' is not on the menu, skipped.", favItem.trim()));
+                     printSuggestions(esql, favItem);
+                  } else if (!favorites.contains(match.getItem().getName())) {
+                     favorites.add(match.getItem().getName());
+                  }
+               }
+               esql.setFavorites(updatedUser, favorites);
+               profile.refresh(esql);
                System.out.println("\nYour list of favorite items has been updated.");
                break;
 
@@ -805,23 +1905,14 @@ public class Cafe {
                   System.out.println("\nPlease enter the username of the User you are changing:");
                   updatedUser = in.readLine();
 
-                  boolean userFound = false;
-                  query = String.format("SELECT * FROM Users U WHERE U.login = '%s'", updatedUser);
-                  int numLogin = esql.executeQuery(query);
-                  if (numLogin > 0) {
-                     userFound = true;
-                  }
-                  while(!userFound && !updatedUser.equals("9")) {
+                  Session otherUser = esql.loadSession(updatedUser);
+                  while(otherUser == null && !updatedUser.equals("9")) {
                      System.out.println("Username not found. Please try again or press '9' to quit.");
                      updatedUser = in.readLine();
-                     query = String.format("SELECT * FROM Users U WHERE U.login = '%s'", updatedUser);
-                     numLogin = esql.executeQuery(query);
-                     if (numLogin > 0) {
-                        userFound = true;
-                     }
+                     otherUser = esql.loadSession(updatedUser);
                   }
-                  if (!updatedUser.equals("9")) {
-                     UpdateProfile(esql, updatedUser);
+                  if (otherUser != null) {
+                     UpdateProfile(esql, session, otherUser);
                   }
                }
                break;
@@ -840,29 +1931,47 @@ public class Cafe {
     * Users can place orders by specifying items and comments.
     * Menu, order details and running total is displayed.
     */
-   public static void PlaceOrder(Cafe esql, String authorizedUser) {
+   public static void PlaceOrder(Cafe esql, Session session) {
       try {
-         String query;
+         String authorizedUser = session.getLogin();
          int rowNum;
          ArrayList<String> orderItems = new ArrayList<String>();
-         ArrayList<Float> orderPrices = new ArrayList<Float>();
+         ArrayList<BigDecimal> orderPrices = new ArrayList<BigDecimal>();
          ArrayList<String> orderComments = new ArrayList<String>();
-         List<List<String>> queryResults = new ArrayList<List<String>>();
+
+         // Repeat customers can skip picking items one by one
+         String favorites = session.getFavItems();
+         System.out.println("\nPLACE AN ORDER");
+         System.out.println("--------------");
+         System.out.println("1. Choose items from the menu");
+         System.out.println(String.format("2. Order my favorites (%s)", favorites.length() == 0 ? "none saved" : favorites));
+         System.out.println("3. Repeat my last order");
+         switch (readChoice()) {
+            case 1:
+               break;
+            case 2:
+               printPlacedOrder(esql, esql.orderFavorites(authorizedUser),
+                     "You have no favorite items. Add some under Update Profile.");
+               return;
+            case 3:
+               printPlacedOrder(esql, esql.repeatLastOrder(authorizedUser), "You have no previous orders.");
+               return;
+            default:
+               System.out.println("Unrecognized choice!");
+               return;
+         }
 
          // Print menu for the user first
          System.out.println("\nDrinks:\n-------------------------");
-         query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Drinks'");
-         rowNum = esql.executeQueryAndPrintResult(query);
+         rowNum = printMenuItems(esql.getMenuCache().getByType("Drinks"));
          System.out.println(String.format("(%d items)", rowNum));
 
          System.out.println("\nSweets:\n-------------------------");
-         query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Sweets'");
-         rowNum = esql.executeQueryAndPrintResult(query);
+         rowNum = printMenuItems(esql.getMenuCache().getByType("Sweets"));
          System.out.println(String.format("(%d items)", rowNum));
 
          System.out.println("\nSoup:\n-------------------------");
-         query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Soup'");
-         rowNum = esql.executeQueryAndPrintResult(query);
+         rowNum = printMenuItems(esql.getMenuCache().getByType("Soup"));
          System.out.println(String.format("(%d items)", rowNum));
 
          System.out.println("\nORDER MENU");
@@ -872,9 +1981,9 @@ public class Cafe {
          int i = 1;
          int itemIndex = 0;
          String itemName = "";
-         String itemPrice = "";
+         MenuItem menuItem = null;
          String itemComment = "";
-         Float totalPrice = (float)0.0;
+         BigDecimal totalPrice = BigDecimal.ZERO;
          int nextOrderID = 0;
 
          // Collect items for the order
@@ -882,22 +1991,19 @@ public class Cafe {
             System.out.print(String.format("\nEnter name for item #%d, or 'DONE' to finish: ", i));
             itemName = in.readLine().trim();
 
-            // Get item name, make sure it's valid
-            query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemName);
-            queryResults = esql.executeQueryAndReturnResult(query);
-            while ((queryResults.size() == 0) && !itemName.equalsIgnoreCase("DONE")) {
-               System.out.print("Item not found, try again: ");
-               itemName = in.readLine().trim();
-               query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemName);
-               queryResults = esql.executeQueryAndReturnResult(query);
-            }
-
-            // Make sure item isn't a duplicate
-            itemIndex = orderItems.indexOf(itemName);
-            while (itemIndex != -1) {
-               System.out.print("Item already added, try again: ");
+            // Get item name, make sure it's valid and isn't a duplicate
+            menuItem = esql.getMenuCache().get(itemName);
+            itemIndex = (menuItem == null) ? -1 : orderItems.indexOf(menuItem.getName());
+            while (((menuItem == null) || (itemIndex != -1)) && !itemName.equalsIgnoreCase("DONE")) {
+               if (menuItem == null) {
+                  printSuggestions(esql, itemName);
+                  System.out.print("Item not found, try again: ");
+               } else {
+                  System.out.print("Item already added, try again: ");
+               }
                itemName = in.readLine().trim();
-               itemIndex = orderItems.indexOf(itemName);
+               menuItem = esql.getMenuCache().get(itemName);
+               itemIndex = (menuItem == null) ? -1 : orderItems.indexOf(menuItem.getName());
             }
 
             // Handle quitting
@@ -920,9 +2026,8 @@ public class Cafe {
                itemComment = "";
             }
 
-            itemPrice = queryResults.get(0).get(1);         // Get item price as string
-            orderPrices.add(Float.parseFloat(itemPrice));   // Convert price to float, add to list
-            orderItems.add(queryResults.get(0).get(0));     // Add item name to list
+            orderPrices.add(menuItem.getPrice());           // Add item price to list
+            orderItems.add(menuItem.getName());             // Add item name to list
             orderComments.add(itemComment);                 // Add item comment to list
 
             System.out.println("\nYour Order: ");
@@ -930,49 +2035,55 @@ public class Cafe {
             for (int j = 0; j < orderItems.size(); ++j) {
                System.out.println(String.format("%d) %s ($%.2f)", j+1, orderItems.get(j), orderPrices.get(j)));
             }
-            totalPrice = (float)0.0;
+            totalPrice = BigDecimal.ZERO;
             for (int k = 0; k < orderPrices.size(); ++k) {
-               totalPrice += orderPrices.get(k);
+               totalPrice = totalPrice.add(orderPrices.get(k));
             }
             System.out.println(String.format("\nTOTAL: $%.2f", totalPrice));
 
             ++i;
          }
 
-         // Create new Order, first orderid will be 87257
-         nextOrderID = esql.getNextSeqVal("orders_orderid_seq");
-         query = String.format("INSERT INTO Orders VALUES ('%d', '%s', 'false', 'now()', '%f')",
-               nextOrderID, authorizedUser, totalPrice);
-         esql.executeUpdate(query);
-
-         // Create ItemStatus for each item
-         for (i = 0; i < orderItems.size(); ++i) {
-            query = String.format("INSERT INTO ItemStatus VALUES ('%d', '%s', 'now()', 'Hasn''t started', '%s')",
-                  nextOrderID, orderItems.get(i), orderComments.get(i));
-            esql.executeUpdate(query);
-         }
+         // Create the Order and an ItemStatus for each item, first orderid will be 87257
+         // acknowledged at once, stored by the background writer
+         nextOrderID = esql.getOrderIntake().submit(authorizedUser, orderItems, orderComments);
 
-         System.out.println("\nYour order has been placed!");
+         System.out.println(String.format("\nYour order has been placed! (orderid %d)", nextOrderID));
 
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }
 
+   /*
+    * Prints the items and total of an order placed in one step.
+    */
+   private static void printPlacedOrder(Cafe esql, int orderid, String whenNone) throws SQLException {
+      if (orderid < 0) {
+         System.out.println("\n" + whenNone);
+         return;
+      }
+      System.out.println(String.format("\nYour order has been placed! (orderid %d)", orderid));
+      for (OrderItem item : esql.getOrderItems(orderid)) {
+         System.out.println(item.getItemName());
+      }
+      System.out.println(String.format("\nTOTAL: $%.2f", esql.getOrderTotal(orderid)));
+   }
+
    /*
     * Users can view their 5 most recent orders and update them.
     * Managers can update others' orders.
     */
-   public static void UpdateOrder(Cafe esql, String authorizedUser) {
+   public static void UpdateOrder(Cafe esql, Session session) {
       try {
          String query;
          String inputOrderString;
          String itemToUpdate;
          String itemComment;
-         Float totalPrice = (float)0.0;
-         Float itemPrice = (float)0.0;
+         BigDecimal totalPrice = BigDecimal.ZERO;
          int inputOrderID;
          int numRows;
+         boolean found = false;
          boolean wantToChange = true;
          boolean wantToAdd = true;
          boolean wantToDelete = true;
@@ -980,23 +2091,27 @@ public class Cafe {
          boolean usermenu = true;
          boolean orderMenu = true;
          boolean isAuthorized = false;
-         List<List<String>> queryResults = new ArrayList<List<String>>();
-
-         // Check if user is a manager
-         boolean isManager = false;
-         query = String.format("SELECT * FROM Users U WHERE U.login = '%s' AND U.type = 'Manager'", authorizedUser);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
-            isManager = true;
+         MenuItem menuItem = null;
+
+         String authorizedUser = session.getLogin();
+         boolean isManager = session.isManager();
+         if (isManager) {
             isAuthorized = true;
          }
 
+         // authorizedUser's orders, a page at a time
+         OrderHistory history = OrderHistory.forUser(esql, authorizedUser, ORDER_PAGE_SIZE);
+         List<Order> page = history.first();
+
          // Update Order Menu Options
          while (usermenu) {
-            // Print most recent 5 orders from authorizedUser
-            System.out.println(String.format("\n%s's 5 Most Recent Orders:\n-------------------------", authorizedUser));
-            query = String.format("SELECT * FROM Orders WHERE login = '%s' ORDER BY timestamprecieved DESC LIMIT 5", authorizedUser);
-            esql.executeQueryAndPrintResult(query);
+            if (history.getPageNumber() == 1) {
+               System.out.println(String.format("\n%s's %d Most Recent Orders:\n-------------------------", authorizedUser, ORDER_PAGE_SIZE));
+            }
+            else {
+               System.out.println(String.format("\n%s's Orders (page %d):\n-------------------------", authorizedUser, history.getPageNumber()));
+            }
+            printOrders(page);
 
             // Output UPDATE ORDER MENU
             System.out.println("\nUPDATE ORDER MENU");
@@ -1004,6 +2119,8 @@ public class Cafe {
             System.out.println("1. Edit an Order");
             System.out.println("2. Delete an Order");
             if (isManager) System.out.println("3. View All Orders Within 24 Hours");
+            if (history.hasNext()) System.out.println("4. Older Orders");
+            if (history.hasPrevious()) System.out.println("5. Newer Orders");
             System.out.println(".........................");
             System.out.println("9. Return to MAIN MENU");
 
@@ -1015,43 +2132,24 @@ public class Cafe {
                   inputOrderString = in.readLine();
                   inputOrderID = Integer.parseInt(inputOrderString);
 
-                  // Check if order exists
-                  query = String.format("SELECT * FROM Orders WHERE orderid = '%d'", inputOrderID);
-                  numRows = esql.executeQuery(query);
+                  // Check if order exists and may be changed; waits for an order still being stored
+                  String denied = esql.checkOrderAccess(authorizedUser, isManager, inputOrderID);
                   wantToChange = checkExit(inputOrderString);
-                  while (numRows <= 0 && wantToChange) {
-                     System.out.println(String.format("Orderid '%d' not found.", inputOrderID));
+                  while (denied != null && wantToChange) {
+                     System.out.println(denied);
                      System.out.print("\nPlease re-enter the orderID of the order you are changing or type 'DONE' to exit: ");
 
                      inputOrderString = in.readLine();
                      inputOrderID = Integer.parseInt(inputOrderString);
                      wantToChange = checkExit(inputOrderString);
 
-                     query = String.format("SELECT * FROM Orders WHERE orderid = '%d'", inputOrderID);
-                     numRows = esql.executeQuery(query);
+                     denied = esql.checkOrderAccess(authorizedUser, isManager, inputOrderID);
                   }
+                  found = denied == null;
 
                   // OrderID Exists
-                  if (numRows > 0) {
-                     if (!isManager) {
-                        // Check if it is their own order
-                        query = String.format("SELECT * FROM Orders WHERE login = '%s' AND orderid = '%d'", authorizedUser, inputOrderID);
-                        numRows = esql.executeQuery(query);
-                        if (numRows <= 0) {
-                           System.out.println(String.format("Not authorized to change orderid '%d'.", inputOrderID));
-                        }
-                        else {
-                           // Check if paid for
-                           query = String.format("SELECT * FROM Orders WHERE login = '%s' AND orderid = '%d' AND paid = false", authorizedUser, inputOrderID);
-                           numRows = esql.executeQuery(query);
-                           if (numRows <= 0) {
-                              System.out.println(String.format("\nOrderid '%d' already paid for. Cannot change order.", inputOrderID));
-                           }
-                           else {
-                              isAuthorized = true;
-                           }
-                        }
-                     }
+                  if (found) {
+                     isAuthorized = true;
 
                      // The user is authorized to change the order
                      while (isAuthorized && orderMenu) {
@@ -1070,13 +2168,11 @@ public class Cafe {
                            case 1:
                               // Output current order
                               System.out.println(String.format("\nOrder %d's Itemized List:\n-------------------------", inputOrderID));
-                              query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d'", inputOrderID);
-                              esql.executeQueryAndPrintResult(query);
+                              query = "SELECT * FROM ItemStatus WHERE orderid = ?";
+                              esql.executeQueryAndPrintResult(query, inputOrderID);
 
                               // Output Total Price
-                              query = String.format("SELECT total FROM Orders WHERE orderid = '%d'", inputOrderID);
-                              queryResults = esql.executeQueryAndReturnResult(query);
-                              totalPrice = Float.valueOf(queryResults.get(0).get(0)).floatValue();         // Get item price as string
+                              totalPrice = esql.getOrderTotal(inputOrderID);
                               System.out.println(String.format("Total price: $%.2f\n", totalPrice));
 
                               break;
@@ -1084,8 +2180,8 @@ public class Cafe {
                               wantToAdd = true;
                               // Output current order
                               System.out.println(String.format("\nOrder %d's Itemized List:\n-------------------------", inputOrderID));
-                              query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d'", inputOrderID);
-                              esql.executeQueryAndPrintResult(query);
+                              query = "SELECT * FROM ItemStatus WHERE orderid = ?";
+                              esql.executeQueryAndPrintResult(query, inputOrderID);
 
 
                               // Ask for itemName
@@ -1097,18 +2193,15 @@ public class Cafe {
                                  // Output Menu Items
                                  System.out.println(String.format("\nMenu Items:\n-------------------------", inputOrderID));
                                  System.out.println("\nDrinks:\n-------------------------");
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Drinks'");
-                                 numRows = esql.executeQueryAndPrintResult(query);
+                                 numRows = printMenuItems(esql.getMenuCache().getByType("Drinks"));
                                  System.out.println(String.format("(%d items)", numRows));
 
                                  System.out.println("\nSweets:\n-------------------------");
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Sweets'");
-                                 numRows = esql.executeQueryAndPrintResult(query);
+                                 numRows = printMenuItems(esql.getMenuCache().getByType("Sweets"));
                                  System.out.println(String.format("(%d items)", numRows));
 
                                  System.out.println("\nSoup:\n-------------------------");
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Soup'");
-                                 numRows = esql.executeQueryAndPrintResult(query);
+                                 numRows = printMenuItems(esql.getMenuCache().getByType("Soup"));
                                  System.out.println(String.format("(%d items)", numRows));
 
                                  System.out.print("\nPlease type the item name you would like to add or type 'DONE': ");
@@ -1117,9 +2210,9 @@ public class Cafe {
                               }
 
                               // Get item name, make sure it's valid
-                              query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                              queryResults = esql.executeQueryAndReturnResult(query);
-                              while ((queryResults.size() == 0) && wantToAdd) {
+                              menuItem = esql.getMenuCache().get(itemToUpdate);
+                              while ((menuItem == null) && wantToAdd) {
+                                 printSuggestions(esql, itemToUpdate);
                                  System.out.print("Item not found, try again or type 'DONE': ");
                                  itemToUpdate = in.readLine();
                                  wantToAdd = checkExit(itemToUpdate);
@@ -1128,18 +2221,15 @@ public class Cafe {
                                     // Output Menu Items
                                     System.out.println(String.format("\nMenu Items:\n-------------------------", inputOrderID));
                                     System.out.println("\nDrinks:\n-------------------------");
-                                    query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Drinks'");
-                                    numRows = esql.executeQueryAndPrintResult(query);
+                                    numRows = printMenuItems(esql.getMenuCache().getByType("Drinks"));
                                     System.out.println(String.format("(%d items)", numRows));
 
                                     System.out.println("\nSweets:\n-------------------------");
-                                    query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Sweets'");
-                                    numRows = esql.executeQueryAndPrintResult(query);
+                                    numRows = printMenuItems(esql.getMenuCache().getByType("Sweets"));
                                     System.out.println(String.format("(%d items)", numRows));
 
                                     System.out.println("\nSoup:\n-------------------------");
-                                    query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Soup'");
-                                    numRows = esql.executeQueryAndPrintResult(query);
+                                    numRows = printMenuItems(esql.getMenuCache().getByType("Soup"));
                                     System.out.println(String.format("(%d items)", numRows));
 
                                     System.out.print("\nPlease type the item name you would like to add or type 'DONE': ");
@@ -1147,16 +2237,19 @@ public class Cafe {
                                     wantToAdd = checkExit(itemToUpdate);
                                  }
 
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
+                                 menuItem = esql.getMenuCache().get(itemToUpdate);
                               }
 
                               // Make sure item isn't a duplicate
-                              query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d' AND itemName = '%s'", inputOrderID, itemToUpdate);
-                              queryResults = esql.executeQueryAndReturnResult(query);
-                              numRows = esql.executeQuery(query);
-                              while ((queryResults.size() > 0) && wantToAdd) {
-                                 System.out.print("Item already added, try again or type 'DONE': ");
+                              query = "SELECT 1 FROM ItemStatus WHERE orderid = ? AND itemName = ?";
+                              boolean duplicate = menuItem != null && esql.exists(query, inputOrderID, menuItem.getName());
+                              while (((menuItem == null) || duplicate) && wantToAdd) {
+                                 if (menuItem == null) {
+                                    printSuggestions(esql, itemToUpdate);
+                                    System.out.print("Item not found, try again or type 'DONE': ");
+                                 } else {
+                                    System.out.print("Item already added, try again or type 'DONE': ");
+                                 }
                                  itemToUpdate = in.readLine();
                                  wantToAdd = checkExit(itemToUpdate);
 
@@ -1164,18 +2257,15 @@ public class Cafe {
                                     // Output Menu Items
                                     System.out.println(String.format("\nMenu Items:\n-------------------------", inputOrderID));
                                     System.out.println("\nDrinks:\n-------------------------");
-                                    query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Drinks'");
-                                    numRows = esql.executeQueryAndPrintResult(query);
+                                    numRows = printMenuItems(esql.getMenuCache().getByType("Drinks"));
                                     System.out.println(String.format("(%d items)", numRows));
 
                                     System.out.println("\nSweets:\n-------------------------");
-                                    query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Sweets'");
-                                    numRows = esql.executeQueryAndPrintResult(query);
+                                    numRows = printMenuItems(esql.getMenuCache().getByType("Sweets"));
                                     System.out.println(String.format("(%d items)", numRows));
 
                                     System.out.println("\nSoup:\n-------------------------");
-                                    query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.type = 'Soup'");
-                                    numRows = esql.executeQueryAndPrintResult(query);
+                                    numRows = printMenuItems(esql.getMenuCache().getByType("Soup"));
                                     System.out.println(String.format("(%d items)", numRows));
 
                                     System.out.print("\nPlease type the item name you would like to add or type 'DONE': ");
@@ -1183,8 +2273,8 @@ public class Cafe {
                                     wantToAdd = checkExit(itemToUpdate);
                                  }
 
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
+                                 menuItem = esql.getMenuCache().get(itemToUpdate);
+                                 duplicate = menuItem != null && esql.exists(query, inputOrderID, menuItem.getName());
                               }
 
                               // Comment for each item
@@ -1199,22 +2289,9 @@ public class Cafe {
                                     itemComment = "";
                                  }
 
-                                 query = String.format("INSERT INTO ItemStatus VALUES ('%d', '%s', 'now()', 'Hasn''t started', '%s')",
-                                       inputOrderID, itemToUpdate, itemComment);
-                                 esql.executeUpdate(query);
-
-                                 query = String.format("SELECT total FROM Orders WHERE orderid = '%d'", inputOrderID);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
-                                 totalPrice = Float.valueOf(queryResults.get(0).get(0)).floatValue();         // Get item price as string
-                                 // System.out.print(String.format("DEBUG: Total price: %f\n", totalPrice));
-
-                                 query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
-                                 itemPrice = Float.valueOf(queryResults.get(0).get(0)).floatValue();         // Get item price as string
-                                 // System.out.print(String.format("DEBUG: Item price: %f\n", itemPrice));
-
-                                 query = String.format("UPDATE Orders SET total = '%f' WHERE orderid = '%d'", totalPrice + itemPrice, inputOrderID);
-                                 esql.executeUpdate(query);
+                                 if (!esql.addOrderItem(inputOrderID, menuItem, itemComment)) {
+                                    System.out.println(String.format("\n'%s' is no longer on the menu.", menuItem.getName()));
+                                 }
                               }
                               else {
                                  System.out.println(String.format("Cancelling adding to orderid '%d'...", inputOrderID));
@@ -1230,8 +2307,8 @@ public class Cafe {
                            case 3:
                               wantToDelete = true;
                               System.out.println(String.format("\nOrder %d's Itemized List:\n-------------------------", inputOrderID));
-                              query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d'", inputOrderID);
-                              esql.executeQueryAndPrintResult(query);
+                              query = "SELECT * FROM ItemStatus WHERE orderid = ?";
+                              esql.executeQueryAndPrintResult(query, inputOrderID);
 
                               // Ask for itemName
                               System.out.print("Please type the item name you would like to delete or type 'DONE': ");
@@ -1239,46 +2316,32 @@ public class Cafe {
                               wantToDelete = checkExit(itemToUpdate);
 
                               // Get item name, make sure it's valid
-                              query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                              queryResults = esql.executeQueryAndReturnResult(query);
-                              while ((queryResults.size() == 0) && wantToDelete) {
+                              menuItem = esql.getMenuCache().get(itemToUpdate);
+                              while ((menuItem == null) && wantToDelete) {
                                  System.out.print("Item not found, try again or type 'DONE': ");
                                  itemToUpdate = in.readLine();
                                  wantToDelete = checkExit(itemToUpdate);
 
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
+                                 menuItem = esql.getMenuCache().get(itemToUpdate);
                               }
 
                               // Get item name, make sure it's valid
-                              query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                              queryResults = esql.executeQueryAndReturnResult(query);
-                              while ((queryResults.size() == 0) && wantToDelete) {
+                              menuItem = esql.getMenuCache().get(itemToUpdate);
+                              while ((menuItem == null) && wantToDelete) {
                                  System.out.print("Item not found, try again: ");
                                  itemToUpdate = in.readLine();
                                  wantToDelete = checkExit(itemToUpdate);
 
-                                 query = String.format("SELECT M.itemName AS Name, M.price AS Price, M.description AS Types FROM Menu M WHERE M.itemName = '%s'", itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
+                                 menuItem = esql.getMenuCache().get(itemToUpdate);
                               }
 
-                              if (queryResults.size() > 0 && wantToDelete) {
-                                 query = String.format("SELECT total FROM Orders WHERE orderid = '%d'", inputOrderID);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
-                                 totalPrice = Float.valueOf(queryResults.get(0).get(0)).floatValue();         // Get item price as string
-                                 // System.out.print(String.format("DEBUG: Total price: %f\n", totalPrice));
-
-                                 query = String.format("SELECT price FROM Menu WHERE itemName = '%s'", itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
-                                 itemPrice = Float.valueOf(queryResults.get(0).get(0)).floatValue();         // Get item price as string
-                                 // System.out.print(String.format("DEBUG: Item price: %f\n", itemPrice));
-
-                                 query = String.format("DELETE FROM ItemStatus WHERE orderid = '%d' AND itemName = '%s'", inputOrderID, itemToUpdate);
-                                 esql.executeUpdate(query);
-
-                                 query = String.format("UPDATE Orders SET total = '%f' WHERE orderid = '%d'", totalPrice - itemPrice, inputOrderID);
-                                 esql.executeUpdate(query);
-                                 System.out.println("\nItem successfully deleted.");
+                              if (menuItem != null && wantToDelete) {
+                                 if (esql.removeOrderItem(inputOrderID, menuItem)) {
+                                    System.out.println("\nItem successfully deleted.");
+                                 }
+                                 else {
+                                    System.out.println(String.format("\n'%s' is not on orderid '%d'.", menuItem.getName(), inputOrderID));
+                                 }
                               }
                               else {
                                  System.out.println(String.format("Cancelling deleting from orderid '%d'...", inputOrderID));
@@ -1288,8 +2351,8 @@ public class Cafe {
                               // Output current order
                               wantToUpdate = true;
                               System.out.println(String.format("\nOrder %d's Itemized List:\n-------------------------", inputOrderID));
-                              query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d'", inputOrderID);
-                              esql.executeQueryAndPrintResult(query);
+                              query = "SELECT * FROM ItemStatus WHERE orderid = ?";
+                              esql.executeQueryAndPrintResult(query, inputOrderID);
 
                               // Ask for itemName
                               System.out.print("Please type the item name you would like to update or type 'DONE': ");
@@ -1297,18 +2360,17 @@ public class Cafe {
                               wantToUpdate = checkExit(itemToUpdate);
 
                               // Get item name, make sure it's valid
-                              query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d' AND itemName = '%s'", inputOrderID, itemToUpdate);
-                              queryResults = esql.executeQueryAndReturnResult(query);
-                              while ((queryResults.size() == 0) && wantToUpdate) {
+                              query = "SELECT 1 FROM ItemStatus WHERE orderid = ? AND itemName = ?";
+                              boolean onOrder = esql.exists(query, inputOrderID, itemToUpdate.trim());
+                              while (!onOrder && wantToUpdate) {
                                  System.out.print("Item not found in order, try again or type 'DONE': ");
                                  itemToUpdate = in.readLine();
                                  wantToUpdate = checkExit(itemToUpdate);
 
-                                 query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%d' AND itemName = '%s'", inputOrderID, itemToUpdate);
-                                 queryResults = esql.executeQueryAndReturnResult(query);
+                                 onOrder = esql.exists(query, inputOrderID, itemToUpdate.trim());
                               }
 
-                              if ((queryResults.size() > 0) && wantToUpdate) {
+                              if (onOrder && wantToUpdate) {
                                  System.out.print("Enter item comments, or 'None' (Note: The comment will be replaced.): ");
                                  itemComment = in.readLine();
 
@@ -1321,8 +2383,7 @@ public class Cafe {
                                     itemComment = "";
                                  }
 
-                                 query = String.format("UPDATE ItemStatus SET comments = '%s' WHERE orderid = '%d' AND itemName = '%s'", itemComment, inputOrderID, itemToUpdate);
-                                 esql.executeUpdate(query);
+                                 esql.updateItemComment(inputOrderID, itemToUpdate.trim(), itemComment);
 
                                  System.out.println("\nItem's comment has been updated!");
                               }
@@ -1334,8 +2395,7 @@ public class Cafe {
                                  System.out.println("Unrecognized choice!");
                               }
                               else {
-                                 String updatePaidQuery = String.format("UPDATE Orders SET paid = 'true' WHERE orderid = '%d'", inputOrderID);
-                                 esql.executeUpdate(updatePaidQuery);
+                                 esql.markOrderPaid(inputOrderID);
                                  // FIX: change this to be outputing which order was updated
                                  System.out.println(String.format("\nOrderid '%d' marked as paid!", inputOrderID));
                               }
@@ -1349,6 +2409,8 @@ public class Cafe {
                         }
                      }
                   }
+                  // totals may have changed, start again from the newest orders
+                  page = history.first();
                   break;
                case 2:
                   orderMenu = true;
@@ -1357,54 +2419,28 @@ public class Cafe {
                   inputOrderString = in.readLine();
                   inputOrderID = Integer.parseInt(inputOrderString);
 
-                  // Check if order exists
-                  query = String.format("SELECT * FROM Orders WHERE orderid = '%d'", inputOrderID);
-                  numRows = esql.executeQuery(query);
+                  // Check if order exists and may be deleted; waits for an order still being stored
+                  String deleteDenied = esql.checkOrderAccess(authorizedUser, isManager, inputOrderID);
                   wantToChange = checkExit(inputOrderString);
-                  while (numRows <= 0 && wantToChange) {
-                     System.out.println(String.format("Orderid '%d' not found.", inputOrderID));
+                  while (deleteDenied != null && wantToChange) {
+                     System.out.println(deleteDenied);
                      System.out.print("\nPlease re-enter the orderID of the order you are deleting or type 'DONE' to exit: ");
 
                      inputOrderString = in.readLine();
                      inputOrderID = Integer.parseInt(inputOrderString);
                      wantToChange = checkExit(inputOrderString);
 
-                     query = String.format("SELECT * FROM Orders WHERE orderid = '%d'", inputOrderID);
-                     numRows = esql.executeQuery(query);
-                  }
-
-                  // OrderID Exists
-                  if (numRows > 0) {
-                     if (!isManager) {
-                        // Check if it is their own order
-                        query = String.format("SELECT * FROM Orders WHERE login = '%s' AND orderid = '%d'", authorizedUser, inputOrderID);
-                        numRows = esql.executeQuery(query);
-                        if (numRows <= 0) {
-                           System.out.println(String.format("Not authorized to change orderid '%d'.", inputOrderID));
-                        }
-                        else {
-                           // Check if paid for
-                           query = String.format("SELECT * FROM Orders WHERE login = '%s' AND orderid = '%d' AND paid = false", authorizedUser, inputOrderID);
-                           numRows = esql.executeQuery(query);
-                           if (numRows <= 0) {
-                              System.out.println(String.format("Orderid '%d' already paid for. Cannot change order.", inputOrderID));
-                           }
-                           else {
-                              isAuthorized = true;
-                           }
-                        }
-                     }
+                     deleteDenied = esql.checkOrderAccess(authorizedUser, isManager, inputOrderID);
                   }
+                  isAuthorized = deleteDenied == null;
 
                   if (isAuthorized) {
                      System.out.print(String.format("\nAre you sure you want to delete orderid '%d' (Y/N): ", inputOrderID));
                      inputOrderString = in.readLine();
                      if (inputOrderString.equals("Yes") || inputOrderString.equals("yes") || inputOrderString.equals("Y") || inputOrderString.equals("y")) {
-                        String deletionUpdate = String.format("DELETE FROM ItemStatus WHERE orderid = '%d'", inputOrderID);
-                        esql.executeUpdate(deletionUpdate);
-                        deletionUpdate = String.format("DELETE FROM Orders WHERE orderid = '%d'", inputOrderID);
-                        esql.executeUpdate(deletionUpdate);
+                        esql.deleteOrder(inputOrderID);
                         System.out.println(String.format("\nDeleted orderid '%d' successfully.", inputOrderID));
+                        page = history.first();
                      }
                      else {
                         System.out.print(String.format("\nCancelling deletion of orderid '%d'...", inputOrderID));
@@ -1416,9 +2452,47 @@ public class Cafe {
                      System.out.println("Unrecognized choice!");
                   }
                   else {
-                     query = String.format("SELECT * FROM Orders WHERE timeStampRecieved > (SELECT NOW()- interval '1 day') ORDER BY timestamprecieved DESC");
-                     numRows = esql.executeQueryAndPrintResult(query);
-                     System.out.println(String.format("(%d items)", numRows));
+                     OrderHistory lastDay = OrderHistory.lastDay(esql, MANAGER_PAGE_SIZE);
+                     List<Order> dayPage = lastDay.first();
+                     boolean paging = true;
+                     while (paging) {
+                        System.out.println(String.format("\nAll Orders Within 24 Hours (page %d):\n-------------------------", lastDay.getPageNumber()));
+                        numRows = printOrders(dayPage);
+                        System.out.println(String.format("(%d items)", numRows));
+                        if (!lastDay.hasNext() && !lastDay.hasPrevious()) {
+                           break;
+                        }
+
+                        System.out.print(String.format("\n%s%sor 'DONE': ",
+                              lastDay.hasNext() ? "Type 'N' for older orders, " : "",
+                              lastDay.hasPrevious() ? "Type 'P' for newer orders, " : ""));
+                        String navigation = in.readLine().trim();
+                        if (navigation.equalsIgnoreCase("N") && lastDay.hasNext()) {
+                           dayPage = lastDay.next();
+                        }
+                        else if (navigation.equalsIgnoreCase("P") && lastDay.hasPrevious()) {
+                           dayPage = lastDay.previous();
+                        }
+                        else {
+                           paging = checkExit(navigation);
+                        }
+                     }
+                  }
+                  break;
+               case 4:
+                  if (!history.hasNext()) {
+                     System.out.println("Unrecognized choice!");
+                  }
+                  else {
+                     page = history.next();
+                  }
+                  break;
+               case 5:
+                  if (!history.hasPrevious()) {
+                     System.out.println("Unrecognized choice!");
+                  }
+                  else {
+                     page = history.previous();
                   }
                   break;
                case 9:
@@ -1434,4 +2508,47 @@ public class Cafe {
       }
    }
 
+   /*
+    * Managers can view revenue, orders and average ticket per hour and per
+    * day, and the best selling items, all read from the sales rollups.
+    */
+   public static void SalesDashboard(Cafe esql) {
+      try {
+         List<SalesBucket> hours = esql.getHourlySales(DASHBOARD_HOURS);
+         System.out.println(String.format("\nSales in the Last %d Hours:\n-------------------------", DASHBOARD_HOURS));
+         printSales(hours, "yyyy-MM-dd HH:00");
+         SalesBucket total = SalesBucket.sum(null, hours);
+         System.out.println(String.format("Total: %d orders, $%.2f revenue, $%.2f average ticket, $%.2f paid",
+               total.getOrders(), total.getRevenue(), total.getAverageTicket(), total.getPaidRevenue()));
+
+         System.out.println(String.format("\nSales in the Last %d Days:\n-------------------------", DASHBOARD_DAYS));
+         printSales(esql.getDailySales(DASHBOARD_DAYS), "yyyy-MM-dd");
+
+         System.out.println(String.format("\nTop %d Items in the Last %d Days:\n-------------------------",
+               DASHBOARD_TOP_ITEMS, DASHBOARD_ITEM_DAYS));
+         List<ItemSales> items = esql.getTopItems(DASHBOARD_ITEM_DAYS, DASHBOARD_TOP_ITEMS);
+         if (items.isEmpty()) {
+            System.out.println("No items sold.");
+         }
+         for (ItemSales item : items) {
+            System.out.println(String.format("%-30s %6d", item.getItemName(), item.getUnits()));
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   private static void printSales(List<SalesBucket> buckets, String period) {
+      if (buckets.isEmpty()) {
+         System.out.println("No orders.");
+         return;
+      }
+      SimpleDateFormat format = new SimpleDateFormat(period);
+      System.out.println(String.format("%-16s %7s %10s %10s %10s", "period", "orders", "revenue", "avg", "paid"));
+      for (SalesBucket bucket : buckets) {
+         System.out.println(String.format("%-16s %7d %10.2f %10.2f %10.2f", format.format(bucket.getStart()),
+               bucket.getOrders(), bucket.getRevenue(), bucket.getAverageTicket(), bucket.getPaidRevenue()));
+      }
+   }
+
 }// end Cafe
\ No newline at end of file
@@ -0,0 +1,369 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark harness for the Cafe data-access layer, modelled on JMH: every
+ * benchmark runs a number of timed warmup iterations followed by timed
+ * measurement iterations, once for each combination of dataset size and
+ * thread count, and the score is reported as mean throughput and average
+ * time per operation with the spread across iterations.
+ *
+ * The dataset size is the number of orders held by a dedicated benchmark
+ * user (created if missing); orders are topped up before each size is run
+ * and removed again at the end.
+ *
+ * Options:
+ *    -wi N            warmup iterations (default 3)
+ *    -i N             measurement iterations (default 5)
+ *    -r S             seconds per iteration (default 2)
+ *    -t N[,N...]      thread counts (default 1)
+ *    -p orders=N[,N]  dataset sizes (default 1000)
+ *    [regex]          only run benchmarks whose name matches
+ */
+public class CafeBench {
+
+   // Login owning every order the benchmark creates.
+   private static final String BENCH_USER = "cafebench";
+
+   /*
+    * One benchmarked operation. Implementations must be thread safe.
+    */
+   private static abstract class Benchmark {
+      final String name;
+
+      Benchmark(String name) {
+         this.name = name;
+      }
+
+      abstract void run(Random random) throws SQLException;
+   }// end Benchmark
+
+   /*
+    * Operations and elapsed time of one iteration, summed over threads.
+    */
+   private static class Result {
+      long ops = 0;
+      long nanos = 0;
+      long errors = 0;
+   }// end Result
+
+   private final Cafe _esql;
+   private final PrintStream _out;
+   private final List<Benchmark> _benchmarks = new ArrayList<Benchmark>();
+
+   // Order ids of the benchmark user's seeded orders.
+   private volatile int[] _orderids = new int[0];
+
+   /**
+    * Creates the benchmark suite
+    *
+    * @param esql the Cafe being measured
+    * @param out where the report is written
+    */
+   public CafeBench(Cafe esql, PrintStream out) {
+      this._esql = esql;
+      this._out = out;
+
+      this._benchmarks.add(new Benchmark("executeQuery") {
+         void run(Random random) throws SQLException {
+            CafeBench.this._esql.executeQuery("SELECT * FROM Orders WHERE login = ?", BENCH_USER);
+         }
+      });
+      this._benchmarks.add(new Benchmark("executeQueryAndReturnResult") {
+         void run(Random random) throws SQLException {
+            CafeBench.this._esql.executeQueryAndReturnResult(
+                  "SELECT * FROM Orders WHERE login = ? ORDER BY timestamprecieved DESC LIMIT 5", BENCH_USER);
+         }
+      });
+      this._benchmarks.add(new Benchmark("executeUpdate") {
+         void run(Random random) throws SQLException {
+            CafeBench.this._esql.executeUpdate("UPDATE Orders SET paid = ? WHERE orderid = ?",
+                  random.nextBoolean(), randomOrder(random));
+         }
+      });
+      this._benchmarks.add(new Benchmark("getNextSeqVal") {
+         void run(Random random) throws SQLException {
+            CafeBench.this._esql.getNextSeqVal("orders_orderid_seq");
+         }
+      });
+      this._benchmarks.add(new Benchmark("login") {
+         void run(Random random) throws SQLException {
+            CafeBench.this._esql.logIn(BENCH_USER, BENCH_USER);
+         }
+      });
+      this._benchmarks.add(new Benchmark("menuRender") {
+         void run(Random random) throws SQLException {
+            MenuCache menu = CafeBench.this._esql.getMenuCache();
+            Cafe.printMenuItems(menu.getByType("Drinks"));
+            Cafe.printMenuItems(menu.getByType("Sweets"));
+            Cafe.printMenuItems(menu.getByType("Soup"));
+         }
+      });
+      this._benchmarks.add(new Benchmark("placeOrder") {
+         void run(Random random) throws SQLException {
+            List<MenuItem> menu = CafeBench.this._esql.getMenuCache().getAll();
+            MenuItem item = menu.get(random.nextInt(menu.size()));
+            CafeBench.this._esql.placeOrder(BENCH_USER, Arrays.asList(item.getName()), Arrays.asList(""));
+         }
+      });
+   }// end CafeBench
+
+   /**
+    * Runs every matching benchmark for every dataset size and thread count.
+    *
+    * @throws java.lang.Exception when the dataset cannot be prepared
+    */
+   public void runAll(Pattern filter, int[] sizes, int[] threadCounts, int warmups, int iterations, int seconds)
+         throws Exception {
+      List<String> summary = new ArrayList<String>();
+      setUp();
+      try {
+         for (int size : sizes) {
+            seed(size);
+            for (Benchmark benchmark : this._benchmarks) {
+               if (!filter.matcher(benchmark.name).find()) {
+                  continue;
+               }
+               for (int threads : threadCounts) {
+                  summary.add(measure(benchmark, size, threads, warmups, iterations, seconds));
+               }
+            }
+         }
+      } finally {
+         tearDown();
+      }
+
+      this._out.println(String.format("\n%-28s %8s %7s %14s %10s %14s %8s",
+            "Benchmark", "orders", "threads", "ops/s", "error", "us/op", "errors"));
+      for (String line : summary) {
+         this._out.println(line);
+      }
+   }// end runAll
+
+   /*
+    * Runs the warmup and measurement iterations of one benchmark and
+    * returns its summary line.
+    */
+   private String measure(Benchmark benchmark, int size, int threads, int warmups, int iterations, int seconds)
+         throws InterruptedException {
+      this._out.println(String.format("\n# Benchmark: %s, orders = %d, threads = %d", benchmark.name, size, threads));
+      for (int i = 1; i <= warmups; ++i) {
+         Result r = iterate(benchmark, threads, seconds);
+         this._out.println(String.format("# Warmup Iteration %2d: %.1f ops/s", i, r.ops / (double) seconds));
+      }
+      double[] throughput = new double[iterations];
+      long ops = 0;
+      long nanos = 0;
+      long errors = 0;
+      for (int i = 0; i < iterations; ++i) {
+         Result r = iterate(benchmark, threads, seconds);
+         throughput[i] = r.ops / (double) seconds;
+         ops += r.ops;
+         nanos += r.nanos;
+         errors += r.errors;
+         this._out.println(String.format("Iteration %2d: %.1f ops/s", i + 1, throughput[i]));
+      }
+
+      double mean = 0.0;
+      for (double t : throughput) {
+         mean += t;
+      }
+      mean /= iterations;
+      double variance = 0.0;
+      for (double t : throughput) {
+         variance += (t - mean) * (t - mean);
+      }
+      double stddev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0.0;
+      double avgMicros = ops == 0 ? 0.0 : nanos / (double) ops / 1e3;
+
+      return String.format("%-28s %8d %7d %14.1f %10.1f %14.3f %8d",
+            benchmark.name, size, threads, mean, stddev, avgMicros, errors);
+   }// end measure
+
+   /*
+    * Runs one benchmark on the given number of threads for the given time.
+    */
+   private Result iterate(final Benchmark benchmark, int threads, int seconds) throws InterruptedException {
+      final Result[] results = new Result[threads];
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      final AtomicBoolean running = new AtomicBoolean(true);
+      for (int t = 0; t < threads; ++t) {
+         final int worker = t;
+         Thread thread = new Thread("cafe-bench-" + t) {
+            public void run() {
+               Random random = new Random(worker * 31L + System.nanoTime());
+               Result result = new Result();
+               try {
+                  start.await();
+                  while (running.get()) {
+                     long begin = System.nanoTime();
+                     try {
+                        benchmark.run(random);
+                        ++result.ops;
+                     } catch (SQLException e) {
+                        ++result.errors;
+                     }
+                     result.nanos += System.nanoTime() - begin;
+                  }
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               } finally {
+                  results[worker] = result;
+                  done.countDown();
+               }
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      start.countDown();
+      Thread.sleep(seconds * 1000L);
+      running.set(false);
+      done.await();
+
+      Result total = new Result();
+      for (Result r : results) {
+         total.ops += r.ops;
+         total.nanos += r.nanos;
+         total.errors += r.errors;
+      }
+      return total;
+   }// end iterate
+
+   private int randomOrder(Random random) {
+      int[] orderids = this._orderids;
+      return orderids.length == 0 ? -1 : orderids[random.nextInt(orderids.length)];
+   }
+
+   /*
+    * Creates the benchmark user if missing.
+    */
+   private void setUp() throws SQLException {
+      if (!this._esql.exists("SELECT 1 FROM Users WHERE login = ?", BENCH_USER)) {
+         this._esql.executeUpdate("INSERT INTO Users (login, password, favItems, type) VALUES (?, ?, '', 'Customer')",
+               BENCH_USER, BENCH_USER);
+      }
+   }
+
+   /*
+    * Tops the benchmark user's orders up to the given count.
+    */
+   private void seed(int size) throws SQLException {
+      int existing = this._esql.count("SELECT 1 FROM Orders WHERE login = ?", BENCH_USER);
+      if (existing < size) {
+         this._esql.executeUpdate(
+               "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+               "SELECT ?, true, now() - G.n * interval '1 minute', 0 FROM generate_series(1, ?) AS G (n)",
+               BENCH_USER, size - existing);
+      }
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult(
+            "SELECT orderid FROM Orders WHERE login = ? ORDER BY orderid LIMIT ?", BENCH_USER, size);
+      int[] orderids = new int[rows.size()];
+      for (int i = 0; i < orderids.length; ++i) {
+         orderids[i] = Integer.parseInt(rows.get(i).get(0).trim());
+      }
+      this._orderids = orderids;
+      this._out.println(String.format("\n# Dataset: %d orders for '%s'", orderids.length, BENCH_USER));
+   }// end seed
+
+   /*
+    * Removes every order and item the benchmark created.
+    */
+   private void tearDown() throws SQLException {
+      this._esql.executeUpdate(
+            "DELETE FROM ItemStatus WHERE orderid IN (SELECT orderid FROM Orders WHERE login = ?)", BENCH_USER);
+      this._esql.executeUpdate("DELETE FROM Orders WHERE login = ?", BENCH_USER);
+   }
+
+   private static int[] parseInts(String list) {
+      String[] parts = list.split(",");
+      int[] values = new int[parts.length];
+      for (int i = 0; i < parts.length; ++i) {
+         values[i] = Integer.parseInt(parts[i].trim());
+      }
+      return values;
+   }
+
+   /**
+    * The benchmark entry point
+    * @param args <dbname> <port> <user> [-wi N] [-i N] [-r S] [-t N,...] [-p orders=N,...] [regex]
+    */
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     CafeBench.class.getName() +
+                     " <dbname> <port> <user> [-wi N] [-i N] [-r S] [-t N,...] [-p orders=N,...] [regex]");
+         return;
+      } // end if
+
+      PrintStream out = System.out;
+      Cafe esql = null;
+      try {
+         int warmups = 3;
+         int iterations = 5;
+         int seconds = 2;
+         int[] threadCounts = { 1 };
+         int[] sizes = { 1000 };
+         Pattern filter = Pattern.compile("");
+         for (int i = 3; i < args.length; ++i) {
+            if (args[i].equals("-wi")) {
+               warmups = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-i")) {
+               iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-r")) {
+               seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-t")) {
+               threadCounts = parseInts(args[++i]);
+            } else if (args[i].equals("-p") && args[i + 1].startsWith("orders=")) {
+               sizes = parseInts(args[++i].substring("orders=".length()));
+            } else {
+               filter = Pattern.compile(args[i]);
+            }
+         }
+
+         // one connection per benchmark thread unless the pool size was set
+         // explicitly; read once when Cafe is first loaded
+         if (System.getProperty("cafe.pool.max") == null) {
+            int maxThreads = 1;
+            for (int threads : threadCounts) {
+               maxThreads = Math.max(maxThreads, threads);
+            }
+            System.setProperty("cafe.pool.max", String.valueOf(maxThreads));
+         }
+
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver").newInstance();
+         esql = new Cafe(args[0], args[1], args[2], "");
+
+         // menuRender prints the menu; keep it off the report
+         System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+         }));
+         new CafeBench(esql, out).runAll(filter, sizes, threadCounts, warmups, iterations, seconds);
+         out.println("\n" + esql.getPoolStats());
+      } catch (Exception e) {
+         System.err.println("Benchmark failed: " + e.getMessage());
+      } finally {
+         System.setOut(out);
+         if (esql != null) {
+            esql.cleanup();
+         }
+      }
+   }// end main
+
+}// end CafeBench
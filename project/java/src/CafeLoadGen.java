@@ -0,0 +1,409 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Workload generator. Runs N simulated customers and managers against a
+ * local database for a fixed time, each picking operations from a weighted
+ * mix, and reports throughput and p50/p95/p99 latency per operation.
+ *
+ * Logins come from users.csv and items from menu.csv in the data
+ * directory, so the database should be loaded from the same files.
+ *
+ * Operations:
+ *    browse   log in, list the menu and look up a few items
+ *    order    log in and place an order of 1 to 4 items
+ *    update   add an item to one of the user's unpaid orders, comment on it
+ *             and remove it again
+ *    manager  list the last 24 hours of orders and mark one as paid
+ *
+ * With -Dcafe.loadgen.intake=true orders go through the write-behind
+ * order intake instead of being written synchronously, so order latency
+ * is the time to be acknowledged. The intake is drained, and its batch
+ * counts printed, before the report.
+ *
+ * The mix is either a preset, "browse-heavy" or "order-heavy", or a list
+ * of weights such as "browse=60,order=25,update=10,manager=5".
+ */
+public class CafeLoadGen {
+
+   private static final String[] OPERATIONS = { "browse", "order", "update", "manager" };
+   private static final int BROWSE = 0;
+   private static final int ORDER = 1;
+   private static final int UPDATE = 2;
+   private static final int MANAGER = 3;
+
+   private static final String BROWSE_HEAVY = "browse=70,order=15,update=10,manager=5";
+   private static final String ORDER_HEAVY = "browse=20,order=55,update=20,manager=5";
+
+   // Whether orders are placed through the write-behind intake queue.
+   private static final boolean USE_INTAKE = Boolean.getBoolean("cafe.loadgen.intake");
+
+   /*
+    * Latency samples of one operation, recorded by a single worker.
+    */
+   private static class Samples {
+      long[] nanos = new long[1024];
+      int size = 0;
+      long errors = 0;
+
+      void add(long value) {
+         if (this.size == this.nanos.length) {
+            this.nanos = Arrays.copyOf(this.nanos, this.size * 2);
+         }
+         this.nanos[this.size++] = value;
+      }
+
+      void addAll(Samples other) {
+         for (int i = 0; i < other.size; ++i) {
+            add(other.nanos[i]);
+         }
+         this.errors += other.errors;
+      }
+   }// end Samples
+
+   /*
+    * A user from users.csv.
+    */
+   private static class User {
+      final String login;
+      final String password;
+      final boolean manager;
+
+      User(String login, String password, boolean manager) {
+         this.login = login;
+         this.password = password;
+         this.manager = manager;
+      }
+   }// end User
+
+   private final Cafe _esql;
+   private final List<User> _customers;
+   private final List<User> _managers;
+   private final List<String> _items;
+   private final int[] _weights;
+   private final int _totalWeight;
+
+   /**
+    * Creates a new load generator
+    *
+    * @param esql the Cafe the operations run against
+    * @param dataDir the directory holding users.csv and menu.csv
+    * @param mix a preset name or a list of operation weights
+    * @throws java.io.IOException when the data files cannot be read
+    */
+   public CafeLoadGen(Cafe esql, File dataDir, String mix) throws IOException {
+      this._esql = esql;
+      this._customers = new ArrayList<User>();
+      this._managers = new ArrayList<User>();
+      for (String[] fields : readData(new File(dataDir, "users.csv"))) {
+         User user = new User(fields[0].trim(), fields[2].trim(), fields[4].trim().equals("Manager"));
+         (user.manager ? this._managers : this._customers).add(user);
+      }
+      this._items = new ArrayList<String>();
+      for (String[] fields : readData(new File(dataDir, "menu.csv"))) {
+         this._items.add(fields[0].trim());
+      }
+      if (this._customers.isEmpty() || this._items.isEmpty()) {
+         throw new IOException("users.csv and menu.csv must not be empty");
+      }
+
+      this._weights = parseMix(mix);
+      if (this._managers.isEmpty()) {
+         this._weights[MANAGER] = 0;
+      }
+      int total = 0;
+      for (int weight : this._weights) {
+         total += weight;
+      }
+      if (total == 0) {
+         throw new IllegalArgumentException("Mix has no operations: " + mix);
+      }
+      this._totalWeight = total;
+   }// end CafeLoadGen
+
+   /**
+    * Runs the workload and prints a report.
+    *
+    * @param threads number of concurrent simulated users
+    * @param seconds how long to run
+    * @throws java.lang.InterruptedException when interrupted while waiting for the workers
+    */
+   public void run(int threads, int seconds) throws InterruptedException {
+      final Samples[][] results = new Samples[threads][];
+      final CountDownLatch done = new CountDownLatch(threads);
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; ++t) {
+         final int worker = t;
+         Thread thread = new Thread("cafe-loadgen-" + t) {
+            public void run() {
+               try {
+                  results[worker] = work(new Random(worker * 7919L + System.nanoTime()), deadline);
+               } finally {
+                  done.countDown();
+               }
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      done.await();
+      double elapsed = (System.nanoTime() - start) / 1e9;
+
+      Samples[] merged = new Samples[OPERATIONS.length];
+      for (int op = 0; op < OPERATIONS.length; ++op) {
+         merged[op] = new Samples();
+         for (Samples[] worker : results) {
+            if (worker != null) {
+               merged[op].addAll(worker[op]);
+            }
+         }
+      }
+      report(merged, threads, elapsed);
+   }// end run
+
+   /*
+    * One simulated user: picks operations until the deadline.
+    */
+   private Samples[] work(Random random, long deadline) {
+      Samples[] samples = new Samples[OPERATIONS.length];
+      for (int op = 0; op < OPERATIONS.length; ++op) {
+         samples[op] = new Samples();
+      }
+      while (System.nanoTime() < deadline) {
+         int op = pick(random);
+         long start = System.nanoTime();
+         try {
+            switch (op) {
+               case BROWSE:
+                  browse(random);
+                  break;
+               case ORDER:
+                  order(random);
+                  break;
+               case UPDATE:
+                  update(random);
+                  break;
+               default:
+                  manager(random);
+                  break;
+            }
+            samples[op].add(System.nanoTime() - start);
+         } catch (SQLException e) {
+            ++samples[op].errors;
+         }
+      }
+      return samples;
+   }// end work
+
+   private void browse(Random random) throws SQLException {
+      User user = pickUser(this._customers, random);
+      this._esql.logIn(user.login, user.password);
+      MenuCache menu = this._esql.getMenuCache();
+      menu.getAll();
+      for (int i = 0; i < 3; ++i) {
+         menu.get(pickItem(random));
+      }
+   }
+
+   private void order(Random random) throws SQLException {
+      User user = pickUser(this._customers, random);
+      this._esql.logIn(user.login, user.password);
+      List<String> names = new ArrayList<String>();
+      List<String> comments = new ArrayList<String>();
+      int count = 1 + random.nextInt(4);
+      for (int i = 0; i < count; ++i) {
+         MenuItem item = this._esql.getMenuCache().get(pickItem(random));
+         if (item != null && !names.contains(item.getName())) {
+            names.add(item.getName());
+            comments.add("");
+         }
+      }
+      if (names.isEmpty()) {
+         return;
+      }
+      if (USE_INTAKE) {
+         this._esql.getOrderIntake().submit(user.login, names, comments);
+      } else {
+         this._esql.placeOrder(user.login, names, comments);
+      }
+   }// end order
+
+   private void update(Random random) throws SQLException {
+      User user = pickUser(this._customers, random);
+      Order target = null;
+      for (Order order : OrderHistory.forUser(this._esql, user.login, 5).first()) {
+         if (!order.isPaid()) {
+            target = order;
+            break;
+         }
+      }
+      if (target == null) {
+         return;
+      }
+      MenuItem item = this._esql.getMenuCache().get(pickItem(random));
+      if (item == null || this._esql.checkOrderAccess(user.login, false, target.getOrderid()) != null) {
+         return;
+      }
+      if (this._esql.exists("SELECT 1 FROM ItemStatus WHERE orderid = ? AND itemName = ?", target.getOrderid(), item.getName())) {
+         return;
+      }
+      this._esql.addOrderItem(target.getOrderid(), item, "");
+      this._esql.updateItemComment(target.getOrderid(), item.getName(), "extra hot");
+      this._esql.removeOrderItem(target.getOrderid(), item);
+   }// end update
+
+   private void manager(Random random) throws SQLException {
+      User user = pickUser(this._managers, random);
+      this._esql.logIn(user.login, user.password);
+      List<Order> orders = OrderHistory.lastDay(this._esql, 20).first();
+      for (Order order : orders) {
+         if (!order.isPaid()) {
+            this._esql.markOrderPaid(order.getOrderid());
+            break;
+         }
+      }
+   }// end manager
+
+   private int pick(Random random) {
+      int r = random.nextInt(this._totalWeight);
+      for (int op = 0; op < this._weights.length; ++op) {
+         r -= this._weights[op];
+         if (r < 0) {
+            return op;
+         }
+      }
+      return BROWSE;
+   }
+
+   private static User pickUser(List<User> users, Random random) {
+      return users.get(random.nextInt(users.size()));
+   }
+
+   private String pickItem(Random random) {
+      return this._items.get(random.nextInt(this._items.size()));
+   }
+
+   private static void report(Samples[] samples, int threads, double elapsed) {
+      long total = 0;
+      System.out.println(String.format("\n%d threads, %.1f s", threads, elapsed));
+      System.out.println(String.format("%-8s %10s %10s %8s %10s %10s %10s %10s",
+            "op", "count", "ops/sec", "errors", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+      for (int op = 0; op < samples.length; ++op) {
+         Samples s = samples[op];
+         long[] sorted = Arrays.copyOf(s.nanos, s.size);
+         Arrays.sort(sorted);
+         total += s.size;
+         System.out.println(String.format("%-8s %10d %10.1f %8d %10.3f %10.3f %10.3f %10.3f",
+               OPERATIONS[op], s.size, s.size / elapsed, s.errors,
+               percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99),
+               percentile(sorted, 1.0)));
+      }
+      System.out.println(String.format("%-8s %10d %10.1f", "total", total, total / elapsed));
+   }// end report
+
+   /*
+    * Nearest-rank percentile of sorted nanosecond samples, in milliseconds.
+    */
+   private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0) {
+         return 0.0;
+      }
+      int rank = (int) Math.ceil(p * sorted.length);
+      return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)] / 1e6;
+   }
+
+   private static int[] parseMix(String mix) {
+      if (mix.equals("browse-heavy")) {
+         mix = BROWSE_HEAVY;
+      } else if (mix.equals("order-heavy")) {
+         mix = ORDER_HEAVY;
+      }
+      int[] weights = new int[OPERATIONS.length];
+      for (String part : mix.split(",")) {
+         String[] pair = part.split("=");
+         int op = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+         if (op < 0 || pair.length != 2) {
+            throw new IllegalArgumentException("Unknown mix entry: " + part);
+         }
+         weights[op] = Integer.parseInt(pair[1].trim());
+      }
+      return weights;
+   }// end parseMix
+
+   /*
+    * Reads a ';'-delimited data file.
+    */
+   private static List<String[]> readData(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.length() > 0) {
+               rows.add(line.split(";", -1));
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      return rows;
+   }// end readData
+
+   /**
+    * The load generator entry point
+    * @param args <dbname> <port> <user> <data dir> [threads] [seconds] [mix]
+    */
+   public static void main(String[] args) {
+      if (args.length < 4 || args.length > 7) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     CafeLoadGen.class.getName() +
+                     " <dbname> <port> <user> <data dir> [threads] [seconds] [browse-heavy|order-heavy|browse=N,order=N,update=N,manager=N]");
+         return;
+      } // end if
+
+      Cafe esql = null;
+      try {
+         int threads = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+         int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+         String mix = args.length > 6 ? args[6] : "browse-heavy";
+
+         // one connection per simulated user unless the pool size was set
+         // explicitly; read once when Cafe is first loaded
+         if (System.getProperty("cafe.pool.max") == null) {
+            System.setProperty("cafe.pool.max", String.valueOf(threads));
+         }
+
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver").newInstance();
+         esql = new Cafe(args[0], args[1], args[2], "");
+         CafeLoadGen loadGen = new CafeLoadGen(esql, new File(args[3]), mix);
+         System.out.println(String.format("Running %d threads for %d s, mix %s", threads, seconds, mix));
+         loadGen.run(threads, seconds);
+         if (USE_INTAKE) {
+            esql.getOrderIntake().close(60000L);
+            System.out.println("\n" + esql.getOrderIntake().getStats());
+         }
+         System.out.println("\n" + esql.getPoolStats());
+         System.out.println("\n" + esql.getMetrics().getReport());
+      } catch (Exception e) {
+         System.err.println("Load generation failed: " + e.getMessage());
+      } finally {
+         if (esql != null) {
+            esql.cleanup();
+         }
+      }
+   }// end main
+
+}// end CafeLoadGen
@@ -0,0 +1,327 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk loader for the ';'-delimited data files in project/data. Each table
+ * is loaded by its own worker on its own connection. When the JDBC driver
+ * on the classpath supports the COPY protocol (org.postgresql.copy) the
+ * file is streamed with COPY ... FROM STDIN; otherwise rows are sent as
+ * large JDBC batches.
+ *
+ * Menu, Users and Orders load in parallel; ItemStatus loads afterwards
+ * since it references both Orders and Menu. Its file has no order time,
+ * which ItemStatus is partitioned by, so it is loaded into a staging table
+ * and copied over joined with Orders.
+ */
+public class CafeLoader {
+
+   /*
+    * A data file and the table it loads into. casts holds, per column, the
+    * SQL type a text value must be cast to in the batch fallback (null
+    * when the column is text). prepare and finish, when set, run on the
+    * loading connection before and after the file is loaded.
+    */
+   private static class TableSpec {
+      final String table;
+      final String file;
+      final String[] casts;
+      String prepare = null;
+      String finish = null;
+
+      TableSpec(String table, String file, String... casts) {
+         this.table = table;
+         this.file = file;
+         this.casts = casts;
+      }
+
+      TableSpec staged(String prepare, String finish) {
+         this.prepare = prepare;
+         this.finish = finish;
+         return this;
+      }
+   }// end TableSpec
+
+   private static final TableSpec MENU =
+         new TableSpec("Menu", "menu.csv", null, null, "numeric", null, null);
+   private static final TableSpec USERS =
+         new TableSpec("Users", "users.csv", null, null, null, null, null);
+   private static final TableSpec ORDERS =
+         new TableSpec("Orders", "orders.csv", "integer", null, "boolean", "timestamp", "numeric");
+   private static final TableSpec ITEM_STATUS =
+         new TableSpec("ItemStatusLoad", "itemStatus.csv", "integer", null, "timestamp", "item_status", null).staged(
+               "CREATE TEMP TABLE ItemStatusLoad AS " +
+               "SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatus WITH NO DATA",
+               "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price) " +
+               "SELECT L.*, O.timeStampRecieved, M.price FROM ItemStatusLoad L JOIN Orders O ON O.orderid = L.orderid " +
+               "LEFT JOIN Menu M ON M.itemName = L.itemName");
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final File _dataDir;
+   private final int _batchSize;
+
+   public CafeLoader(String url, String user, String passwd, File dataDir, int batchSize) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._dataDir = dataDir;
+      this._batchSize = batchSize;
+   }// end CafeLoader
+
+   /**
+    * Loads every data file found in the data directory.
+    *
+    * @return the total number of rows loaded
+    * @throws Exception when a table fails to load
+    */
+   public long loadAll() throws Exception {
+      long start = System.nanoTime();
+      long rows = 0;
+      ExecutorService workers = Executors.newFixedThreadPool(3);
+      try {
+         List<Future<Long>> phase = new ArrayList<Future<Long>>();
+         phase.add(workers.submit(loader(MENU)));
+         phase.add(workers.submit(loader(USERS)));
+         phase.add(workers.submit(loader(ORDERS)));
+         rows += await(phase);
+
+         phase.clear();
+         phase.add(workers.submit(loader(ITEM_STATUS)));
+         rows += await(phase);
+      } finally {
+         workers.shutdown();
+      }
+      resetOrderSequence();
+      importFavItems();
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("Loaded %d rows in %.2f s (%.0f rows/sec)", rows, seconds, rows / seconds));
+      return rows;
+   }// end loadAll
+
+   private Callable<Long> loader(final TableSpec spec) {
+      return new Callable<Long>() {
+         public Long call() throws Exception {
+            return load(spec);
+         }
+      };
+   }
+
+   private static long await(List<Future<Long>> futures) throws Exception {
+      long rows = 0;
+      for (Future<Long> future : futures) {
+         try {
+            rows += future.get();
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : e;
+         }
+      }
+      return rows;
+   }
+
+   /*
+    * Loads one data file into its table and reports the rate.
+    */
+   private long load(TableSpec spec) throws IOException, SQLException {
+      File file = new File(this._dataDir, spec.file);
+      if (!file.isFile()) {
+         System.out.println(String.format("%-10s skipped, %s not found", spec.table, file.getPath()));
+         return 0;
+      }
+      long start = System.nanoTime();
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      try {
+         long rows;
+         String method;
+         if (spec.prepare != null) {
+            execute(conn, spec.prepare);
+         }
+         Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+         try {
+            rows = copyIn(conn, spec, reader);
+            method = "COPY";
+            if (rows < 0) {
+               rows = batchInsert(conn, spec, reader);
+               method = "batch";
+            }
+         } finally {
+            reader.close();
+         }
+         if (spec.finish != null) {
+            execute(conn, spec.finish);
+         }
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.println(String.format("%-10s %8d rows in %6.2f s (%.0f rows/sec, %s)",
+               spec.table, rows, seconds, rows / seconds, method));
+         return rows;
+      } finally {
+         conn.close();
+      }
+   }// end load
+
+   /*
+    * Streams the file through COPY FROM STDIN. Returns -1 without reading
+    * anything when the driver has no CopyManager.
+    */
+   private static long copyIn(Connection conn, TableSpec spec, Reader reader) throws SQLException, IOException {
+      Object copyManager;
+      Method copyInMethod;
+      try {
+         Class<?> baseConnection = Class.forName("org.postgresql.core.BaseConnection");
+         Class<?> managerClass = Class.forName("org.postgresql.copy.CopyManager");
+         Constructor<?> constructor = managerClass.getConstructor(baseConnection);
+         copyManager = constructor.newInstance(conn);
+         copyInMethod = managerClass.getMethod("copyIn", String.class, Reader.class);
+      } catch (Exception e) {
+         return -1;
+      }
+      try {
+         String sql = String.format("COPY %s FROM STDIN WITH DELIMITER ';'", spec.table);
+         return ((Long) copyInMethod.invoke(copyManager, sql, reader)).longValue();
+      } catch (java.lang.reflect.InvocationTargetException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+         }
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         throw new SQLException(String.valueOf(cause));
+      } catch (IllegalAccessException e) {
+         throw new SQLException(e.getMessage());
+      }
+   }// end copyIn
+
+   /*
+    * Inserts the file with batched INSERTs, committing once per batch.
+    * Fields follow COPY text conventions: \N is NULL.
+    */
+   private long batchInsert(Connection conn, TableSpec spec, Reader reader) throws SQLException, IOException {
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(spec.table).append(" VALUES (");
+      for (int i = 0; i < spec.casts.length; ++i) {
+         sql.append(i == 0 ? "" : ", ");
+         sql.append(spec.casts[i] == null ? "?" : "CAST(? AS " + spec.casts[i] + ")");
+      }
+      sql.append(")");
+
+      conn.setAutoCommit(false);
+      PreparedStatement stmt = conn.prepareStatement(sql.toString());
+      BufferedReader lines = (BufferedReader) reader;
+      long rows = 0;
+      int pending = 0;
+      try {
+         String line;
+         while ((line = lines.readLine()) != null) {
+            if (line.length() == 0) {
+               continue;
+            }
+            String[] fields = line.split(";", -1);
+            for (int i = 0; i < spec.casts.length; ++i) {
+               String value = i < fields.length ? fields[i] : null;
+               stmt.setString(i + 1, "\\N".equals(value) ? null : value);
+            }
+            stmt.addBatch();
+            ++rows;
+            if (++pending == this._batchSize) {
+               stmt.executeBatch();
+               conn.commit();
+               pending = 0;
+            }
+         }
+         if (pending > 0) {
+            stmt.executeBatch();
+            conn.commit();
+         }
+      } finally {
+         stmt.close();
+      }
+      return rows;
+   }// end batchInsert
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      }
+      if (!conn.getAutoCommit()) {
+         conn.commit();
+      }
+   }
+
+   /*
+    * Moves the orderid sequence past the highest loaded order.
+    */
+   private void resetOrderSequence() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.executeQuery("SELECT setval('orders_orderid_seq', (SELECT COALESCE(MAX(orderid), 87256) FROM Orders))").close();
+         stmt.close();
+      } finally {
+         conn.close();
+      }
+   }// end resetOrderSequence
+
+   /*
+    * Moves the favItems lists of the loaded users into FavoriteItems.
+    */
+   private void importFavItems() throws SQLException {
+      Connection conn = DriverManager.getConnection(this._url, this._user, this._passwd);
+      try {
+         Statement stmt = conn.createStatement();
+         stmt.executeQuery("SELECT importFavItems()").close();
+         stmt.close();
+      } finally {
+         conn.close();
+      }
+   }// end importFavItems
+
+   /**
+    * The loader entry point
+    * @param args <dbname> <port> <user> <data dir> [batch size]
+    */
+   public static void main(String[] args) {
+      if (args.length < 4 || args.length > 5) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     CafeLoader.class.getName() +
+                     " <dbname> <port> <user> <data dir> [batch size]");
+         return;
+      } // end if
+
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver").newInstance();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         int batchSize = args.length == 5 ? Integer.parseInt(args[4]) : 5000;
+         new CafeLoader(url, args[2], "", new File(args[3]), batchSize).loadAll();
+      } catch (Exception e) {
+         System.err.println("Load failed: " + e.getMessage());
+         System.exit(-1);
+      }
+   }// end main
+
+}// end CafeLoader
@@ -0,0 +1,919 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Headless mode of the Cafe: serves the same operations as the interactive
+ * screens as JSON over HTTP, so kiosks, tablets and the kitchen screen can
+ * share one JVM and one connection pool.
+ *
+ * Requests are handled one thread per request. On a JDK with virtual
+ * threads those threads are virtual; otherwise a cached pool of platform
+ * threads is used. Parameters are read from the query string and from
+ * application/x-www-form-urlencoded bodies alike. Every endpoint but
+ * /login and /menu needs the token returned by /login, passed as an
+ * "Authorization: Bearer &lt;token&gt;" header or a "token" parameter.
+ * A token not used for -Dcafe.session.idleTimeoutMs (30 minutes) expires.
+ *
+ *    POST   /login                  login, password
+ *    POST   /logout
+ *    GET    /menu                   [type] [name] [q], q: autocomplete or "did you mean" search
+ *    GET    /orders                 [limit] [older|newer=orderid], managers: [day=true] for the last 24 hours
+ *    POST   /orders                 item (repeated), comment (repeated, optional)
+ *                                   or repeat=favorites|last, to order the user's favorites or last order again
+ *                                   (acknowledged with {orderid, queued} once queued, stored in the background)
+ *    GET    /orders/{id}
+ *    DELETE /orders/{id}
+ *    POST   /orders/{id}/items      item, [comment]
+ *    DELETE /orders/{id}/items      item
+ *    POST   /orders/{id}/comment    item, comment
+ *    POST   /orders/{id}/pay        (managers only)
+ *    GET    /feed                   [orderid] (repeated; required for customers)
+ *    GET    /reports/sales          [hours] [days] [top] [itemDays] (managers only)
+ *
+ * /feed is a text/event-stream of the open order items: one "item" event
+ * per open item on connecting, then an "item" event whenever an item is
+ * added or changes status or comment and a "removed" event when one is
+ * removed. Employees and managers may watch every order, customers only
+ * their own.
+ */
+public class CafeServer {
+
+   // Longest comment accepted on an order item, as in the interactive screens.
+   private static final int MAX_COMMENT_LENGTH = 130;
+
+   // Largest page of orders returned by GET /orders.
+   private static final int MAX_PAGE_SIZE = 100;
+
+   // Most items returned by GET /menu?q=.
+   private static final int MAX_SEARCH_RESULTS = 10;
+
+   // Longest periods and most items returned by GET /reports/sales.
+   private static final int MAX_REPORT_HOURS = 24 * 7;
+   private static final int MAX_REPORT_DAYS = 366;
+   private static final int MAX_REPORT_ITEMS = 100;
+
+   // Largest request body read, in bytes.
+   private static final int MAX_BODY_LENGTH = 64 * 1024;
+
+   // How often the kitchen feed collects change notifications after a change,
+   // how far it backs off while nothing changes, and how often it may re-read
+   // the open items.
+   private static final long FEED_POLL_INTERVAL_MS = Long.getLong("cafe.feed.pollIntervalMs", 250L);
+   private static final long FEED_MAX_POLL_INTERVAL_MS = Long.getLong("cafe.feed.maxPollIntervalMs", 2000L);
+   private static final long FEED_RESYNC_INTERVAL_MS = Long.getLong("cafe.feed.resyncIntervalMs", 1000L);
+   private static final long FEED_RECONNECT_DELAY_MS = 5000L;
+
+   // How long a login token lives without requests, and how often expired ones are dropped.
+   private static final long SESSION_IDLE_TIMEOUT_MS = Long.getLong("cafe.session.idleTimeoutMs", 1800000L);
+   private static final long SESSION_SWEEP_INTERVAL_MS = Math.max(1000L, SESSION_IDLE_TIMEOUT_MS / 4);
+
+   // Comment sent on an idle /feed stream so dead clients are noticed.
+   private static final long FEED_KEEPALIVE_SECONDS = 15;
+
+   // Events queued for a /feed client before it is disconnected as too slow.
+   private static final int MAX_QUEUED_EVENTS = 1000;
+
+   /*
+    * An error reported to the client with an HTTP status.
+    */
+   private static class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }// end HttpError
+
+   /*
+    * A login token's user and when the token was last used.
+    */
+   private static class LoginToken {
+      final Session session;
+      volatile long lastUsed = System.currentTimeMillis();
+
+      LoginToken(Session session) {
+         this.session = session;
+      }
+
+      boolean isExpired(long now) {
+         return now - this.lastUsed > SESSION_IDLE_TIMEOUT_MS;
+      }
+   }// end LoginToken
+
+   private final Cafe _esql;
+   private final HttpServer _server;
+   private final ExecutorService _executor;
+   private final SecureRandom _random = new SecureRandom();
+
+   // Active sessions by token, dropped after SESSION_IDLE_TIMEOUT_MS without use.
+   private final Map<String, LoginToken> _sessions = new ConcurrentHashMap<String, LoginToken>();
+   private Timer _sessionSweeper = null;
+
+   // Open order items, pushed to /feed clients.
+   private final KitchenFeed _feed;
+
+   /**
+    * Creates a new server bound to the given port. Call start() to begin
+    * accepting requests.
+    *
+    * @param esql the Cafe whose queries are served
+    * @param port the HTTP port
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public CafeServer(Cafe esql, int port) throws IOException {
+      this._esql = esql;
+      this._feed = new KitchenFeed(esql, FEED_POLL_INTERVAL_MS, FEED_MAX_POLL_INTERVAL_MS, FEED_RESYNC_INTERVAL_MS,
+            FEED_RECONNECT_DELAY_MS);
+      this._server = HttpServer.create(new InetSocketAddress(port), 0);
+      this._executor = newRequestExecutor();
+      this._server.setExecutor(this._executor);
+
+      this._server.createContext("/login", new Endpoint() {
+         String handle(String method, String[] path, Map<String, List<String>> params, HttpExchange exchange) throws Exception {
+            return login(method, params);
+         }
+      });
+      this._server.createContext("/logout", new Endpoint() {
+         String handle(String method, String[] path, Map<String, List<String>> params, HttpExchange exchange) throws Exception {
+            requireMethod(method, "POST");
+            String token = token(params, exchange);
+            if (token != null) {
+               CafeServer.this._sessions.remove(token);
+            }
+            return "{}";
+         }
+      });
+      this._server.createContext("/menu", new Endpoint() {
+         String handle(String method, String[] path, Map<String, List<String>> params, HttpExchange exchange) throws Exception {
+            return menu(method, params);
+         }
+      });
+      this._server.createContext("/orders", new Endpoint() {
+         String handle(String method, String[] path, Map<String, List<String>> params, HttpExchange exchange) throws Exception {
+            return orders(method, path, params, authenticate(params, exchange));
+         }
+      });
+      this._server.createContext("/feed", new FeedStream());
+      this._server.createContext("/reports", new Endpoint() {
+         String handle(String method, String[] path, Map<String, List<String>> params, HttpExchange exchange) throws Exception {
+            return reports(method, path, params, authenticate(params, exchange));
+         }
+      });
+   }// end CafeServer
+
+   public synchronized void start() {
+      this._feed.start();
+      this._server.start();
+      if (this._sessionSweeper == null) {
+         this._sessionSweeper = new Timer("cafe-session-sweeper", true);
+         this._sessionSweeper.schedule(new TimerTask() {
+            public void run() {
+               expireSessions();
+            }
+         }, SESSION_SWEEP_INTERVAL_MS, SESSION_SWEEP_INTERVAL_MS);
+      }
+   }
+
+   /**
+    * Stops accepting requests, waits up to the given delay for requests in
+    * flight, then stops the request threads.
+    *
+    * @param delaySeconds how long to wait for requests in flight
+    */
+   public synchronized void stop(int delaySeconds) {
+      this._server.stop(delaySeconds);
+      this._feed.stop();
+      this._executor.shutdown();
+      if (this._sessionSweeper != null) {
+         this._sessionSweeper.cancel();
+         this._sessionSweeper = null;
+      }
+   }
+
+   public int getPort() {
+      return this._server.getAddress().getPort();
+   }
+
+   /*
+    * Returns a virtual-thread-per-task executor when the JDK has one,
+    * otherwise a cached pool of platform threads. Looked up reflectively so
+    * the code still builds for older JDKs.
+    */
+   private static ExecutorService newRequestExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+         return Executors.newCachedThreadPool();
+      }
+   }
+
+   /*
+    * POST /login
+    */
+   private String login(String method, Map<String, List<String>> params) throws HttpError, SQLException {
+      requireMethod(method, "POST");
+      String login = required(params, "login");
+      String password = required(params, "password");
+      Session session = this._esql.logIn(login, password);
+      if (session == null) {
+         throw new HttpError(401, "Login not found");
+      }
+      String token = new BigInteger(130, this._random).toString(32);
+      this._sessions.put(token, new LoginToken(session));
+
+      return new StringBuilder("{\"token\":").append(quote(token))
+            .append(",\"login\":").append(quote(session.getLogin()))
+            .append(",\"type\":").append(quote(session.getType()))
+            .append(",\"manager\":").append(session.isManager())
+            .append('}').toString();
+   }// end login
+
+   /*
+    * GET /menu, optionally filtered by exact name or by type.
+    */
+   private String menu(String method, Map<String, List<String>> params) throws HttpError, SQLException {
+      requireMethod(method, "GET");
+      MenuCache menu = this._esql.getMenuCache();
+      String name = first(params, "name");
+      String type = first(params, "type");
+      String search = first(params, "q");
+      List<MenuItem> items;
+      if (search != null) {
+         items = new ArrayList<MenuItem>();
+         for (MenuSearchIndex.Match match : menu.getSearchIndex().search(search, MAX_SEARCH_RESULTS)) {
+            items.add(match.getItem());
+         }
+      } else if (name != null) {
+         MenuItem item = menu.get(name);
+         items = item == null ? Collections.<MenuItem>emptyList() : Collections.singletonList(item);
+      } else if (type != null) {
+         items = menu.getByType(type);
+      } else {
+         items = menu.getAll();
+      }
+      return toJson(items);
+   }// end menu
+
+   /*
+    * Everything under /orders.
+    */
+   private String orders(String method, String[] path, Map<String, List<String>> params, Session user)
+         throws HttpError, SQLException {
+      // path is { "orders", [id], [action] }
+      if (path.length == 1) {
+         if (method.equals("GET")) {
+            return listOrders(params, user);
+         }
+         requireMethod(method, "POST");
+         return placeOrder(params, user);
+      }
+      if (path.length > 3) {
+         throw new HttpError(404, "Not found");
+      }
+
+      int orderid = parseInt(path[1], "orderid");
+      String action = path.length == 3 ? path[2] : "";
+      // viewing an order is checked apart from changing it: paid and
+      // archived orders can still be viewed, by their owner or by staff
+      checkOrderAccess(user, orderid, action.equals("") && method.equals("GET"));
+
+      if (action.equals("")) {
+         if (method.equals("DELETE")) {
+            this._esql.deleteOrder(orderid);
+            return "{}";
+         }
+         requireMethod(method, "GET");
+         return orderDetail(orderid);
+      }
+      if (action.equals("items")) {
+         MenuItem item = this._esql.getMenuCache().get(required(params, "item"));
+         if (item == null) {
+            throw new HttpError(404, "Item not found");
+         }
+         if (method.equals("DELETE")) {
+            if (!this._esql.removeOrderItem(orderid, item)) {
+               throw new HttpError(404, String.format("'%s' is not on orderid '%d'", item.getName(), orderid));
+            }
+            return orderDetail(orderid);
+         }
+         requireMethod(method, "POST");
+         if (!this._esql.addOrderItem(orderid, item, comment(params, "comment"))) {
+            throw new HttpError(404, "Item not found");
+         }
+         return orderDetail(orderid);
+      }
+      if (action.equals("comment")) {
+         requireMethod(method, "POST");
+         String itemName = required(params, "item");
+         if (!this._esql.updateItemComment(orderid, itemName, comment(params, "comment"))) {
+            throw new HttpError(404, String.format("'%s' is not on orderid '%d'", itemName, orderid));
+         }
+         return orderDetail(orderid);
+      }
+      if (action.equals("pay")) {
+         requireMethod(method, "POST");
+         if (!user.isManager()) {
+            throw new HttpError(403, "Only managers can mark an order as paid");
+         }
+         this._esql.markOrderPaid(orderid);
+         return orderDetail(orderid);
+      }
+      throw new HttpError(404, "Not found");
+   }// end orders
+
+   /*
+    * GET /reports/sales: the sales per hour and per day, with the average
+    * ticket, and the best selling items, read from the rollup tables. By
+    * default the last 24 hours, the last 14 days and the top 10 items of
+    * the last 7 days.
+    */
+   private String reports(String method, String[] path, Map<String, List<String>> params, Session user)
+         throws HttpError, SQLException {
+      requireMethod(method, "GET");
+      if (path.length != 2 || !path[1].equals("sales")) {
+         throw new HttpError(404, "Not found");
+      }
+      if (!user.isManager()) {
+         throw new HttpError(403, "Only managers can view sales reports");
+      }
+      int hours = boundedInt(params, "hours", 24, MAX_REPORT_HOURS);
+      int days = boundedInt(params, "days", 14, MAX_REPORT_DAYS);
+      int top = boundedInt(params, "top", 10, MAX_REPORT_ITEMS);
+      int itemDays = boundedInt(params, "itemDays", 7, MAX_REPORT_DAYS);
+
+      List<SalesBucket> hourly = this._esql.getHourlySales(hours);
+      StringBuilder json = new StringBuilder("{\"hours\":").append(toJsonSales(hourly))
+            .append(",\"lastHours\":").append(toJson(SalesBucket.sum(null, hourly)))
+            .append(",\"days\":").append(toJsonSales(this._esql.getDailySales(days)))
+            .append(",\"topItems\":[");
+      List<ItemSales> items = this._esql.getTopItems(itemDays, top);
+      for (int i = 0; i < items.size(); ++i) {
+         json.append(i == 0 ? "" : ",")
+               .append("{\"itemName\":").append(quote(items.get(i).getItemName()))
+               .append(",\"units\":").append(items.get(i).getUnits())
+               .append('}');
+      }
+      return json.append("]}").toString();
+   }// end reports
+
+   /*
+    * GET /orders: a page of the user's orders, or of every order of the
+    * last 24 hours for managers asking for day=true, newest first. The
+    * newest page is returned unless older=<orderid> or newer=<orderid>
+    * names the order the page should follow or precede.
+    */
+   private String listOrders(Map<String, List<String>> params, Session user) throws HttpError, SQLException {
+      String limit = first(params, "limit");
+      int pageSize = Math.min(MAX_PAGE_SIZE, limit == null ? 5 : parseInt(limit, "limit"));
+      OrderHistory history;
+      if ("true".equals(first(params, "day"))) {
+         if (!user.isManager()) {
+            throw new HttpError(403, "Only managers can view all orders");
+         }
+         history = OrderHistory.lastDay(this._esql, pageSize);
+      } else {
+         history = OrderHistory.forUser(this._esql, user.getLogin(), pageSize);
+      }
+
+      String older = first(params, "older");
+      String newer = first(params, "newer");
+      if (older != null) {
+         return toJsonOrders(history.olderThan(parseInt(older, "orderid")));
+      }
+      if (newer != null) {
+         return toJsonOrders(history.newerThan(parseInt(newer, "orderid")));
+      }
+      return toJsonOrders(history.first());
+   }// end listOrders
+
+   /*
+    * POST /orders
+    */
+   private String placeOrder(Map<String, List<String>> params, Session user) throws HttpError, SQLException {
+      String repeat = first(params, "repeat");
+      if (repeat != null) {
+         int orderid;
+         if (repeat.equals("favorites")) {
+            orderid = this._esql.orderFavorites(user.getLogin());
+         } else if (repeat.equals("last")) {
+            orderid = this._esql.repeatLastOrder(user.getLogin());
+         } else {
+            throw new HttpError(400, "Parameter 'repeat' must be 'favorites' or 'last'");
+         }
+         if (orderid < 0) {
+            throw new HttpError(409, repeat.equals("favorites") ? "No favorite items saved" : "No previous order");
+         }
+         return orderDetail(orderid);
+      }
+      List<String> itemNames = params.get("item");
+      if (itemNames == null || itemNames.isEmpty()) {
+         throw new HttpError(400, "Missing parameter 'item'");
+      }
+      List<String> comments = params.get("comment");
+      List<String> names = new ArrayList<String>();
+      List<String> itemComments = new ArrayList<String>();
+      for (int i = 0; i < itemNames.size(); ++i) {
+         MenuItem item = this._esql.getMenuCache().get(itemNames.get(i));
+         if (item == null) {
+            throw new HttpError(400, String.format("'%s' is not on the menu", itemNames.get(i)));
+         }
+         if (names.contains(item.getName())) {
+            throw new HttpError(400, String.format("'%s' is already on the order", item.getName()));
+         }
+         String comment = comments != null && i < comments.size() ? comments.get(i) : "";
+         if (comment.length() > MAX_COMMENT_LENGTH) {
+            throw new HttpError(400, String.format("Comment must be under %d chars", MAX_COMMENT_LENGTH));
+         }
+         names.add(item.getName());
+         itemComments.add(comment);
+      }
+      // acknowledged once queued; GET /orders/{id} waits for the write if needed
+      int orderid = this._esql.getOrderIntake().submit(user.getLogin(), names, itemComments);
+      return "{\"orderid\":" + orderid + ",\"queued\":true}";
+   }// end placeOrder
+
+   private String orderDetail(int orderid) throws SQLException {
+      StringBuilder json = new StringBuilder("{\"orderid\":").append(orderid)
+            .append(",\"total\":").append(this._esql.getOrderTotal(orderid))
+            .append(",\"items\":[");
+      List<OrderItem> items = this._esql.getOrderItems(orderid);
+      for (int i = 0; i < items.size(); ++i) {
+         json.append(i == 0 ? "" : ",").append(toJson(items.get(i)));
+      }
+      return json.append("]}").toString();
+   }// end orderDetail
+
+   /*
+    * Throws unless the user may view the order (readOnly) or change it.
+    */
+   private void checkOrderAccess(Session user, int orderid, boolean readOnly) throws HttpError, SQLException {
+      String denied;
+      try {
+         denied = readOnly ? this._esql.checkOrderReadAccess(user.getLogin(), user.isStaff(), orderid)
+               : this._esql.checkOrderAccess(user.getLogin(), user.isManager(), orderid);
+      } catch (OrderIntakeQueue.OrderNotStoredException e) {
+         // acknowledged as queued, but its write failed, so it will never exist
+         throw new HttpError(410, e.getMessage());
+      }
+      if (denied != null) {
+         throw new HttpError(this._esql.exists("SELECT 1 FROM AllOrders WHERE orderid = ?", orderid) ? 403 : 404, denied);
+      }
+   }// end checkOrderAccess
+
+   /*
+    * Returns the orders a /feed client may watch, or null for every order.
+    */
+   private Set<Integer> watchedOrders(Map<String, List<String>> params, Session user) throws HttpError, SQLException {
+      List<String> values = params.get("orderid");
+      if (values == null || values.isEmpty()) {
+         if (user.isStaff()) {
+            return null;
+         }
+         throw new HttpError(400, "Missing parameter 'orderid'");
+      }
+      Set<Integer> orderids = new TreeSet<Integer>();
+      for (String value : values) {
+         int orderid = parseInt(value, "orderid");
+         checkOrderAccess(user, orderid, true);
+         orderids.add(orderid);
+      }
+      return orderids;
+   }// end watchedOrders
+
+   /*
+    * Finds the session behind the request's token.
+    */
+   private Session authenticate(Map<String, List<String>> params, HttpExchange exchange) throws HttpError {
+      String token = token(params, exchange);
+      LoginToken login = token == null ? null : this._sessions.get(token);
+      if (login == null) {
+         throw new HttpError(401, "Not logged in");
+      }
+      long now = System.currentTimeMillis();
+      if (login.isExpired(now)) {
+         this._sessions.remove(token);
+         throw new HttpError(401, "Session expired, log in again");
+      }
+      login.lastUsed = now;
+      // the user's reads follow the user's recent writes to the primary
+      this._esql.bindSession(login.session);
+      return login.session;
+   }
+
+   /*
+    * Drops the tokens that were not used for the idle timeout, so the
+    * table does not grow with clients that never log out.
+    */
+   private void expireSessions() {
+      long now = System.currentTimeMillis();
+      for (Iterator<LoginToken> logins = this._sessions.values().iterator(); logins.hasNext();) {
+         if (logins.next().isExpired(now)) {
+            logins.remove();
+         }
+      }
+   }
+
+   private static String token(Map<String, List<String>> params, HttpExchange exchange) {
+      String header = exchange.getRequestHeaders().getFirst("Authorization");
+      if (header != null && header.startsWith("Bearer ")) {
+         return header.substring("Bearer ".length()).trim();
+      }
+      return first(params, "token");
+   }
+
+   /*
+    * Base handler: parses parameters, runs the endpoint and writes its JSON
+    * result, turning failures into a JSON error with a matching status.
+    */
+   private abstract class Endpoint implements HttpHandler {
+
+      abstract String handle(String method, String[] path, Map<String, List<String>> params, HttpExchange exchange)
+            throws Exception;
+
+      public void handle(HttpExchange exchange) throws IOException {
+         int status = 200;
+         String body;
+         try {
+            String uriPath = exchange.getRequestURI().getPath();
+            String[] path = uriPath.replaceAll("^/+|/+$", "").split("/+");
+            Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+            parseParams(exchange.getRequestURI().getRawQuery(), params);
+            parseParams(readBody(exchange), params);
+            body = handle(exchange.getRequestMethod().toUpperCase(), path, params, exchange);
+         } catch (HttpError e) {
+            status = e.status;
+            body = error(e.getMessage());
+         } catch (SQLException e) {
+            status = 500;
+            body = error(e.getMessage());
+         } catch (Exception e) {
+            status = 500;
+            body = error(String.valueOf(e));
+         } finally {
+            CafeServer.this._esql.bindSession(null);
+         }
+         send(exchange, status, body);
+      }// end handle
+   }// end Endpoint
+
+   /*
+    * GET /feed: streams the kitchen feed as server-sent events until the
+    * client disconnects. Events are queued by the feed's thread and written
+    * by the request thread, so a slow client never holds up the feed.
+    */
+   private class FeedStream implements HttpHandler {
+
+      public void handle(HttpExchange exchange) throws IOException {
+         final Set<Integer> orderids;
+         try {
+            Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+            parseParams(exchange.getRequestURI().getRawQuery(), params);
+            requireMethod(exchange.getRequestMethod().toUpperCase(), "GET");
+            orderids = watchedOrders(params, authenticate(params, exchange));
+         } catch (HttpError e) {
+            send(exchange, e.status, error(e.getMessage()));
+            return;
+         } catch (SQLException e) {
+            send(exchange, 500, error(e.getMessage()));
+            return;
+         } finally {
+            CafeServer.this._esql.bindSession(null);
+         }
+
+         final BlockingQueue<String> events = new LinkedBlockingQueue<String>(MAX_QUEUED_EVENTS);
+         final AtomicBoolean overflowed = new AtomicBoolean(false);
+         KitchenFeedListener listener = new KitchenFeedListener() {
+            public void itemChanged(OrderItem item) {
+               queue("item", item);
+            }
+
+            public void itemRemoved(OrderItem item) {
+               queue("removed", item);
+            }
+
+            private void queue(String type, OrderItem item) {
+               if ((orderids == null || orderids.contains(item.getOrderid())) && !events.offer(event(type, item))) {
+                  overflowed.set(true);
+               }
+            }
+         };
+
+         CafeServer.this._feed.addListener(listener);
+         try {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "text/event-stream; charset=utf-8");
+            headers.set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+
+            List<OrderItem> snapshot = new ArrayList<OrderItem>();
+            if (orderids == null) {
+               snapshot.addAll(CafeServer.this._feed.getOpenItems());
+            } else {
+               for (int orderid : orderids) {
+                  snapshot.addAll(CafeServer.this._feed.getOpenItems(orderid));
+               }
+            }
+            for (OrderItem item : snapshot) {
+               out.write(event("item", item).getBytes("UTF-8"));
+            }
+            out.flush();
+
+            // a client that falls too far behind reconnects for a fresh snapshot
+            while (!overflowed.get()) {
+               String event = events.poll(FEED_KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+               out.write((event == null ? ": keepalive\n\n" : event).getBytes("UTF-8"));
+               out.flush();
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } catch (IOException e) {
+            // the client went away.
+         } finally {
+            CafeServer.this._feed.removeListener(listener);
+            exchange.close();
+         }
+      }// end handle
+   }// end FeedStream
+
+   private static String event(String type, OrderItem item) {
+      return "event: " + type + "\ndata: " + toJson(item) + "\n\n";
+   }
+
+   private static String readBody(HttpExchange exchange) throws IOException, HttpError {
+      InputStream in = exchange.getRequestBody();
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         byte[] buffer = new byte[4096];
+         int n;
+         while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+            if (bytes.size() > MAX_BODY_LENGTH) {
+               throw new HttpError(413, "Request body too large");
+            }
+         }
+         return bytes.toString("UTF-8");
+      } finally {
+         in.close();
+      }
+   }// end readBody
+
+   private static void send(HttpExchange exchange, int status, String body) throws IOException {
+      byte[] bytes = body.getBytes("UTF-8");
+      Headers headers = exchange.getResponseHeaders();
+      headers.set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+         out.write(bytes);
+      } finally {
+         out.close();
+      }
+   }
+
+   /*
+    * Adds the pairs of a urlencoded string to params, keeping repeated keys.
+    */
+   private static void parseParams(String encoded, Map<String, List<String>> params)
+         throws UnsupportedEncodingException {
+      if (encoded == null || encoded.length() == 0) {
+         return;
+      }
+      for (String pair : encoded.split("&")) {
+         if (pair.length() == 0) {
+            continue;
+         }
+         int eq = pair.indexOf('=');
+         String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+         String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+         List<String> values = params.get(key);
+         if (values == null) {
+            values = new ArrayList<String>();
+            params.put(key, values);
+         }
+         values.add(value);
+      }
+   }// end parseParams
+
+   private static String first(Map<String, List<String>> params, String key) {
+      List<String> values = params.get(key);
+      return values == null || values.isEmpty() ? null : values.get(0);
+   }
+
+   private static String required(Map<String, List<String>> params, String key) throws HttpError {
+      String value = first(params, key);
+      if (value == null || value.trim().length() == 0) {
+         throw new HttpError(400, String.format("Missing parameter '%s'", key));
+      }
+      return value;
+   }
+
+   private static String comment(Map<String, List<String>> params, String key) throws HttpError {
+      String comment = first(params, key);
+      if (comment == null) {
+         return "";
+      }
+      if (comment.length() > MAX_COMMENT_LENGTH) {
+         throw new HttpError(400, String.format("Comment must be under %d chars", MAX_COMMENT_LENGTH));
+      }
+      return comment;
+   }
+
+   private static int parseInt(String value, String name) throws HttpError {
+      try {
+         return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+         throw new HttpError(400, String.format("'%s' is not a valid %s", value, name));
+      }
+   }
+
+   private static int boundedInt(Map<String, List<String>> params, String key, int defaultValue, int max)
+         throws HttpError {
+      String value = first(params, key);
+      int parsed = value == null ? defaultValue : parseInt(value, key);
+      if (parsed < 1 || parsed > max) {
+         throw new HttpError(400, String.format("'%s' must be between 1 and %d", key, max));
+      }
+      return parsed;
+   }
+
+   private static void requireMethod(String method, String expected) throws HttpError {
+      if (!method.equals(expected)) {
+         throw new HttpError(405, String.format("Method %s not allowed", method));
+      }
+   }
+
+   private static String toJson(List<MenuItem> items) {
+      StringBuilder json = new StringBuilder("[");
+      for (int i = 0; i < items.size(); ++i) {
+         MenuItem item = items.get(i);
+         json.append(i == 0 ? "" : ",")
+               .append("{\"itemName\":").append(quote(item.getName()))
+               .append(",\"type\":").append(quote(item.getType()))
+               .append(",\"price\":").append(item.getPrice())
+               .append(",\"description\":").append(quote(item.getDescription()))
+               .append(",\"imageURL\":").append(quote(item.getImageURL()))
+               .append('}');
+      }
+      return json.append(']').toString();
+   }// end toJson
+
+   private static String toJson(OrderItem item) {
+      return new StringBuilder("{\"orderid\":").append(item.getOrderid())
+            .append(",\"itemName\":").append(quote(item.getItemName()))
+            .append(",\"lastUpdated\":").append(quote(item.getLastUpdated()))
+            .append(",\"status\":").append(quote(item.getStatus()))
+            .append(",\"comments\":").append(quote(item.getComments()))
+            .append('}').toString();
+   }
+
+   private static String toJsonOrders(List<Order> orders) {
+      StringBuilder json = new StringBuilder("[");
+      for (int i = 0; i < orders.size(); ++i) {
+         Order order = orders.get(i);
+         json.append(i == 0 ? "" : ",")
+               .append("{\"orderid\":").append(order.getOrderid())
+               .append(",\"login\":").append(quote(order.getLogin()))
+               .append(",\"paid\":").append(order.isPaid())
+               .append(",\"timeStampRecieved\":").append(quote(order.getTimeStampRecieved()))
+               .append(",\"total\":").append(order.getTotal())
+               .append('}');
+      }
+      return json.append(']').toString();
+   }// end toJsonOrders
+
+   private static String toJson(SalesBucket bucket) {
+      return new StringBuilder("{\"start\":").append(quote(bucket.getStart()))
+            .append(",\"orders\":").append(bucket.getOrders())
+            .append(",\"revenue\":").append(bucket.getRevenue())
+            .append(",\"averageTicket\":").append(bucket.getAverageTicket())
+            .append(",\"paidOrders\":").append(bucket.getPaidOrders())
+            .append(",\"paidRevenue\":").append(bucket.getPaidRevenue())
+            .append('}').toString();
+   }
+
+   private static String toJsonSales(List<SalesBucket> buckets) {
+      StringBuilder json = new StringBuilder("[");
+      for (int i = 0; i < buckets.size(); ++i) {
+         json.append(i == 0 ? "" : ",").append(toJson(buckets.get(i)));
+      }
+      return json.append(']').toString();
+   }
+
+   private static String error(String message) {
+      return "{\"error\":" + quote(message) + "}";
+   }
+
+   private static String quote(Timestamp value) {
+      return value == null ? "null" : quote(value.toString());
+   }
+
+   /*
+    * Returns value as a JSON string literal.
+    */
+   private static String quote(String value) {
+      if (value == null) {
+         return "null";
+      }
+      StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':
+               json.append("\\\"");
+               break;
+            case '\\':
+               json.append("\\\\");
+               break;
+            case '\n':
+               json.append("\\n");
+               break;
+            case '\r':
+               json.append("\\r");
+               break;
+            case '\t':
+               json.append("\\t");
+               break;
+            default:
+               if (c < 0x20) {
+                  json.append(String.format("\\u%04x", (int) c));
+               } else {
+                  json.append(c);
+               }
+         }
+      }
+      return json.append('"').toString();
+   }// end quote
+
+   /**
+    * The server entry point
+    * @param args <dbname> <port> <user> <http port>
+    */
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println(
+               "Usage: " +
+                     "java [-classpath <classpath>] " +
+                     CafeServer.class.getName() +
+                     " <dbname> <port> <user> <http port>");
+         return;
+      } // end if
+
+      try {
+         // use postgres JDBC driver.
+         Class.forName("org.postgresql.Driver").newInstance();
+         final Cafe esql = new Cafe(args[0], args[1], args[2], "");
+         final CafeServer server = new CafeServer(esql, Integer.parseInt(args[3]));
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               server.stop(1);
+               System.out.println(esql.getPoolStats());
+               esql.cleanup();
+               System.out.println(esql.getOrderIntake().getStats());
+               System.out.println(esql.getOrderArchiver().getStats());
+               System.out.println(esql.getMetrics().getReport());
+            }
+         });
+         server.start();
+         System.out.println(String.format("Cafe server listening on port %d", server.getPort()));
+      } catch (Exception e) {
+         System.err.println("Server failed to start: " + e.getMessage());
+         System.exit(-1);
+      }
+   }// end main
+
+}// end CafeServer
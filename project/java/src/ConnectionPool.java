@@ -0,0 +1,370 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections.
+ * Connections are validated when checked out after sitting idle, broken
+ * connections are dropped and replaced on the next borrow, and idle
+ * connections above the minimum size are closed by a background timer.
+ */
+public class ConnectionPool {
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _borrowTimeoutMillis;
+   private final long _idleTimeoutMillis;
+   private final long _validationIntervalMillis;
+   private final int _statementCacheSize;
+
+   // Guards the idle list and the counters below.
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = this._lock.newCondition();
+
+   // Idle connections, most recently returned first.
+   private final LinkedList<PooledConnection> _idle = new LinkedList<PooledConnection>();
+
+   // Number of open connections, idle or borrowed.
+   private int _total = 0;
+   private volatile boolean _closed = false;
+
+   // Borrow statistics, used to size the pool.
+   private long _borrowCount = 0;
+   private long _totalWaitNanos = 0;
+   private long _maxWaitNanos = 0;
+   private long _timeouts = 0;
+   private long _reconnects = 0;
+
+   private final Timer _evictor;
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open at all times
+    * @param maxSize the maximum number of open connections
+    * @param borrowTimeoutMillis how long borrow() waits for a free connection
+    * @param idleTimeoutMillis how long a connection above minSize may sit idle
+    * @param validationIntervalMillis how long a returned connection is handed out again without a check
+    * @param statementCacheSize prepared statements cached per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+         long borrowTimeoutMillis, long idleTimeoutMillis, long validationIntervalMillis, int statementCacheSize)
+         throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = Math.max(0, minSize);
+      this._maxSize = Math.max(1, Math.max(minSize, maxSize));
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._validationIntervalMillis = validationIntervalMillis;
+      this._statementCacheSize = statementCacheSize;
+
+      for (int i = 0; i < this._minSize; ++i) {
+         this._idle.add(open());
+         ++this._total;
+      }
+
+      this._evictor = new Timer("cafe-pool-evictor", true);
+      long period = Math.max(1000, idleTimeoutMillis / 2);
+      this._evictor.schedule(new TimerTask() {
+         public void run() {
+            evictIdle();
+         }
+      }, period, period);
+   }// end ConnectionPool
+
+   /**
+    * Checks out a connection, waiting up to the borrow timeout when the
+    * pool is exhausted. Connections that sat idle are validated first and
+    * transparently replaced if the server dropped them.
+    *
+    * @return a connection reserved for the caller until release()
+    * @throws java.sql.SQLException when no connection could be obtained in time
+    */
+   public PooledConnection borrow() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._borrowTimeoutMillis);
+      while (true) {
+         PooledConnection conn = null;
+         boolean create = false;
+         this._lock.lock();
+         try {
+            while (conn == null && !create) {
+               if (this._closed) {
+                  throw new SQLException("Connection pool is closed");
+               }
+               if (!this._idle.isEmpty()) {
+                  conn = this._idle.removeFirst();
+               } else if (this._total < this._maxSize) {
+                  ++this._total;
+                  create = true;
+               } else {
+                  long remaining = deadline - System.nanoTime();
+                  if (remaining <= 0) {
+                     ++this._timeouts;
+                     throw new SQLException(String.format(
+                           "Timed out after %d ms waiting for a database connection (%d in use)",
+                           this._borrowTimeoutMillis, this._total));
+                  }
+                  try {
+                     this._available.awaitNanos(remaining);
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     throw new SQLException("Interrupted while waiting for a database connection");
+                  }
+               }
+            }
+         } finally {
+            this._lock.unlock();
+         }
+
+         if (create) {
+            try {
+               conn = open();
+            } catch (SQLException e) {
+               dropSlot();
+               throw e;
+            }
+         } else if (!isValid(conn)) {
+            // the server dropped this one, reconnect on the next pass
+            conn.close();
+            dropSlot();
+            this._lock.lock();
+            try {
+               ++this._reconnects;
+            } finally {
+               this._lock.unlock();
+            }
+            continue;
+         }
+
+         recordWait(System.nanoTime() - start);
+         return conn;
+      }
+   }// end borrow
+
+   /**
+    * Returns a borrowed connection to the pool. Broken connections are
+    * closed instead so the next borrow opens a fresh one.
+    *
+    * @param conn the connection obtained from borrow()
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null) {
+         return;
+      }
+      if (conn._broken || this._closed) {
+         conn.close();
+         dropSlot();
+         return;
+      }
+      try {
+         // never hand out a connection in the middle of a transaction
+         if (!conn.getConnection().getAutoCommit()) {
+            conn.getConnection().rollback();
+            conn.getConnection().setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         conn.close();
+         dropSlot();
+         return;
+      }
+      conn._lastUsed = System.currentTimeMillis();
+      this._lock.lock();
+      try {
+         this._idle.addFirst(conn);
+         this._available.signal();
+      } finally {
+         this._lock.unlock();
+      }
+   }// end release
+
+   /**
+    * Closes every idle connection and stops the eviction timer. Connections
+    * still borrowed are closed when they are released.
+    */
+   public void close() {
+      this._evictor.cancel();
+      List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+      this._lock.lock();
+      try {
+         this._closed = true;
+         toClose.addAll(this._idle);
+         this._total -= this._idle.size();
+         this._idle.clear();
+         this._available.signalAll();
+      } finally {
+         this._lock.unlock();
+      }
+      for (PooledConnection conn : toClose) {
+         conn.close();
+      }
+   }// end close
+
+   /**
+    * @return a one line summary of pool size and borrow wait times
+    */
+   public String getStats() {
+      this._lock.lock();
+      try {
+         double avgWaitMillis = this._borrowCount == 0 ? 0.0
+               : (this._totalWaitNanos / (double) this._borrowCount) / 1e6;
+         return String.format(
+               "pool: %d open (%d idle, max %d), %d borrows, avg wait %.3f ms, max wait %.3f ms, %d timeouts, %d reconnects",
+               this._total, this._idle.size(), this._maxSize, this._borrowCount, avgWaitMillis,
+               this._maxWaitNanos / 1e6, this._timeouts, this._reconnects);
+      } finally {
+         this._lock.unlock();
+      }
+   }// end getStats
+
+   public long getBorrowCount() {
+      this._lock.lock();
+      try {
+         return this._borrowCount;
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   public long getTotalWaitNanos() {
+      this._lock.lock();
+      try {
+         return this._totalWaitNanos;
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   public long getMaxWaitNanos() {
+      this._lock.lock();
+      try {
+         return this._maxWaitNanos;
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   /**
+    * Opens a connection that is not managed by the pool, for a caller that
+    * keeps it for its own lifetime (e.g. to LISTEN). The caller closes it.
+    *
+    * @return a new physical connection to the pool's database
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openUnpooled() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   private PooledConnection open() throws SQLException {
+      return new PooledConnection(this, DriverManager.getConnection(this._url, this._user, this._passwd),
+            this._statementCacheSize);
+   }
+
+   /*
+    * Validates a connection that has been idle for a while with a trivial
+    * round trip. Recently used connections are trusted as-is.
+    */
+   private boolean isValid(PooledConnection conn) {
+      if (System.currentTimeMillis() - conn._lastUsed < this._validationIntervalMillis) {
+         try {
+            return !conn.getConnection().isClosed();
+         } catch (SQLException e) {
+            return false;
+         }
+      }
+      return conn.probe();
+   }// end isValid
+
+   /*
+    * Gives up a slot held by a connection that was closed or never opened.
+    */
+   private void dropSlot() {
+      this._lock.lock();
+      try {
+         --this._total;
+         this._available.signal();
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   private void recordWait(long waitNanos) {
+      this._lock.lock();
+      try {
+         ++this._borrowCount;
+         this._totalWaitNanos += waitNanos;
+         if (waitNanos > this._maxWaitNanos) {
+            this._maxWaitNanos = waitNanos;
+         }
+      } finally {
+         this._lock.unlock();
+      }
+   }
+
+   /*
+    * Closes connections idle past the timeout while keeping at least
+    * minSize open, then tops the pool back up to minSize.
+    */
+   private void evictIdle() {
+      List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+      int missing = 0;
+      long now = System.currentTimeMillis();
+      this._lock.lock();
+      try {
+         if (this._closed) {
+            return;
+         }
+         // oldest connections sit at the end of the idle list
+         Iterator<PooledConnection> it = this._idle.descendingIterator();
+         while (it.hasNext() && this._total - toClose.size() > this._minSize) {
+            PooledConnection conn = it.next();
+            if (now - conn._lastUsed < this._idleTimeoutMillis) {
+               break;
+            }
+            it.remove();
+            toClose.add(conn);
+         }
+         this._total -= toClose.size();
+         missing = this._minSize - this._total;
+         this._total += Math.max(0, missing);
+      } finally {
+         this._lock.unlock();
+      }
+      for (PooledConnection conn : toClose) {
+         conn.close();
+      }
+      for (int i = 0; i < missing; ++i) {
+         try {
+            PooledConnection conn = open();
+            this._lock.lock();
+            try {
+               this._idle.addLast(conn);
+               this._available.signal();
+            } finally {
+               this._lock.unlock();
+            }
+         } catch (SQLException e) {
+            dropSlot();
+         }
+      }
+   }// end evictIdle
+
+}// end ConnectionPool
@@ -0,0 +1,35 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Units of one menu item sold over a period, read from the ItemSalesByDay
+ * rollup.
+ */
+public class ItemSales {
+
+   /**
+    * Maps a row of (itemName, units).
+    */
+   public static final RowMapper<ItemSales> MAPPER = new RowMapper<ItemSales>() {
+      public ItemSales mapRow(ResultSet rs) throws SQLException {
+         return new ItemSales(rs.getString(1), rs.getLong(2));
+      }
+   };
+
+   private final String _itemName;
+   private final long _units;
+
+   public ItemSales(String itemName, long units) {
+      this._itemName = itemName == null ? "" : itemName.trim();
+      this._units = units;
+   }// end ItemSales
+
+   public String getItemName() {
+      return this._itemName;
+   }
+
+   public long getUnits() {
+      return this._units;
+   }
+
+}// end ItemSales
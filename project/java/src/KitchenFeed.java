@@ -0,0 +1,337 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class keeps an in-memory view of the open order items (those not yet
+ * Finished) and pushes every change to registered listeners, so kitchen and
+ * customer displays are updated without polling the ItemStatus table.
+ *
+ * The triggers in create_triggers.sql notify the cafe_items channel on
+ * every change to an order or its items. The feed LISTENs on a dedicated
+ * connection and, when notified, re-reads all open items through the
+ * partial openItemsIndex; the bundled driver does not carry the payloads
+ * naming the orders. A burst of changes is folded into one re-read at most
+ * every resync interval.
+ *
+ * The driver only picks up notifications during a query, so the feed polls
+ * with a trivial one, backing off while nothing changes. With no listeners
+ * it drops the connection and stops polling; the view is then stale until a
+ * listener is added and the feed has re-read it.
+ */
+public class KitchenFeed {
+
+   // Channel the notify triggers publish on.
+   public static final String CHANNEL = "cafe_items";
+
+   // Status of an item that is no longer open.
+   public static final String FINISHED = "Finished";
+
+   private final Cafe _esql;
+   private final long _pollIntervalMillis;
+   private final long _maxPollIntervalMillis;
+   private final long _resyncIntervalMillis;
+   private final long _reconnectDelayMillis;
+   private final List<KitchenFeedListener> _listeners = new CopyOnWriteArrayList<KitchenFeedListener>();
+
+   // Notified when a listener is added, to wake the paused feed thread.
+   private final Object _listenerAdded = new Object();
+
+   // Open items by orderid, then item name. Guarded by this.
+   private final Map<Integer, Map<String, OrderItem>> _open = new TreeMap<Integer, Map<String, OrderItem>>();
+
+   private Thread _thread = null;
+   private volatile boolean _stopped = false;
+
+   /**
+    * Creates a new feed. Call start() to begin listening.
+    *
+    * @param esql the Cafe used to read changed orders
+    * @param pollIntervalMillis how often pending notifications are collected after a change
+    * @param maxPollIntervalMillis the longest the polling backs off to while nothing changes
+    * @param resyncIntervalMillis the shortest time between two re-reads of the open items
+    * @param reconnectDelayMillis how long to wait before reconnecting after an error
+    */
+   public KitchenFeed(Cafe esql, long pollIntervalMillis, long maxPollIntervalMillis, long resyncIntervalMillis,
+         long reconnectDelayMillis) {
+      this._esql = esql;
+      this._pollIntervalMillis = Math.max(10, pollIntervalMillis);
+      this._maxPollIntervalMillis = Math.max(this._pollIntervalMillis, maxPollIntervalMillis);
+      this._resyncIntervalMillis = Math.max(0, resyncIntervalMillis);
+      this._reconnectDelayMillis = Math.max(100, reconnectDelayMillis);
+   }// end KitchenFeed
+
+   public void addListener(KitchenFeedListener listener) {
+      this._listeners.add(listener);
+      synchronized (this._listenerAdded) {
+         this._listenerAdded.notifyAll();
+      }
+   }
+
+   public void removeListener(KitchenFeedListener listener) {
+      this._listeners.remove(listener);
+   }
+
+   /**
+    * Starts listening on a daemon thread. The open items are loaded as soon
+    * as the thread has connected.
+    */
+   public synchronized void start() {
+      if (this._thread != null) {
+         return;
+      }
+      this._stopped = false;
+      this._thread = new Thread("cafe-kitchen-feed") {
+         public void run() {
+            listen();
+         }
+      };
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }// end start
+
+   public synchronized void stop() {
+      this._stopped = true;
+      if (this._thread != null) {
+         this._thread.interrupt();
+         this._thread = null;
+      }
+   }
+
+   /**
+    * @return every open item, by orderid; may be stale while there are no listeners
+    */
+   public synchronized List<OrderItem> getOpenItems() {
+      List<OrderItem> items = new ArrayList<OrderItem>();
+      for (Map<String, OrderItem> order : this._open.values()) {
+         items.addAll(order.values());
+      }
+      return items;
+   }
+
+   /**
+    * @param orderid the order
+    * @return the order's open items, empty if it has none
+    */
+   public synchronized List<OrderItem> getOpenItems(int orderid) {
+      Map<String, OrderItem> order = this._open.get(orderid);
+      return order == null ? Collections.<OrderItem>emptyList() : new ArrayList<OrderItem>(order.values());
+   }
+
+   /*
+    * Body of the feed thread: connects, LISTENs and re-reads the open items
+    * when notified until stopped, reconnecting after errors and pausing
+    * while there are no listeners.
+    */
+   private void listen() {
+      // replicas may not have replayed the change a notification is about
+      this._esql.readFromPrimaryOnThisThread();
+      Connection conn = null;
+      long pollInterval = this._pollIntervalMillis;
+      long lastResync = 0;
+      boolean pending = false;
+      while (!this._stopped) {
+         try {
+            if (this._listeners.isEmpty()) {
+               close(conn);
+               conn = null;
+               awaitListener();
+               continue;
+            }
+            if (conn == null) {
+               conn = this._esql.openDedicatedConnection();
+               Statement listen = conn.createStatement();
+               listen.execute("LISTEN " + CHANNEL);
+               listen.close();
+               // changes made while disconnected were not notified
+               pending = true;
+               lastResync = 0;
+            }
+            if (poll(conn)) {
+               pending = true;
+               pollInterval = this._pollIntervalMillis;
+            } else if (!pending) {
+               pollInterval = Math.min(pollInterval * 2, this._maxPollIntervalMillis);
+            }
+            long now = System.currentTimeMillis();
+            if (pending && now - lastResync >= this._resyncIntervalMillis) {
+               resync();
+               lastResync = now;
+               pending = false;
+            }
+            Thread.sleep(pollInterval);
+         } catch (InterruptedException e) {
+            break;
+         } catch (SQLException e) {
+            System.err.println("Kitchen feed error, reconnecting: " + e.getMessage());
+            close(conn);
+            conn = null;
+            try {
+               Thread.sleep(this._reconnectDelayMillis);
+            } catch (InterruptedException ie) {
+               break;
+            }
+         }
+      }
+      close(conn);
+   }// end listen
+
+   /*
+    * Blocks until a listener is added or the feed is stopped.
+    */
+   private void awaitListener() throws InterruptedException {
+      synchronized (this._listenerAdded) {
+         while (this._listeners.isEmpty() && !this._stopped) {
+            this._listenerAdded.wait();
+         }
+      }
+   }
+
+   /*
+    * Collects pending notifications. Returns whether there were any.
+    */
+   private boolean poll(Connection conn) throws SQLException {
+      // the driver only reads notifications off the socket during a query
+      Statement stmt = conn.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery("SELECT 1");
+         rs.close();
+      } finally {
+         stmt.close();
+      }
+
+      PGNotification[] notifications = ((PGConnection) conn).getNotifications();
+      return notifications != null && notifications.length > 0;
+   }// end poll
+
+   /*
+    * Re-reads every open item and applies the differences to the view.
+    * Orders in the view that lost items are re-read on their own, to tell
+    * items that finished apart from items that were removed.
+    */
+   private void resync() throws SQLException {
+      List<OrderItem> rows = this._esql.queryForList(
+            "SELECT " + OrderItem.COLUMNS + " FROM ItemStatus WHERE status <> 'Finished'", OrderItem.MAPPER);
+      Map<Integer, List<OrderItem>> byOrder = new TreeMap<Integer, List<OrderItem>>();
+      for (OrderItem row : rows) {
+         List<OrderItem> order = byOrder.get(row.getOrderid());
+         if (order == null) {
+            order = new ArrayList<OrderItem>();
+            byOrder.put(row.getOrderid(), order);
+         }
+         order.add(row);
+      }
+
+      Set<Integer> orderids = new TreeSet<Integer>(byOrder.keySet());
+      synchronized (this) {
+         orderids.addAll(this._open.keySet());
+      }
+      for (int orderid : orderids) {
+         List<OrderItem> order = byOrder.get(orderid);
+         if (order == null) {
+            order = Collections.emptyList();
+         }
+         if (!covers(order, getOpenItems(orderid))) {
+            order = this._esql.getOrderItems(orderid);
+         }
+         apply(orderid, order);
+      }
+   }// end resync
+
+   /*
+    * Replaces the view of one order with its current rows and tells the
+    * listeners what changed.
+    */
+   private void apply(int orderid, List<OrderItem> rows) {
+      List<OrderItem> changed = new ArrayList<OrderItem>();
+      List<OrderItem> removed = new ArrayList<OrderItem>();
+      synchronized (this) {
+         Map<String, OrderItem> current = this._open.get(orderid);
+         Map<String, OrderItem> next = new LinkedHashMap<String, OrderItem>();
+         Set<String> names = new TreeSet<String>();
+         for (OrderItem row : rows) {
+            names.add(row.getItemName());
+            OrderItem old = current == null ? null : current.get(row.getItemName());
+            boolean finished = FINISHED.equals(row.getStatus());
+            if (!finished) {
+               next.put(row.getItemName(), row);
+            }
+            if (old == null ? !finished : !same(old, row)) {
+               changed.add(row);
+            }
+         }
+         if (current != null) {
+            for (OrderItem old : current.values()) {
+               if (!names.contains(old.getItemName())) {
+                  removed.add(old);
+               }
+            }
+         }
+         if (next.isEmpty()) {
+            this._open.remove(orderid);
+         } else {
+            this._open.put(orderid, next);
+         }
+      }
+
+      for (KitchenFeedListener listener : this._listeners) {
+         try {
+            for (OrderItem item : changed) {
+               listener.itemChanged(item);
+            }
+            for (OrderItem item : removed) {
+               listener.itemRemoved(item);
+            }
+         } catch (RuntimeException e) {
+            System.err.println("Kitchen feed listener failed: " + e);
+         }
+      }
+   }// end apply
+
+   /*
+    * Returns whether every item in expected is also in rows.
+    */
+   private static boolean covers(List<OrderItem> rows, List<OrderItem> expected) {
+      Set<String> names = new TreeSet<String>();
+      for (OrderItem row : rows) {
+         names.add(row.getItemName());
+      }
+      for (OrderItem item : expected) {
+         if (!names.contains(item.getItemName())) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean same(OrderItem a, OrderItem b) {
+      return a.getStatus().equals(b.getStatus())
+            && a.getComments().equals(b.getComments())
+            && (a.getLastUpdated() == null ? b.getLastUpdated() == null : a.getLastUpdated().equals(b.getLastUpdated()));
+   }
+
+   private static void close(Connection conn) {
+      if (conn == null) {
+         return;
+      }
+      try {
+         conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+}// end KitchenFeed
@@ -0,0 +1,23 @@
+/**
+ * Callback used by KitchenFeed to push changes to open order items. Both
+ * methods are called on the feed's thread and should return quickly.
+ */
+public interface KitchenFeedListener {
+
+   /**
+    * Called when an item is added to an order or its status or comment
+    * changes. An item reported as Finished is no longer open.
+    *
+    * @param item the item's new state
+    */
+   void itemChanged(OrderItem item);
+
+   /**
+    * Called when an open item is removed from its order, or its order is
+    * deleted.
+    *
+    * @param item the item's last known state
+    */
+   void itemRemoved(OrderItem item);
+
+}// end KitchenFeedListener
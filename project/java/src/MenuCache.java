@@ -0,0 +1,219 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class keeps a process-local copy of the Menu table. Reads are served
+ * from memory; the copy is loaded on first use, dropped by invalidate()
+ * after a manager edit, and re-synced whenever the version counter kept in
+ * the MenuVersion table (bumped by a trigger on Menu) moves. Each snapshot
+ * carries a MenuSearchIndex for autocomplete and "did you mean", updated
+ * from the previous one so only edited items are re-analyzed.
+ *
+ * No lock is held across a query: one reader at a time re-syncs the copy
+ * and publishes the new snapshot through a volatile field, while the
+ * others keep reading the old one. Readers only wait for the re-sync when
+ * there is no snapshot at all.
+ */
+public class MenuCache {
+
+   /*
+    * An immutable view of the menu at one version.
+    */
+   private static class Snapshot {
+      final long version;
+      final Map<String, MenuItem> byName;
+      final Map<String, List<MenuItem>> byType;
+      final List<MenuItem> all;
+      final MenuSearchIndex index;
+
+      Snapshot(long version, List<MenuItem> items, MenuSearchIndex previousIndex) {
+         this.version = version;
+         Map<String, MenuItem> names = new HashMap<String, MenuItem>();
+         Map<String, List<MenuItem>> types = new LinkedHashMap<String, List<MenuItem>>();
+         for (MenuItem item : items) {
+            names.put(item.getName(), item);
+            List<MenuItem> ofType = types.get(item.getType());
+            if (ofType == null) {
+               ofType = new ArrayList<MenuItem>();
+               types.put(item.getType(), ofType);
+            }
+            ofType.add(item);
+         }
+         for (Map.Entry<String, List<MenuItem>> entry : types.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+         }
+         this.byName = names;
+         this.byType = types;
+         this.all = Collections.unmodifiableList(items);
+         this.index = previousIndex.update(items);
+      }
+   }// end Snapshot
+
+   private static final String LOAD_QUERY =
+         "SELECT M.itemName, M.type, M.price, M.description, M.imageURL FROM Menu M ORDER BY M.type, M.itemName";
+   private static final String VERSION_QUERY = "SELECT version FROM MenuVersion";
+
+   private final Cafe _esql;
+
+   // How long a snapshot is trusted before the version is checked again.
+   private final long _checkIntervalMillis;
+
+   private volatile Snapshot _snapshot = null;
+   private volatile long _lastCheck = 0;
+
+   // The version check and reload in flight, null when none is.
+   private final AtomicReference<FutureTask<Snapshot>> _refresh = new AtomicReference<FutureTask<Snapshot>>();
+
+   // Bumped by invalidate(), so a reload that raced with it is not kept.
+   private final AtomicLong _invalidations = new AtomicLong();
+
+   // Index of the last snapshot loaded, kept across invalidate(). Only
+   // written by the thread running the re-sync.
+   private volatile MenuSearchIndex _lastIndex = MenuSearchIndex.empty();
+
+   /**
+    * Creates a new, empty menu cache
+    *
+    * @param esql the Cafe used to load the menu
+    * @param checkIntervalMillis how often the menu version is re-checked
+    */
+   public MenuCache(Cafe esql, long checkIntervalMillis) {
+      this._esql = esql;
+      this._checkIntervalMillis = checkIntervalMillis;
+   }// end MenuCache
+
+   /**
+    * @param name the exact item name
+    * @return the item, or null when no such item is on the menu
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public MenuItem get(String name) throws SQLException {
+      return current().byName.get(name.trim());
+   }
+
+   /**
+    * @param type 'Drinks', 'Sweets' or 'Soup'
+    * @return the items of that type, empty if the type is unknown
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> getByType(String type) throws SQLException {
+      List<MenuItem> items = current().byType.get(type.trim());
+      if (items == null) {
+         return Collections.emptyList();
+      }
+      return items;
+   }
+
+   /**
+    * @return every item on the menu, ordered by type then name
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public List<MenuItem> getAll() throws SQLException {
+      return current().all;
+   }
+
+   /**
+    * @return the search index over the item names and variants
+    * @throws java.sql.SQLException when the menu cannot be loaded
+    */
+   public MenuSearchIndex getSearchIndex() throws SQLException {
+      return current().index;
+   }
+
+   /**
+    * Drops the cached menu so the next read reloads it. Called after any
+    * write to the Menu table.
+    */
+   public void invalidate() {
+      this._invalidations.incrementAndGet();
+      this._snapshot = null;
+   }
+
+   /*
+    * Returns the cached snapshot. When the version check interval has
+    * passed, the first caller re-syncs it while later ones keep the old
+    * snapshot; callers wait for the re-sync only when there is no snapshot.
+    */
+   private Snapshot current() throws SQLException {
+      while (true) {
+         Snapshot snapshot = this._snapshot;
+         if (snapshot != null && System.currentTimeMillis() - this._lastCheck < this._checkIntervalMillis) {
+            return snapshot;
+         }
+         FutureTask<Snapshot> refresh = this._refresh.get();
+         if (refresh == null) {
+            refresh = new FutureTask<Snapshot>(new Callable<Snapshot>() {
+               public Snapshot call() throws SQLException {
+                  return resync();
+               }
+            });
+            if (!this._refresh.compareAndSet(null, refresh)) {
+               continue;
+            }
+            try {
+               refresh.run();
+            } finally {
+               this._refresh.compareAndSet(refresh, null);
+            }
+         } else if (snapshot != null) {
+            // another reader is re-syncing, serve the current copy meanwhile
+            return snapshot;
+         }
+         return await(refresh);
+      }
+   }// end current
+
+   /*
+    * Reloads the menu if it is missing or its version moved, and publishes
+    * it unless invalidate() was called meanwhile.
+    */
+   private Snapshot resync() throws SQLException {
+      long invalidations = this._invalidations.get();
+      long now = System.currentTimeMillis();
+      Snapshot snapshot = this._snapshot;
+      long version = readVersion();
+      if (snapshot == null || snapshot.version != version) {
+         snapshot = load(version);
+      }
+      if (this._invalidations.get() == invalidations) {
+         this._snapshot = snapshot;
+         this._lastCheck = now;
+      }
+      return snapshot;
+   }// end resync
+
+   private static Snapshot await(FutureTask<Snapshot> refresh) throws SQLException {
+      try {
+         return refresh.get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) {
+            throw (SQLException) e.getCause();
+         }
+         throw new SQLException("Menu reload failed: " + e.getCause(), e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the menu", e);
+      }
+   }
+
+   private long readVersion() throws SQLException {
+      return this._esql.queryForLong(VERSION_QUERY, -1);
+   }
+
+   private Snapshot load(long version) throws SQLException {
+      Snapshot snapshot = new Snapshot(version, this._esql.queryForList(LOAD_QUERY, MenuItem.MAPPER), this._lastIndex);
+      this._lastIndex = snapshot.index;
+      return snapshot;
+   }
+
+}// end MenuCache
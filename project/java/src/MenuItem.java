@@ -0,0 +1,67 @@
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One row of the Menu table, with surrounding whitespace trimmed off the
+ * text columns and nulls read as empty strings.
+ */
+public class MenuItem {
+
+   /**
+    * Maps a row of (itemName, type, price, description, imageURL).
+    */
+   public static final RowMapper<MenuItem> MAPPER = new RowMapper<MenuItem>() {
+      public MenuItem mapRow(ResultSet rs) throws SQLException {
+         return new MenuItem(rs.getString(1), rs.getString(2), rs.getBigDecimal(3), rs.getString(4), rs.getString(5));
+      }
+   };
+
+   private final String _name;
+   private final String _type;
+   private final BigDecimal _price;
+   private final String _description;
+   private final String _imageURL;
+
+   /**
+    * Creates a new menu item
+    *
+    * @param name the item name
+    * @param type 'Drinks', 'Sweets' or 'Soup'
+    * @param price the item price
+    * @param description comma-separated variants of the item, may be empty
+    * @param imageURL link to a picture of the item, may be empty
+    */
+   public MenuItem(String name, String type, BigDecimal price, String description, String imageURL) {
+      this._name = trim(name);
+      this._type = trim(type);
+      this._price = price;
+      this._description = trim(description);
+      this._imageURL = trim(imageURL);
+   }// end MenuItem
+
+   public String getName() {
+      return this._name;
+   }
+
+   public String getType() {
+      return this._type;
+   }
+
+   public BigDecimal getPrice() {
+      return this._price;
+   }
+
+   public String getDescription() {
+      return this._description;
+   }
+
+   public String getImageURL() {
+      return this._imageURL;
+   }
+
+   private static String trim(String value) {
+      return value == null ? "" : value.trim();
+   }
+
+}// end MenuItem
@@ -0,0 +1,445 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable search index over the names of the menu items and the
+ * comma-separated variants in their descriptions (e.g. "Latte" finds
+ * Coffee). It answers three kinds of lookups without touching the database:
+ *
+ *    find      exact name or variant, ignoring case and extra blanks
+ *    complete  names and variants starting with a prefix, or with a word
+ *              starting with it ("lat" finds Latte, "juice" Orange Juice)
+ *    suggest   names and variants within a few typos of the query, for
+ *              "did you mean" (trigram candidates, ranked by edit distance)
+ *
+ * Prefixes are found by binary search over the sorted keys, which serves as
+ * a flat trie; typos are found through an index of the keys' trigrams.
+ * update() builds the index of a new menu version reusing the analysis of
+ * every item that did not change.
+ */
+public class MenuSearchIndex {
+
+   /**
+    * One search result: an item and the name or variant that matched.
+    */
+   public static class Match {
+      private final MenuItem _item;
+      private final String _term;
+      private final int _distance;
+
+      Match(MenuItem item, String term, int distance) {
+         this._item = item;
+         this._term = term;
+         this._distance = distance;
+      }
+
+      public MenuItem getItem() {
+         return this._item;
+      }
+
+      /**
+       * @return the item name, or the variant of the item that matched
+       */
+      public String getTerm() {
+         return this._term;
+      }
+
+      /**
+       * @return the number of typos between the query and the term, 0 for
+       *         exact and prefix matches
+       */
+      public int getDistance() {
+         return this._distance;
+      }
+
+      /**
+       * @return whether the match was on a variant rather than the name
+       */
+      public boolean isVariant() {
+         return !this._term.equals(this._item.getName());
+      }
+
+      public String toString() {
+         return isVariant() ? this._item.getName() + " (" + this._term + ")" : this._item.getName();
+      }
+   }// end Match
+
+   /*
+    * The searchable terms of one item, analyzed once per item version.
+    */
+   private static class Entry {
+      final MenuItem item;
+      // the name first, then the variants, as written
+      final String[] terms;
+      final String[] normalized;
+
+      Entry(MenuItem item) {
+         this.item = item;
+         List<String> terms = new ArrayList<String>();
+         terms.add(item.getName());
+         for (String variant : item.getDescription().split(",")) {
+            String term = variant.trim();
+            if (term.length() > 0 && !containsIgnoreCase(terms, term)) {
+               terms.add(term);
+            }
+         }
+         this.terms = terms.toArray(new String[terms.size()]);
+         this.normalized = new String[this.terms.length];
+         for (int i = 0; i < this.terms.length; ++i) {
+            this.normalized[i] = normalize(this.terms[i]);
+         }
+      }
+
+      Entry(MenuItem item, Entry unchanged) {
+         this.item = item;
+         this.terms = unchanged.terms;
+         this.normalized = unchanged.normalized;
+      }
+
+      boolean sameAs(MenuItem other) {
+         return this.item.getName().equals(other.getName())
+               && this.item.getDescription().equals(other.getDescription());
+      }
+   }// end Entry
+
+   /*
+    * A prefix key: a term, or the tail of a term from one of its words on.
+    * Refers back to the term by entry and term index.
+    */
+   private static class Key {
+      final String text;
+      final int entry;
+      final int term;
+
+      Key(String text, int entry, int term) {
+         this.text = text;
+         this.entry = entry;
+         this.term = term;
+      }
+   }// end Key
+
+   private static final Comparator<Key> KEY_ORDER = new Comparator<Key>() {
+      public int compare(Key a, Key b) {
+         return a.text.compareTo(b.text);
+      }
+   };
+
+   // Longest query looked up by suggest(), in characters.
+   private static final int MAX_QUERY_LENGTH = 64;
+
+   private final Entry[] _entries;
+
+   // Prefix keys sorted by text, with the texts alone for binary search.
+   private final Key[] _keys;
+   private final String[] _keyTexts;
+
+   // Normalized term to (entry, term) pairs, for exact lookups.
+   private final Map<String, int[]> _exact = new HashMap<String, int[]>();
+
+   // Trigram to the (entry << 16 | term) codes of the terms containing it.
+   private final Map<String, int[]> _trigrams = new HashMap<String, int[]>();
+
+   private MenuSearchIndex(Entry[] entries) {
+      this._entries = entries;
+      List<Key> keys = new ArrayList<Key>();
+      Map<String, List<Integer>> trigrams = new HashMap<String, List<Integer>>();
+      for (int e = 0; e < entries.length; ++e) {
+         String[] normalized = entries[e].normalized;
+         for (int t = 0; t < normalized.length; ++t) {
+            String term = normalized[t];
+            if (!this._exact.containsKey(term)) {
+               this._exact.put(term, new int[] { e, t });
+            }
+            keys.add(new Key(term, e, t));
+            for (int i = term.indexOf(' '); i >= 0; i = term.indexOf(' ', i + 1)) {
+               keys.add(new Key(term.substring(i + 1), e, t));
+            }
+            for (String trigram : trigrams(term)) {
+               List<Integer> codes = trigrams.get(trigram);
+               if (codes == null) {
+                  codes = new ArrayList<Integer>();
+                  trigrams.put(trigram, codes);
+               }
+               codes.add((e << 16) | t);
+            }
+         }
+      }
+      Collections.sort(keys, KEY_ORDER);
+      this._keys = keys.toArray(new Key[keys.size()]);
+      this._keyTexts = new String[this._keys.length];
+      for (int i = 0; i < this._keys.length; ++i) {
+         this._keyTexts[i] = this._keys[i].text;
+      }
+      for (Map.Entry<String, List<Integer>> trigram : trigrams.entrySet()) {
+         List<Integer> codes = trigram.getValue();
+         int[] array = new int[codes.size()];
+         for (int i = 0; i < array.length; ++i) {
+            array[i] = codes.get(i);
+         }
+         this._trigrams.put(trigram.getKey(), array);
+      }
+   }// end MenuSearchIndex
+
+   /**
+    * @param items the menu items to index
+    * @return a new index over the items
+    */
+   public static MenuSearchIndex build(List<MenuItem> items) {
+      return empty().update(items);
+   }
+
+   public static MenuSearchIndex empty() {
+      return new MenuSearchIndex(new Entry[0]);
+   }
+
+   /**
+    * Returns an index over a new version of the menu. Items whose name and
+    * description did not change keep their analyzed terms.
+    *
+    * @param items every item of the new menu version
+    * @return the new index; this one is unchanged
+    */
+   public MenuSearchIndex update(List<MenuItem> items) {
+      Map<String, Entry> previous = new HashMap<String, Entry>();
+      for (Entry entry : this._entries) {
+         previous.put(entry.item.getName(), entry);
+      }
+      Entry[] entries = new Entry[items.size()];
+      for (int i = 0; i < entries.length; ++i) {
+         MenuItem item = items.get(i);
+         Entry entry = previous.get(item.getName());
+         if (entry == null || !entry.sameAs(item)) {
+            entry = new Entry(item);
+         } else if (entry.item != item) {
+            // same terms, but price, type or image may differ
+            entry = new Entry(item, entry);
+         }
+         entries[i] = entry;
+      }
+      return new MenuSearchIndex(entries);
+   }// end update
+
+   /**
+    * @param query an item name or variant, in any case
+    * @return the match, or null when no name or variant is exactly the query
+    */
+   public Match find(String query) {
+      int[] hit = this._exact.get(normalize(query));
+      if (hit == null) {
+         return null;
+      }
+      Entry entry = this._entries[hit[0]];
+      return new Match(entry.item, entry.terms[hit[1]], 0);
+   }
+
+   /**
+    * Finds the names and variants that start with the prefix, or have a
+    * word starting with it. Names rank before variants, then shorter and
+    * alphabetically first terms before others.
+    *
+    * @param prefix the text typed so far
+    * @param limit the most matches returned
+    * @return at most limit matches, at most one per item
+    */
+   public List<Match> complete(String prefix, int limit) {
+      String key = normalize(prefix);
+      if (key.length() == 0 || limit <= 0) {
+         return Collections.emptyList();
+      }
+      int from = Arrays.binarySearch(this._keyTexts, key);
+      if (from < 0) {
+         from = -from - 1;
+      }
+      // best term per item
+      Map<Integer, Integer> best = new LinkedHashMap<Integer, Integer>();
+      for (int i = from; i < this._keys.length && this._keyTexts[i].startsWith(key); ++i) {
+         Key k = this._keys[i];
+         Integer term = best.get(k.entry);
+         if (term == null || rank(k.entry, k.term) < rank(k.entry, term)) {
+            best.put(k.entry, k.term);
+         }
+      }
+      List<Match> matches = new ArrayList<Match>();
+      for (Map.Entry<Integer, Integer> hit : best.entrySet()) {
+         Entry entry = this._entries[hit.getKey()];
+         matches.add(new Match(entry.item, entry.terms[hit.getValue()], 0));
+      }
+      Collections.sort(matches, new Comparator<Match>() {
+         public int compare(Match a, Match b) {
+            return compareMatches(a, b);
+         }
+      });
+      return matches.size() > limit ? new ArrayList<Match>(matches.subList(0, limit)) : matches;
+   }// end complete
+
+   /**
+    * Finds the names and variants closest to a misspelled query: those
+    * sharing a trigram with it and within about one typo per three letters,
+    * counting a swap of neighbouring letters as one typo.
+    *
+    * @param query the text that did not match
+    * @param limit the most suggestions returned
+    * @return at most limit matches, closest first, at most one per item
+    */
+   public List<Match> suggest(String query, int limit) {
+      String text = normalize(query);
+      if (text.length() == 0 || text.length() > MAX_QUERY_LENGTH || limit <= 0) {
+         return Collections.emptyList();
+      }
+      Map<Integer, Integer> shared = new HashMap<Integer, Integer>();
+      for (String trigram : trigrams(text)) {
+         int[] codes = this._trigrams.get(trigram);
+         if (codes == null) {
+            continue;
+         }
+         for (int code : codes) {
+            Integer count = shared.get(code);
+            shared.put(code, count == null ? 1 : count + 1);
+         }
+      }
+
+      Map<Integer, Match> best = new HashMap<Integer, Match>();
+      for (int code : shared.keySet()) {
+         int e = code >>> 16;
+         int t = code & 0xffff;
+         String term = this._entries[e].normalized[t];
+         int maxDistance = Math.max(1, (text.length() + 1) / 3);
+         int distance = distance(text, term, maxDistance);
+         if (distance > maxDistance) {
+            continue;
+         }
+         Match match = new Match(this._entries[e].item, this._entries[e].terms[t], distance);
+         Match other = best.get(e);
+         if (other == null || compareMatches(match, other) < 0) {
+            best.put(e, match);
+         }
+      }
+      List<Match> matches = new ArrayList<Match>(best.values());
+      Collections.sort(matches, new Comparator<Match>() {
+         public int compare(Match a, Match b) {
+            return compareMatches(a, b);
+         }
+      });
+      return matches.size() > limit ? new ArrayList<Match>(matches.subList(0, limit)) : matches;
+   }// end suggest
+
+   /**
+    * Looks the query up exactly, then as a prefix, then as a misspelling.
+    *
+    * @param query what the user typed
+    * @param limit the most matches returned
+    * @return the exact match alone, else the completions, else the suggestions
+    */
+   public List<Match> search(String query, int limit) {
+      Match exact = find(query);
+      if (exact != null) {
+         return Collections.singletonList(exact);
+      }
+      List<Match> matches = complete(query, limit);
+      return matches.isEmpty() ? suggest(query, limit) : matches;
+   }
+
+   public int size() {
+      return this._entries.length;
+   }
+
+   /*
+    * Orders matches by distance, names before variants, then by length and
+    * alphabetically.
+    */
+   private static int compareMatches(Match a, Match b) {
+      if (a.getDistance() != b.getDistance()) {
+         return a.getDistance() < b.getDistance() ? -1 : 1;
+      }
+      if (a.isVariant() != b.isVariant()) {
+         return a.isVariant() ? 1 : -1;
+      }
+      if (a.getTerm().length() != b.getTerm().length()) {
+         return a.getTerm().length() < b.getTerm().length() ? -1 : 1;
+      }
+      return a.getTerm().compareToIgnoreCase(b.getTerm());
+   }
+
+   private int rank(int entry, int term) {
+      // the name (term 0) first, then shorter variants
+      return term == 0 ? -1 : this._entries[entry].terms[term].length();
+   }
+
+   /*
+    * Lower case with runs of blanks collapsed to one space.
+    */
+   static String normalize(String text) {
+      return text == null ? "" : text.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+   }
+
+   /*
+    * The trigrams of a term padded with one blank at each end, so short
+    * terms and word boundaries have trigrams too.
+    */
+   static List<String> trigrams(String term) {
+      String padded = " " + term + " ";
+      List<String> trigrams = new ArrayList<String>();
+      for (int i = 0; i + 3 <= padded.length(); ++i) {
+         String trigram = padded.substring(i, i + 3);
+         if (!trigrams.contains(trigram)) {
+            trigrams.add(trigram);
+         }
+      }
+      return trigrams;
+   }
+
+   /*
+    * Edit distance counting insertions, deletions, substitutions and swaps
+    * of neighbouring letters (optimal string alignment). Gives up early and
+    * returns max + 1 once every alignment is further than max.
+    */
+   static int distance(String a, String b, int max) {
+      if (Math.abs(a.length() - b.length()) > max) {
+         return max + 1;
+      }
+      int[] previous2 = new int[b.length() + 1];
+      int[] previous = new int[b.length() + 1];
+      int[] current = new int[b.length() + 1];
+      for (int j = 0; j <= b.length(); ++j) {
+         previous[j] = j;
+      }
+      for (int i = 1; i <= a.length(); ++i) {
+         current[0] = i;
+         int rowMin = current[0];
+         for (int j = 1; j <= b.length(); ++j) {
+            int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+            int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+            if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+               value = Math.min(value, previous2[j - 2] + 1);
+            }
+            current[j] = value;
+            rowMin = Math.min(rowMin, value);
+         }
+         if (rowMin > max) {
+            return max + 1;
+         }
+         int[] recycled = previous2;
+         previous2 = previous;
+         previous = current;
+         current = recycled;
+      }
+      return previous[b.length()];
+   }// end distance
+
+   private static boolean containsIgnoreCase(List<String> terms, String term) {
+      for (String other : terms) {
+         if (other.equalsIgnoreCase(term)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+}// end MenuSearchIndex
@@ -0,0 +1,57 @@
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * One row of the Orders table.
+ */
+public class Order {
+
+   /**
+    * Maps a row of (orderid, login, paid, timeStampRecieved, total).
+    */
+   public static final RowMapper<Order> MAPPER = new RowMapper<Order>() {
+      public Order mapRow(ResultSet rs) throws SQLException {
+         return new Order(rs.getInt(1), rs.getString(2), rs.getBoolean(3), rs.getTimestamp(4), rs.getBigDecimal(5));
+      }
+   };
+
+   // Column list matching MAPPER, for use in SELECT statements.
+   public static final String COLUMNS = "orderid, login, paid, timeStampRecieved, total";
+
+   private final int _orderid;
+   private final String _login;
+   private final boolean _paid;
+   private final Timestamp _timeStampRecieved;
+   private final BigDecimal _total;
+
+   public Order(int orderid, String login, boolean paid, Timestamp timeStampRecieved, BigDecimal total) {
+      this._orderid = orderid;
+      this._login = login == null ? "" : login.trim();
+      this._paid = paid;
+      this._timeStampRecieved = timeStampRecieved;
+      this._total = total;
+   }// end Order
+
+   public int getOrderid() {
+      return this._orderid;
+   }
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public boolean isPaid() {
+      return this._paid;
+   }
+
+   public Timestamp getTimeStampRecieved() {
+      return this._timeStampRecieved;
+   }
+
+   public BigDecimal getTotal() {
+      return this._total;
+   }
+
+}// end Order
@@ -0,0 +1,121 @@
+import java.sql.SQLException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the live, monthly partitioned Orders and ItemStatus
+ * tables down to the orders still in use. On every run it
+ *
+ *    creates the partitions for the coming months, so new orders never
+ *    land in the default partition;
+ *    moves the paid orders whose items are all Finished and that are older
+ *    than the retention window, with their items, to OrdersArchive and
+ *    ItemStatusArchive, one batch per transaction so locks stay short;
+ *    drops the monthly partitions the move left empty.
+ *
+ * The work is done by the functions in create_partitions.sql. Several
+ * Cafes may run the job at once: orders locked by one run are skipped by
+ * the others.
+ */
+public class OrderArchiver {
+
+   private final Cafe _esql;
+   private final long _intervalMillis;
+   private final int _retentionDays;
+   private final int _batchSize;
+   private final int _monthsAhead;
+
+   private Timer _timer = null;
+   private volatile boolean _stopped = false;
+
+   private final AtomicLong _runs = new AtomicLong();
+   private final AtomicLong _archived = new AtomicLong();
+   private final AtomicLong _partitionsCreated = new AtomicLong();
+   private final AtomicLong _partitionsDropped = new AtomicLong();
+   private volatile String _lastError = null;
+
+   /**
+    * Creates a new archiver. Call start() to schedule it.
+    *
+    * @param esql the Cafe whose orders are archived
+    * @param intervalMillis time between runs, 0 to never run
+    * @param retentionDays how many days orders stay in the live tables
+    * @param batchSize the most orders moved in one transaction
+    * @param monthsAhead how many months of partitions are created ahead
+    */
+   public OrderArchiver(Cafe esql, long intervalMillis, int retentionDays, int batchSize, int monthsAhead) {
+      this._esql = esql;
+      this._intervalMillis = intervalMillis;
+      this._retentionDays = Math.max(1, retentionDays);
+      this._batchSize = Math.max(1, batchSize);
+      this._monthsAhead = Math.max(1, monthsAhead);
+   }// end OrderArchiver
+
+   /**
+    * Runs the archiver now and then every interval on a daemon thread.
+    */
+   public synchronized void start() {
+      if (this._timer != null || this._intervalMillis <= 0) {
+         return;
+      }
+      this._stopped = false;
+      this._timer = new Timer("cafe-order-archiver", true);
+      this._timer.schedule(new TimerTask() {
+         public void run() {
+            archive();
+         }
+      }, 0, this._intervalMillis);
+   }// end start
+
+   /**
+    * Stops scheduling runs. A batch in flight is finished.
+    */
+   public synchronized void stop() {
+      this._stopped = true;
+      if (this._timer != null) {
+         this._timer.cancel();
+         this._timer = null;
+      }
+   }
+
+   /**
+    * @return the counts of runs, archived orders and partitions created and dropped
+    */
+   public String getStats() {
+      return String.format("archiver: %d runs, %d orders archived, %d partitions created, %d dropped%s",
+            this._runs.get(), this._archived.get(), this._partitionsCreated.get(), this._partitionsDropped.get(),
+            this._lastError == null ? "" : ", last error: " + this._lastError);
+   }
+
+   /*
+    * One run: partitions ahead, archive in batches, drop empty partitions.
+    */
+   private void archive() {
+      try {
+         // the functions write, though they are called from a SELECT, so they are marked as writes
+         this._partitionsCreated.addAndGet(this._esql.queryForLong(false,
+               "SELECT createOrderPartitions(CAST(now() AS timestamp), " +
+               "CAST(now() + CAST(? AS integer) * interval '1 month' AS timestamp))", 0, this._monthsAhead));
+
+         long moved;
+         do {
+            moved = this._esql.queryForLong(false,
+                  "SELECT archiveOrders(CAST(now() - CAST(? AS integer) * interval '1 day' AS timestamp), ?)",
+                  0, this._retentionDays, this._batchSize);
+            this._archived.addAndGet(moved);
+         } while (moved >= this._batchSize && !this._stopped);
+
+         this._partitionsDropped.addAndGet(this._esql.queryForLong(false,
+               "SELECT dropArchivedPartitions(CAST(now() - CAST(? AS integer) * interval '1 day' AS timestamp))",
+               0, this._retentionDays));
+         this._lastError = null;
+      } catch (SQLException e) {
+         this._lastError = e.getMessage();
+         System.err.println("Order archiving failed: " + e.getMessage());
+      } finally {
+         this._runs.incrementAndGet();
+      }
+   }// end archive
+
+}// end OrderArchiver
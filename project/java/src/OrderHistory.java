@@ -0,0 +1,190 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pages through orders newest first, either one customer's orders or every
+ * order of the last 24 hours. Pages are found by keyset rather than OFFSET:
+ * a page starts right after (timeStampRecieved, orderid) of the order that
+ * ended the previous one, so with the composite indexes from
+ * create_indexes.sql every page costs the same however long the history.
+ *
+ * The anchor order's key is looked up by orderid on the server, so paging
+ * only needs the orderid of the first or last order shown. A customer's
+ * history includes the archived orders; the last 24 hours are never
+ * archived, so that pager reads the live Orders table only.
+ */
+public class OrderHistory {
+
+   private static final String KEY = "(timeStampRecieved, orderid)";
+   // The partitioned Orders keys on (orderid, timeStampRecieved): orderid is
+   // unique through its sequence only, so the anchor takes at most one row.
+   private static final String ANCHOR = "(SELECT K.timeStampRecieved, K.orderid FROM %s K WHERE K.orderid = ? LIMIT 1)";
+   private static final String NEWEST_FIRST = " ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?";
+   private static final String OLDEST_FIRST = " ORDER BY timeStampRecieved ASC, orderid ASC LIMIT ?";
+
+   private final Cafe _esql;
+   private final String _select;
+   private final String _anchor;
+   private final Object[] _filterParams;
+   private final int _pageSize;
+
+   // Position of the current page, for next() and previous().
+   private int _firstId = -1;
+   private int _lastId = -1;
+   private int _pageNumber = 0;
+   private boolean _hasNext = false;
+   private boolean _hasPrevious = false;
+
+   private OrderHistory(Cafe esql, String table, String filter, Object[] filterParams, int pageSize) {
+      this._esql = esql;
+      this._select = "SELECT " + Order.COLUMNS + " FROM " + table + " WHERE " + filter;
+      this._anchor = String.format(ANCHOR, table);
+      this._filterParams = filterParams;
+      this._pageSize = Math.max(1, pageSize);
+   }// end OrderHistory
+
+   /**
+    * @param esql the Cafe used to run the queries
+    * @param login the customer whose orders are listed
+    * @param pageSize the number of orders per page
+    * @return a pager over the customer's orders
+    */
+   public static OrderHistory forUser(Cafe esql, String login, int pageSize) {
+      return new OrderHistory(esql, "AllOrders", "login = ?", new Object[] { login }, pageSize);
+   }
+
+   /**
+    * @param esql the Cafe used to run the queries
+    * @param pageSize the number of orders per page
+    * @return a pager over every order received in the last 24 hours
+    */
+   public static OrderHistory lastDay(Cafe esql, int pageSize) {
+      return new OrderHistory(esql, "Orders", "timeStampRecieved > now() - interval '1 day'", new Object[0], pageSize);
+   }
+
+   /**
+    * @return the newest page
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Order> first() throws SQLException {
+      List<Order> page = fetch(this._select + NEWEST_FIRST, null);
+      this._hasNext = trim(page);
+      this._hasPrevious = false;
+      this._pageNumber = 1;
+      return remember(page);
+   }
+
+   /**
+    * @return the page of older orders following the current page, or the
+    *         current position unchanged and an empty list if there is none
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Order> next() throws SQLException {
+      if (!this._hasNext) {
+         return Collections.emptyList();
+      }
+      List<Order> page = fetch(this._select + " AND " + KEY + " < " + this._anchor + NEWEST_FIRST, this._lastId);
+      this._hasNext = trim(page);
+      this._hasPrevious = true;
+      ++this._pageNumber;
+      return remember(page);
+   }
+
+   /**
+    * @return the page of newer orders preceding the current page, or an
+    *         empty list if the current page is the newest
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Order> previous() throws SQLException {
+      if (!this._hasPrevious) {
+         return Collections.emptyList();
+      }
+      List<Order> page = fetch(this._select + " AND " + KEY + " > " + this._anchor + OLDEST_FIRST, this._firstId);
+      this._hasPrevious = trim(page);
+      this._hasNext = true;
+      this._pageNumber = this._hasPrevious ? Math.max(2, this._pageNumber - 1) : 1;
+      Collections.reverse(page);
+      return remember(page);
+   }
+
+   /**
+    * Returns the page of orders older than the given one, without moving
+    * the current position.
+    *
+    * @param orderid the last order already shown
+    * @return up to a page of orders, newest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Order> olderThan(int orderid) throws SQLException {
+      List<Order> page = fetch(this._select + " AND " + KEY + " < " + this._anchor + NEWEST_FIRST, orderid);
+      trim(page);
+      return page;
+   }
+
+   /**
+    * Returns the page of orders newer than the given one, without moving
+    * the current position.
+    *
+    * @param orderid the first order already shown
+    * @return up to a page of orders, newest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<Order> newerThan(int orderid) throws SQLException {
+      List<Order> page = fetch(this._select + " AND " + KEY + " > " + this._anchor + OLDEST_FIRST, orderid);
+      trim(page);
+      Collections.reverse(page);
+      return page;
+   }
+
+   public boolean hasNext() {
+      return this._hasNext;
+   }
+
+   public boolean hasPrevious() {
+      return this._hasPrevious;
+   }
+
+   /**
+    * @return the 1-based number of the current page, counted from the newest
+    */
+   public int getPageNumber() {
+      return this._pageNumber;
+   }
+
+   /*
+    * Runs a page query, fetching one order more than a page so the caller
+    * can tell whether another page follows.
+    */
+   private List<Order> fetch(String query, Integer anchor) throws SQLException {
+      List<Object> params = new ArrayList<Object>();
+      Collections.addAll(params, this._filterParams);
+      if (anchor != null) {
+         params.add(anchor);
+      }
+      params.add(this._pageSize + 1);
+      return this._esql.queryForList(query, Order.MAPPER, params.toArray());
+   }
+
+   /*
+    * Drops the extra order fetched past the page.
+    * @return true if there was one
+    */
+   private boolean trim(List<Order> page) {
+      if (page.size() <= this._pageSize) {
+         return false;
+      }
+      page.remove(page.size() - 1);
+      return true;
+   }
+
+   private List<Order> remember(List<Order> page) {
+      if (!page.isEmpty()) {
+         this._firstId = page.get(0).getOrderid();
+         this._lastId = page.get(page.size() - 1).getOrderid();
+      }
+      return page;
+   }
+
+}// end OrderHistory
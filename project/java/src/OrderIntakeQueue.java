@@ -0,0 +1,362 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class accepts validated orders without waiting for the database.
+ * submit() reserves the orderid from a block of sequence values fetched
+ * ahead, appends the order to a bounded queue and returns. A background
+ * writer drains the queue in batches and stores each batch, orders and
+ * items alike, with one INSERT statement: one round trip and one commit
+ * per batch rather than per order, so throughput grows with the batch
+ * size while the database is the bottleneck.
+ *
+ * When the queue is full submit() blocks, up to a timeout, until the
+ * writer catches up. An order that cannot be stored with its batch is
+ * retried on its own so one bad order does not fail the others; an order
+ * that still fails is remembered, and awaitWritten() throws for it. Readers
+ * of an order that may still be queued call awaitWritten() first. close()
+ * stops intake and drains the queue.
+ */
+public class OrderIntakeQueue {
+
+   /**
+    * Thrown by awaitWritten() for an order that was accepted but could not
+    * be stored, so it does not exist.
+    */
+   public static class OrderNotStoredException extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      OrderNotStoredException(int orderid, String reason) {
+         super(String.format("Order %d could not be stored: %s", orderid, reason));
+      }
+   }// end OrderNotStoredException
+
+   /*
+    * One accepted order, until it is written.
+    */
+   private static class Cart {
+      final int orderid;
+      final String login;
+      final List<String> itemNames;
+      final List<String> comments;
+      final Timestamp received;
+      final CountDownLatch written = new CountDownLatch(1);
+
+      Cart(int orderid, String login, List<String> itemNames, List<String> comments) {
+         this.orderid = orderid;
+         this.login = login;
+         this.itemNames = new ArrayList<String>(itemNames);
+         this.comments = new ArrayList<String>(comments);
+         this.received = new Timestamp(System.currentTimeMillis());
+      }
+   }// end Cart
+
+   // Failed orders remembered for awaitWritten(); older ones are forgotten.
+   private static final int MAX_FAILED_KEPT = 10000;
+
+   // Stores a batch: the items of every order come bound as five arrays,
+   // one element per item, so batches of every size share one statement.
+   private static final String INSERT_BATCH =
+         "WITH I (orderid, login, itemName, comments, received) AS (SELECT * FROM unnest(" +
+         "CAST(? AS integer[]), CAST(? AS text[]), CAST(? AS text[]), CAST(? AS text[]), CAST(? AS timestamp[]))), " +
+         "O AS (INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) " +
+         "SELECT I.orderid, min(I.login), false, min(I.received), SUM(M.price) " +
+         "FROM I LEFT JOIN Menu M ON M.itemName = I.itemName GROUP BY I.orderid RETURNING orderid) " +
+         "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price) " +
+         "SELECT I.orderid, I.itemName, I.received, CAST('Hasn''t started' AS item_status), I.comments, I.received, M.price " +
+         "FROM I JOIN O ON O.orderid = I.orderid LEFT JOIN Menu M ON M.itemName = I.itemName";
+
+   private final Cafe _esql;
+   private final BlockingQueue<Cart> _queue;
+   private final int _batchSize;
+   private final long _offerTimeoutMillis;
+   private final int _idBlockSize;
+
+   // Orders accepted but not yet written, by orderid.
+   private final ConcurrentMap<Integer, Cart> _pending = new ConcurrentHashMap<Integer, Cart>();
+
+   // Orders that could not be stored, oldest first, with the reason. Guarded by itself.
+   private final Map<Integer, String> _failedOrders = new LinkedHashMap<Integer, String>();
+
+   // Reserved orderids not handed out yet. Guarded by itself.
+   private final LinkedList<Integer> _reservedIds = new LinkedList<Integer>();
+
+   private Thread _writer = null;
+   private volatile boolean _closed = false;
+
+   private final AtomicLong _submitted = new AtomicLong();
+   private final AtomicLong _written = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _fullWaits = new AtomicLong();
+
+   /**
+    * Creates a new, empty intake queue. The writer thread starts with the
+    * first submit().
+    *
+    * @param esql the Cafe used to write the orders
+    * @param capacity the most orders queued before submit() blocks
+    * @param batchSize the most orders written in one statement
+    * @param offerTimeoutMillis how long submit() waits for room in a full queue
+    * @param idBlockSize how many orderids are reserved from the sequence at once
+    */
+   public OrderIntakeQueue(Cafe esql, int capacity, int batchSize, long offerTimeoutMillis, int idBlockSize) {
+      this._esql = esql;
+      this._queue = new ArrayBlockingQueue<Cart>(Math.max(1, capacity));
+      this._batchSize = Math.max(1, batchSize);
+      this._offerTimeoutMillis = offerTimeoutMillis;
+      this._idBlockSize = Math.max(1, idBlockSize);
+   }// end OrderIntakeQueue
+
+   /**
+    * Accepts an order for writing in the background.
+    *
+    * @param login the customer placing the order
+    * @param itemNames the names of the ordered menu items, at least one, no duplicates
+    * @param comments the comment for each item, in the same order
+    * @return the orderid the order will be stored under
+    * @throws java.sql.SQLException when the queue stayed full for the offer
+    *         timeout, is closed, or no orderid could be reserved
+    */
+   public int submit(String login, List<String> itemNames, List<String> comments) throws SQLException {
+      if (this._closed) {
+         throw new SQLException("Order intake is closed");
+      }
+      startWriter();
+      Cart cart = new Cart(nextOrderId(), login, itemNames, comments);
+      this._pending.put(cart.orderid, cart);
+      try {
+         if (!this._queue.offer(cart)) {
+            // backpressure: wait for the writer to make room
+            this._fullWaits.incrementAndGet();
+            if (!this._queue.offer(cart, this._offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+               this._pending.remove(cart.orderid);
+               throw new SQLException(String.format(
+                     "Order intake is full (%d orders waiting), try again later", this._queue.size()));
+            }
+         }
+      } catch (InterruptedException e) {
+         this._pending.remove(cart.orderid);
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for room in the order intake");
+      }
+      this._submitted.incrementAndGet();
+      this._esql.noteWrite();
+      return cart.orderid;
+   }// end submit
+
+   /**
+    * Waits until an order accepted by submit() has been written. Returns
+    * at once for orders that were never queued here.
+    *
+    * @param orderid the order
+    * @param timeoutMillis the longest time to wait
+    * @return false if the order is still queued after the timeout
+    * @throws OrderNotStoredException when the order was queued here but could not be stored
+    */
+   public boolean awaitWritten(int orderid, long timeoutMillis) throws OrderNotStoredException {
+      Cart cart = this._pending.get(orderid);
+      if (cart != null) {
+         try {
+            if (!cart.written.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+               return false;
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+      String reason;
+      synchronized (this._failedOrders) {
+         reason = this._failedOrders.get(orderid);
+      }
+      if (reason != null) {
+         throw new OrderNotStoredException(orderid, reason);
+      }
+      return true;
+   }// end awaitWritten
+
+   /**
+    * Stops accepting orders and waits up to the given time for the queued
+    * ones to be written.
+    *
+    * @param timeoutMillis the longest time to wait for the drain
+    * @return false if orders were still queued when the wait ended
+    */
+   public boolean close(long timeoutMillis) {
+      Thread writer;
+      synchronized (this) {
+         this._closed = true;
+         writer = this._writer;
+      }
+      if (writer != null) {
+         try {
+            writer.join(timeoutMillis);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      if (writer == null || !writer.isAlive()) {
+         // orders that raced with close() after the writer finished
+         List<Cart> late = new ArrayList<Cart>();
+         while (this._queue.drainTo(late, this._batchSize) > 0) {
+            write(late);
+            late.clear();
+         }
+      }
+      return this._queue.isEmpty() && this._pending.isEmpty();
+   }// end close
+
+   public int getQueueSize() {
+      return this._queue.size();
+   }
+
+   /**
+    * @return the counts of orders submitted, written and failed, and of batches
+    */
+   public String getStats() {
+      long batches = this._batches.get();
+      return String.format(
+            "intake: %d submitted, %d written, %d failed, %d queued, %d batches (avg %.1f orders), %d waits for room",
+            this._submitted.get(), this._written.get(), this._failed.get(), this._queue.size(), batches,
+            batches == 0 ? 0.0 : (this._written.get() + this._failed.get()) / (double) batches, this._fullWaits.get());
+   }
+
+   private synchronized void startWriter() {
+      if (this._writer != null || this._closed) {
+         return;
+      }
+      this._writer = new Thread("cafe-order-intake") {
+         public void run() {
+            drain();
+         }
+      };
+      // not a daemon: queued orders must be written before the JVM exits
+      this._writer.start();
+   }// end startWriter
+
+   /*
+    * Body of the writer thread: writes batches until closed and empty.
+    */
+   private void drain() {
+      List<Cart> batch = new ArrayList<Cart>(this._batchSize);
+      while (true) {
+         Cart first;
+         try {
+            first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            first = this._queue.poll();
+         }
+         if (first == null) {
+            if (this._closed) {
+               return;
+            }
+            continue;
+         }
+         batch.clear();
+         batch.add(first);
+         // whatever queued up during the last write joins this one
+         this._queue.drainTo(batch, this._batchSize - 1);
+         write(batch);
+      }
+   }// end drain
+
+   /*
+    * Writes a batch, falling back to one order at a time if it fails.
+    */
+   private void write(List<Cart> batch) {
+      try {
+         insert(batch);
+         this._written.addAndGet(batch.size());
+         this._batches.incrementAndGet();
+      } catch (SQLException e) {
+         if (batch.size() == 1) {
+            fail(batch.get(0), e);
+         } else {
+            for (Cart cart : batch) {
+               try {
+                  insert(Collections.singletonList(cart));
+                  this._written.incrementAndGet();
+               } catch (SQLException single) {
+                  fail(cart, single);
+               }
+               this._batches.incrementAndGet();
+            }
+         }
+      } finally {
+         for (Cart cart : batch) {
+            this._pending.remove(cart.orderid);
+            cart.written.countDown();
+         }
+      }
+   }// end write
+
+   /*
+    * Records an order that could not be stored. Called before the order
+    * leaves _pending, so awaitWritten() always sees the failure.
+    */
+   private void fail(Cart cart, SQLException e) {
+      this._failed.incrementAndGet();
+      synchronized (this._failedOrders) {
+         this._failedOrders.put(cart.orderid, e.getMessage());
+         Iterator<Integer> oldest = this._failedOrders.keySet().iterator();
+         while (this._failedOrders.size() > MAX_FAILED_KEPT) {
+            oldest.next();
+            oldest.remove();
+         }
+      }
+      System.err.println(String.format("Order %d for %s could not be stored: %s", cart.orderid, cart.login, e.getMessage()));
+   }
+
+   /*
+    * Stores the orders of a batch and their items with one statement. The
+    * totals are summed from the Menu prices by the server; an item no
+    * longer on the menu fails the statement on the ItemStatus foreign key.
+    */
+   private void insert(List<Cart> batch) throws SQLException {
+      List<Integer> orderids = new ArrayList<Integer>();
+      List<String> logins = new ArrayList<String>();
+      List<String> itemNames = new ArrayList<String>();
+      List<String> comments = new ArrayList<String>();
+      List<Timestamp> received = new ArrayList<Timestamp>();
+      for (Cart cart : batch) {
+         for (int i = 0; i < cart.itemNames.size(); ++i) {
+            orderids.add(cart.orderid);
+            logins.add(cart.login);
+            itemNames.add(cart.itemNames.get(i));
+            comments.add(cart.comments.get(i));
+            received.add(cart.received);
+         }
+      }
+      this._esql.executeUpdate(INSERT_BATCH, Cafe.toArrayLiteral(orderids), Cafe.toArrayLiteral(logins),
+            Cafe.toArrayLiteral(itemNames), Cafe.toArrayLiteral(comments), Cafe.toArrayLiteral(received));
+   }// end insert
+
+   /*
+    * Hands out the next reserved orderid, reserving a new block from the
+    * Orders sequence when the last one is used up.
+    */
+   private int nextOrderId() throws SQLException {
+      synchronized (this._reservedIds) {
+         if (this._reservedIds.isEmpty()) {
+            this._reservedIds.addAll(this._esql.reserveSequenceValues("orders_orderid_seq", this._idBlockSize));
+         }
+         return this._reservedIds.removeFirst();
+      }
+   }
+
+}// end OrderIntakeQueue
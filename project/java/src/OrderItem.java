@@ -0,0 +1,56 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * One row of the ItemStatus table: an item on an order and its progress.
+ */
+public class OrderItem {
+
+   /**
+    * Maps a row of (orderid, itemName, lastUpdated, status, comments).
+    */
+   public static final RowMapper<OrderItem> MAPPER = new RowMapper<OrderItem>() {
+      public OrderItem mapRow(ResultSet rs) throws SQLException {
+         return new OrderItem(rs.getInt(1), rs.getString(2), rs.getTimestamp(3), rs.getString(4), rs.getString(5));
+      }
+   };
+
+   // Column list matching MAPPER, for use in SELECT statements.
+   public static final String COLUMNS = "orderid, itemName, lastUpdated, status, comments";
+
+   private final int _orderid;
+   private final String _itemName;
+   private final Timestamp _lastUpdated;
+   private final String _status;
+   private final String _comments;
+
+   public OrderItem(int orderid, String itemName, Timestamp lastUpdated, String status, String comments) {
+      this._orderid = orderid;
+      this._itemName = itemName == null ? "" : itemName.trim();
+      this._lastUpdated = lastUpdated;
+      this._status = status == null ? "" : status.trim();
+      this._comments = comments == null ? "" : comments.trim();
+   }// end OrderItem
+
+   public int getOrderid() {
+      return this._orderid;
+   }
+
+   public String getItemName() {
+      return this._itemName;
+   }
+
+   public Timestamp getLastUpdated() {
+      return this._lastUpdated;
+   }
+
+   public String getStatus() {
+      return this._status;
+   }
+
+   public String getComments() {
+      return this._comments;
+   }
+
+}// end OrderItem
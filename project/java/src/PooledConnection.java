@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A physical connection handed out by a ConnectionPool, together with the
+ * prepared statements cached on it.
+ */
+public class PooledConnection {
+
+   // How long probe() waits for the server, for drivers that honour it.
+   private static final int PROBE_TIMEOUT_SECONDS = 2;
+
+   private final ConnectionPool _pool;
+   private final Connection _connection;
+   private final StatementCache _statements;
+
+   // Last time the connection was returned to the pool.
+   long _lastUsed;
+
+   // Set once the connection is known to be unusable.
+   boolean _broken = false;
+
+   PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+      this._pool = pool;
+      this._connection = connection;
+      this._statements = new StatementCache(connection, statementCacheSize);
+      this._lastUsed = System.currentTimeMillis();
+   }
+
+   /**
+    * @return the pool this connection is returned to
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }
+
+   public Connection getConnection() {
+      return this._connection;
+   }
+
+   public StatementCache getStatements() {
+      return this._statements;
+   }
+
+   /**
+    * Flags the connection as unusable if the error means the session
+    * to the server is gone (SQLState class 08, or an admin shutdown).
+    * Errors without an SQLState, which is all the bundled driver raises,
+    * are followed by a probe of the connection.
+    *
+    * @param e the error raised while using this connection
+    */
+   public void checkBroken(SQLException e) {
+      String state = e.getSQLState();
+      if (state != null) {
+         if (state.startsWith("08") || state.startsWith("57P")) {
+            this._broken = true;
+         }
+         return;
+      }
+      if (!probe()) {
+         this._broken = true;
+      }
+   }// end checkBroken
+
+   /**
+    * Runs a trivial query on the connection, first rolling back any
+    * transaction a failed statement left aborted.
+    *
+    * @return true if the server answered
+    */
+   boolean probe() {
+      try {
+         if (this._connection.isClosed()) {
+            return false;
+         }
+         if (!this._connection.getAutoCommit()) {
+            this._connection.rollback();
+         }
+         Statement stmt = this._connection.createStatement();
+         try {
+            stmt.setQueryTimeout(PROBE_TIMEOUT_SECONDS);
+            ResultSet rs = stmt.executeQuery("SELECT 1");
+            rs.close();
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }
+   }// end probe
+
+   void close() {
+      this._statements.close();
+      try {
+         this._connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+}// end PooledConnection
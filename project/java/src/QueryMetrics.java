@@ -0,0 +1,288 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class records the latency, row count and bytes fetched of every
+ * call through the Cafe query helpers, keyed by the SQL text ("shape") of
+ * the query. Latencies go into a log-linear histogram per shape: each power
+ * of two is split into 16 linear sub-buckets, so recorded values are kept
+ * to within about 6% at any magnitude. Recording only does atomic
+ * increments, so callers never block each other.
+ *
+ * The metrics are published as the JMX bean cafe:type=QueryMetrics and can
+ * be dumped as text periodically with -Dcafe.metrics.dumpIntervalMs.
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+   // Sub-buckets per power of two, as a number of bits.
+   private static final int SUB_BITS = 4;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+   // Distinct shapes kept before new ones are lumped together.
+   private static final int MAX_SHAPES = 1000;
+   private static final String OTHER_SHAPE = "(other)";
+
+   // Shapes shown by getReport().
+   private static final int REPORT_SIZE = 20;
+
+   /*
+    * Counters and latency histogram of one query shape.
+    */
+   private static class Stats {
+      final String sql;
+      final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+      final AtomicLong calls = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicLong totalNanos = new AtomicLong();
+      final AtomicLong maxNanos = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong bytes = new AtomicLong();
+
+      Stats(String sql) {
+         this.sql = sql;
+      }
+
+      void record(long nanos, long rowCount, long byteCount, boolean failed) {
+         this.buckets.incrementAndGet(bucket(nanos));
+         this.calls.incrementAndGet();
+         this.totalNanos.addAndGet(nanos);
+         this.rows.addAndGet(rowCount);
+         this.bytes.addAndGet(byteCount);
+         if (failed) {
+            this.errors.incrementAndGet();
+         }
+         long max = this.maxNanos.get();
+         while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+            max = this.maxNanos.get();
+         }
+      }
+
+      /*
+       * Returns the upper bound of the bucket holding the given quantile.
+       */
+      long percentile(double quantile) {
+         long[] counts = new long[BUCKETS];
+         long total = 0;
+         for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+         }
+         long rank = (long) Math.ceil(quantile * total);
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+               return Math.min(upperBound(i), this.maxNanos.get());
+            }
+         }
+         return this.maxNanos.get();
+      }
+   }// end Stats
+
+   private final ConcurrentMap<String, Stats> _shapes = new ConcurrentHashMap<String, Stats>();
+   private final boolean _enabled;
+   private Timer _dumper = null;
+
+   /**
+    * Creates a new, empty metrics registry
+    *
+    * @param enabled when false record() does nothing
+    */
+   public QueryMetrics(boolean enabled) {
+      this._enabled = enabled;
+   }// end QueryMetrics
+
+   public boolean isEnabled() {
+      return this._enabled;
+   }
+
+   /**
+    * Records one call of a query shape.
+    *
+    * @param sql the SQL text, with '?' placeholders
+    * @param nanos how long the call took
+    * @param rows the number of rows returned or changed
+    * @param bytes the number of result bytes fetched
+    * @param failed whether the call threw
+    */
+   public void record(String sql, long nanos, long rows, long bytes, boolean failed) {
+      if (!this._enabled) {
+         return;
+      }
+      Stats stats = this._shapes.get(sql);
+      if (stats == null) {
+         String key = this._shapes.size() < MAX_SHAPES ? sql : OTHER_SHAPE;
+         stats = this._shapes.get(key);
+         if (stats == null) {
+            Stats created = new Stats(key);
+            stats = this._shapes.putIfAbsent(key, created);
+            if (stats == null) {
+               stats = created;
+            }
+         }
+      }
+      stats.record(nanos, rows, bytes, failed);
+   }// end record
+
+   /**
+    * Sums the size of every column of the current row as sent by the
+    * server.
+    *
+    * @param rs a result set positioned on a row
+    * @param numCol the number of columns
+    * @return the row size in bytes
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   public static long rowBytes(ResultSet rs, int numCol) throws SQLException {
+      long bytes = 0;
+      for (int i = 1; i <= numCol; ++i) {
+         byte[] value = rs.getBytes(i);
+         if (value != null) {
+            bytes += value.length;
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Registers this registry with the platform MBean server as
+    * cafe:type=QueryMetrics. Does nothing if a bean of that name exists.
+    */
+   public void registerMBean() {
+      try {
+         ObjectName name = new ObjectName("cafe:type=QueryMetrics");
+         if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+         }
+      } catch (JMException e) {
+         System.err.println("Unable to register query metrics MBean: " + e.getMessage());
+      }
+   }// end registerMBean
+
+   /**
+    * Prints the report to the given stream at a fixed interval, on a
+    * daemon thread.
+    *
+    * @param out where the report is written
+    * @param intervalMillis time between reports
+    */
+   public synchronized void startDump(final PrintStream out, long intervalMillis) {
+      if (this._dumper != null || intervalMillis <= 0) {
+         return;
+      }
+      this._dumper = new Timer("cafe-metrics-dump", true);
+      this._dumper.schedule(new TimerTask() {
+         public void run() {
+            out.println(getReport());
+         }
+      }, intervalMillis, intervalMillis);
+   }// end startDump
+
+   public synchronized void stopDump() {
+      if (this._dumper != null) {
+         this._dumper.cancel();
+         this._dumper = null;
+      }
+   }
+
+   public int getShapeCount() {
+      return this._shapes.size();
+   }
+
+   public long getCalls() {
+      long calls = 0;
+      for (Stats stats : this._shapes.values()) {
+         calls += stats.calls.get();
+      }
+      return calls;
+   }
+
+   public long getErrors() {
+      long errors = 0;
+      for (Stats stats : this._shapes.values()) {
+         errors += stats.errors.get();
+      }
+      return errors;
+   }
+
+   public void reset() {
+      this._shapes.clear();
+   }
+
+   /**
+    * @return the query shapes that took the most total time, one per line,
+    *         with call counts and latency percentiles in milliseconds
+    */
+   public String getReport() {
+      List<Stats> shapes = new ArrayList<Stats>(this._shapes.values());
+      Collections.sort(shapes, new Comparator<Stats>() {
+         public int compare(Stats a, Stats b) {
+            long ta = a.totalNanos.get();
+            long tb = b.totalNanos.get();
+            return ta < tb ? 1 : (ta == tb ? 0 : -1);
+         }
+      });
+
+      StringBuilder report = new StringBuilder();
+      report.append(String.format("%9s %6s %10s %8s %8s %8s %8s %8s %9s %10s  %s%n",
+            "calls", "errors", "total ms", "mean", "p50", "p95", "p99", "max", "rows", "bytes", "query"));
+      for (int i = 0; i < shapes.size() && i < REPORT_SIZE; ++i) {
+         Stats s = shapes.get(i);
+         long calls = s.calls.get();
+         report.append(String.format("%9d %6d %10.1f %8.3f %8.3f %8.3f %8.3f %8.3f %9d %10d  %s%n",
+               calls, s.errors.get(), s.totalNanos.get() / 1e6,
+               calls == 0 ? 0.0 : s.totalNanos.get() / (double) calls / 1e6,
+               s.percentile(0.50) / 1e6, s.percentile(0.95) / 1e6, s.percentile(0.99) / 1e6,
+               s.maxNanos.get() / 1e6, s.rows.get(), s.bytes.get(), shorten(s.sql)));
+      }
+      if (shapes.size() > REPORT_SIZE) {
+         report.append(String.format("(%d more query shapes)%n", shapes.size() - REPORT_SIZE));
+      }
+      return report.toString();
+   }// end getReport
+
+   /*
+    * Maps a latency to its histogram bucket.
+    */
+   static int bucket(long nanos) {
+      if (nanos < SUB_COUNT) {
+         return (int) Math.max(0, nanos);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+      int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+      return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+   }
+
+   /*
+    * Returns the largest latency that maps to the given bucket.
+    */
+   static long upperBound(int bucket) {
+      if (bucket < SUB_COUNT) {
+         return bucket;
+      }
+      int group = bucket >>> SUB_BITS;
+      long lower = (long) (SUB_COUNT | (bucket & (SUB_COUNT - 1))) << (group - 1);
+      return lower + (1L << (group - 1)) - 1;
+   }
+
+   private static String shorten(String sql) {
+      String oneLine = sql.replaceAll("\\s+", " ").trim();
+      return oneLine.length() <= 100 ? oneLine : oneLine.substring(0, 97) + "...";
+   }
+
+}// end QueryMetrics
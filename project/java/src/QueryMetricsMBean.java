@@ -0,0 +1,31 @@
+/**
+ * JMX view of the query metrics, see QueryMetrics.
+ */
+public interface QueryMetricsMBean {
+
+   /**
+    * @return the number of distinct query shapes recorded
+    */
+   int getShapeCount();
+
+   /**
+    * @return the number of calls recorded over every shape
+    */
+   long getCalls();
+
+   /**
+    * @return the number of calls that threw, over every shape
+    */
+   long getErrors();
+
+   /**
+    * @return the slowest query shapes by total time, as text
+    */
+   String getReport();
+
+   /**
+    * Drops every recorded shape.
+    */
+   void reset();
+
+}// end QueryMetricsMBean
@@ -0,0 +1,231 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class splits reads from writes across a primary connection pool and
+ * any number of read-replica pools. Callers say whether a statement only
+ * reads: writes go to the primary; reads go to the healthy replicas in
+ * turn, and to the primary when none is healthy.
+ *
+ * A background timer checks every replica: one that cannot be reached, or
+ * whose replay lags more than the allowed time behind the primary, takes
+ * no reads until a later check finds it healthy again. A replica whose
+ * connection breaks during a read is taken out at once, and the caller may
+ * retry the read on the primary.
+ */
+public class ReplicaRouter {
+
+   /*
+    * One read replica and its health as of the last check.
+    */
+   private static class Replica {
+      final String url;
+      final ConnectionPool pool;
+      final AtomicLong reads = new AtomicLong();
+      volatile boolean healthy = true;
+      volatile long lagMillis = 0;
+      volatile String lastError = null;
+
+      Replica(String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+
+      void markDown(String reason) {
+         this.healthy = false;
+         this.lastError = reason;
+      }
+   }// end Replica
+
+   // A replica's replay lag in milliseconds, 0 when caught up or not a replica.
+   private static final String LAG_QUERY =
+         "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+         "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+   private final ConnectionPool _primary;
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final long _maxLagMillis;
+   private final AtomicInteger _next = new AtomicInteger();
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private final Timer _checker;
+
+   /**
+    * Creates a router over an open primary pool and one pool per replica.
+    * Replica pools are opened empty, so a replica that is down at start up
+    * only shows as unhealthy.
+    *
+    * @param primary the pool of the primary
+    * @param replicaUrls the JDBC URLs of the replicas, may be empty
+    * @param user the user name used to login to the replicas
+    * @param passwd the user login password
+    * @param maxSize the maximum number of open connections per replica
+    * @param borrowTimeoutMillis how long a replica borrow waits for a free connection
+    * @param idleTimeoutMillis how long an idle replica connection is kept
+    * @param validationIntervalMillis how long a returned connection is handed out again without a check
+    * @param statementCacheSize prepared statements cached per connection
+    * @param checkIntervalMillis time between replica health checks
+    * @param maxLagMillis how far behind the primary a healthy replica may be
+    * @throws java.sql.SQLException when a replica pool cannot be created
+    */
+   public ReplicaRouter(ConnectionPool primary, List<String> replicaUrls, String user, String passwd, int maxSize,
+         long borrowTimeoutMillis, long idleTimeoutMillis, long validationIntervalMillis, int statementCacheSize,
+         long checkIntervalMillis, long maxLagMillis) throws SQLException {
+      this._primary = primary;
+      this._maxLagMillis = maxLagMillis;
+      for (String url : replicaUrls) {
+         this._replicas.add(new Replica(url, new ConnectionPool(url, user, passwd, 0, maxSize,
+               borrowTimeoutMillis, idleTimeoutMillis, validationIntervalMillis, statementCacheSize)));
+      }
+      if (this._replicas.isEmpty()) {
+         this._checker = null;
+         return;
+      }
+      checkReplicas();
+      this._checker = new Timer("cafe-replica-check", true);
+      this._checker.schedule(new TimerTask() {
+         public void run() {
+            checkReplicas();
+         }
+      }, checkIntervalMillis, checkIntervalMillis);
+   }// end ReplicaRouter
+
+   public ConnectionPool getPrimary() {
+      return this._primary;
+   }
+
+   /**
+    * @return a connection to the primary
+    * @throws java.sql.SQLException when no connection could be obtained in time
+    */
+   public PooledConnection borrowPrimary() throws SQLException {
+      return this._primary.borrow();
+   }
+
+   /**
+    * @return a connection to the next healthy replica, or to the primary
+    *         when no replica is healthy
+    * @throws java.sql.SQLException when no connection could be obtained in time
+    */
+   public PooledConnection borrowRead() throws SQLException {
+      int count = this._replicas.size();
+      for (int i = 0; i < count; ++i) {
+         Replica replica = this._replicas.get((this._next.getAndIncrement() & Integer.MAX_VALUE) % count);
+         if (!replica.healthy) {
+            continue;
+         }
+         try {
+            PooledConnection conn = replica.pool.borrow();
+            replica.reads.incrementAndGet();
+            return conn;
+         } catch (SQLException e) {
+            replica.markDown(e.getMessage());
+         }
+      }
+      this._primaryReads.incrementAndGet();
+      return this._primary.borrow();
+   }// end borrowRead
+
+   /**
+    * Returns a connection to the pool it came from. A replica whose
+    * connection broke takes no more reads until it passes a check.
+    *
+    * @param conn a connection from borrowPrimary() or borrowRead()
+    */
+   public void release(PooledConnection conn) {
+      ConnectionPool pool = conn.getPool();
+      if (isBrokenReplica(conn)) {
+         for (Replica replica : this._replicas) {
+            if (replica.pool == pool) {
+               replica.markDown("connection broken");
+            }
+         }
+      }
+      pool.release(conn);
+   }
+
+   /**
+    * @param conn a connection from borrowRead()
+    * @return true if conn is a replica connection that broke, so a read
+    *         that failed on it can be retried on the primary
+    */
+   public boolean isBrokenReplica(PooledConnection conn) {
+      return conn._broken && conn.getPool() != this._primary;
+   }
+
+   public boolean hasReplicas() {
+      return !this._replicas.isEmpty();
+   }
+
+   /**
+    * @return the primary pool's statistics, then one line per replica
+    */
+   public String getStats() {
+      StringBuilder stats = new StringBuilder(this._primary.getStats());
+      if (this._replicas.isEmpty()) {
+         return stats.toString();
+      }
+      stats.append(String.format("%nreads on primary: %d", this._primaryReads.get()));
+      for (Replica replica : this._replicas) {
+         stats.append(String.format("%nreplica %s: %s, lag %d ms, %d reads, %s", replica.url,
+               replica.healthy ? "up" : "down (" + replica.lastError + ")", replica.lagMillis,
+               replica.reads.get(), replica.pool.getStats()));
+      }
+      return stats.toString();
+   }// end getStats
+
+   /**
+    * Stops the health checks and closes every pool.
+    */
+   public void close() {
+      if (this._checker != null) {
+         this._checker.cancel();
+      }
+      for (Replica replica : this._replicas) {
+         replica.pool.close();
+      }
+      this._primary.close();
+   }
+
+   /*
+    * Measures every replica's replay lag and marks it up or down.
+    */
+   private void checkReplicas() {
+      for (Replica replica : this._replicas) {
+         PooledConnection conn = null;
+         try {
+            conn = replica.pool.borrow();
+            Statement stmt = conn.getConnection().createStatement();
+            try {
+               ResultSet rs = stmt.executeQuery(LAG_QUERY);
+               replica.lagMillis = rs.next() ? rs.getLong(1) : 0;
+               rs.close();
+            } finally {
+               stmt.close();
+            }
+            if (replica.lagMillis > this._maxLagMillis) {
+               replica.markDown(String.format("lagging %d ms", replica.lagMillis));
+            } else {
+               replica.healthy = true;
+               replica.lastError = null;
+            }
+         } catch (SQLException e) {
+            if (conn != null) {
+               conn.checkBroken(e);
+            }
+            replica.markDown(e.getMessage());
+         } finally {
+            if (conn != null) {
+               replica.pool.release(conn);
+            }
+         }
+      }
+   }// end checkReplicas
+
+}// end ReplicaRouter
@@ -0,0 +1,18 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback used by Cafe.streamQuery to process a query result one row at a
+ * time, without holding the whole result in memory.
+ */
+public interface RowHandler {
+
+   /**
+    * Called once per row, with the ResultSet positioned on that row.
+    *
+    * @param rs the result set, positioned on the current row
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   void handleRow(ResultSet rs) throws SQLException;
+
+}// end RowHandler
@@ -0,0 +1,20 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Converts the current row of a ResultSet into an object, reading columns
+ * with their typed getters (getInt, getFloat, getTimestamp, ...) instead of
+ * going through strings.
+ *
+ * @param <T> the type each row is mapped to
+ */
+public interface RowMapper<T> {
+
+   /**
+    * @param rs the result set, positioned on the row to map
+    * @return the object built from the row
+    * @throws java.sql.SQLException when a column cannot be read
+    */
+   T mapRow(ResultSet rs) throws SQLException;
+
+}// end RowMapper
@@ -0,0 +1,86 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Sales over one hour or one day, read from the SalesByHour rollup.
+ */
+public class SalesBucket {
+
+   /**
+    * Maps a row of (start, orders, revenue, paidOrders, paidRevenue).
+    */
+   public static final RowMapper<SalesBucket> MAPPER = new RowMapper<SalesBucket>() {
+      public SalesBucket mapRow(ResultSet rs) throws SQLException {
+         return new SalesBucket(rs.getTimestamp(1), rs.getInt(2), rs.getBigDecimal(3), rs.getInt(4), rs.getBigDecimal(5));
+      }
+   };
+
+   private final Timestamp _start;
+   private final int _orders;
+   private final BigDecimal _revenue;
+   private final int _paidOrders;
+   private final BigDecimal _paidRevenue;
+
+   public SalesBucket(Timestamp start, int orders, BigDecimal revenue, int paidOrders, BigDecimal paidRevenue) {
+      this._start = start;
+      this._orders = orders;
+      this._revenue = revenue == null ? BigDecimal.ZERO : revenue;
+      this._paidOrders = paidOrders;
+      this._paidRevenue = paidRevenue == null ? BigDecimal.ZERO : paidRevenue;
+   }// end SalesBucket
+
+   /**
+    * Sums buckets, e.g. the hours of a dashboard, into one.
+    *
+    * @param start the start of the combined bucket
+    * @param buckets the buckets to add up
+    * @return the combined bucket
+    */
+   public static SalesBucket sum(Timestamp start, Iterable<SalesBucket> buckets) {
+      int orders = 0;
+      int paidOrders = 0;
+      BigDecimal revenue = BigDecimal.ZERO;
+      BigDecimal paidRevenue = BigDecimal.ZERO;
+      for (SalesBucket bucket : buckets) {
+         orders += bucket._orders;
+         paidOrders += bucket._paidOrders;
+         revenue = revenue.add(bucket._revenue);
+         paidRevenue = paidRevenue.add(bucket._paidRevenue);
+      }
+      return new SalesBucket(start, orders, revenue, paidOrders, paidRevenue);
+   }// end sum
+
+   public Timestamp getStart() {
+      return this._start;
+   }
+
+   public int getOrders() {
+      return this._orders;
+   }
+
+   public BigDecimal getRevenue() {
+      return this._revenue;
+   }
+
+   public int getPaidOrders() {
+      return this._paidOrders;
+   }
+
+   public BigDecimal getPaidRevenue() {
+      return this._paidRevenue;
+   }
+
+   /**
+    * @return the revenue per order, 0 when there were no orders
+    */
+   public BigDecimal getAverageTicket() {
+      if (this._orders == 0) {
+         return BigDecimal.ZERO.setScale(2);
+      }
+      return this._revenue.divide(BigDecimal.valueOf(this._orders), 2, RoundingMode.HALF_UP);
+   }
+
+}// end SalesBucket
@@ -0,0 +1,122 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A logged in user: the user's row of the Users table, read once at login.
+ * Screens decide privileges from the cached role instead of asking the
+ * database again; after a profile edit the session is re-read with
+ * refresh().
+ */
+public class Session {
+
+   /**
+    * Maps a row of (login, phoneNum, password, favorites, type), where
+    * favorites is the comma-separated list of the user's FavoriteItems.
+    */
+   public static final RowMapper<Session> MAPPER = new RowMapper<Session>() {
+      public Session mapRow(ResultSet rs) throws SQLException {
+         Session session = new Session(rs.getString(1));
+         session.load(rs);
+         return session;
+      }
+   };
+
+   // Column list matching MAPPER, for use in SELECT statements.
+   public static final String COLUMNS = "login, phoneNum, password, "
+         + "(SELECT string_agg(F.itemName, ',' ORDER BY F.position) FROM FavoriteItems F WHERE F.login = Users.login), type";
+
+   private final String _login;
+   private volatile String _phoneNum;
+   private volatile String _password;
+   private volatile String _favItems;
+   private volatile String _type;
+
+   // Until when reads go to the primary, after this user wrote something.
+   private volatile long _primaryReadsUntil = 0;
+
+   private Session(String login) {
+      this._login = trim(login);
+   }// end Session
+
+   /**
+    * Re-reads the user's row, e.g. after the profile was edited.
+    *
+    * @param esql the Cafe used to read the row
+    * @return false if the user no longer exists
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean refresh(Cafe esql) throws SQLException {
+      Session current = esql.loadSession(this._login);
+      if (current == null) {
+         return false;
+      }
+      this._phoneNum = current._phoneNum;
+      this._password = current._password;
+      this._favItems = current._favItems;
+      this._type = current._type;
+      return true;
+   }// end refresh
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public String getPhoneNum() {
+      return this._phoneNum;
+   }
+
+   public String getPassword() {
+      return this._password;
+   }
+
+   /**
+    * @return the user's favorite items, comma-separated, in the user's order
+    */
+   public String getFavItems() {
+      return this._favItems;
+   }
+
+   /**
+    * @return 'Customer', 'Employee' or 'Manager'
+    */
+   public String getType() {
+      return this._type;
+   }
+
+   public boolean isManager() {
+      return "Manager".equals(this._type);
+   }
+
+   /**
+    * @return true for Employees and Managers
+    */
+   public boolean isStaff() {
+      return isManager() || "Employee".equals(this._type);
+   }
+
+   /**
+    * Sends this user's reads to the primary for a while, so changes the
+    * user just made are seen even if the replicas have not replayed them.
+    *
+    * @param millis how long to read from the primary
+    */
+   public void readFromPrimaryFor(long millis) {
+      this._primaryReadsUntil = Math.max(this._primaryReadsUntil, System.currentTimeMillis() + millis);
+   }
+
+   public boolean readsFromPrimary() {
+      return System.currentTimeMillis() < this._primaryReadsUntil;
+   }
+
+   private void load(ResultSet rs) throws SQLException {
+      this._phoneNum = trim(rs.getString(2));
+      this._password = trim(rs.getString(3));
+      this._favItems = trim(rs.getString(4));
+      this._type = trim(rs.getString(5));
+   }
+
+   private static String trim(String value) {
+      return value == null ? "" : value.trim();
+   }
+
+}// end Session
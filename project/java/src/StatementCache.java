@@ -0,0 +1,156 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least-recently-used set of PreparedStatements
+ * for one physical connection, keyed by the SQL text ("shape") of the query.
+ * Cached statements are switched to server-side prepare, so the server
+ * parses and plans each query shape once per connection and later
+ * executions only send EXECUTE. Without it the driver substitutes the
+ * parameters on the client and the server plans every execution again.
+ * Statements PREPARE cannot wrap (DECLARE, FETCH, CLOSE, ...) stay
+ * client-side.
+ */
+public class StatementCache {
+
+   // Connection the cached statements belong to.
+   private final Connection _connection;
+
+   // PGStatement.setUseServerPrepare, null when the driver has none.
+   private static final Method USE_SERVER_PREPARE = findUseServerPrepare();
+
+   // Maximum number of open statements kept for this connection.
+   private final int _capacity;
+
+   // Statements in access order, so the eldest entry is the least recently used.
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * Creates a new statement cache for a connection
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }// end StatementCache
+
+   /**
+    * Returns a prepared statement for the given SQL, preparing it on a miss.
+    * When the cache is full the least recently used statement is closed.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return a ready to bind statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null) {
+         ++this._hits;
+         stmt.clearParameters();
+         return stmt;
+      }
+      ++this._misses;
+      stmt = this._connection.prepareStatement(sql);
+      if (isServerPreparable(sql)) {
+         useServerPrepare(stmt, true);
+      }
+      this._statements.put(sql, stmt);
+
+      // evict the least recently used statement, dropping its server-side
+      // plan as the connection stays open
+      if (this._statements.size() > this._capacity) {
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = this._statements.entrySet().iterator();
+         PreparedStatement evicted = eldest.next().getValue();
+         eldest.remove();
+         try {
+            useServerPrepare(evicted, false);
+         } catch (SQLException e) {
+            // ignored, the plan goes away with the connection.
+         }
+         closeQuietly(evicted);
+      }
+      return stmt;
+   }// end prepare
+
+   /**
+    * Closes every cached statement. The connection itself is left open.
+    */
+   public void close() {
+      for (PreparedStatement stmt : this._statements.values()) {
+         closeQuietly(stmt);
+      }
+      this._statements.clear();
+   }// end close
+
+   public int size() {
+      return this._statements.size();
+   }
+
+   public long getHits() {
+      return this._hits;
+   }
+
+   public long getMisses() {
+      return this._misses;
+   }
+
+   /*
+    * True for the statements PREPARE accepts.
+    */
+   private static boolean isServerPreparable(String sql) {
+      String head = sql.trim().toUpperCase(Locale.ROOT);
+      return head.startsWith("SELECT") || head.startsWith("INSERT") || head.startsWith("UPDATE")
+            || head.startsWith("DELETE") || head.startsWith("WITH") || head.startsWith("VALUES");
+   }
+
+   private static Method findUseServerPrepare() {
+      try {
+         return Class.forName("org.postgresql.PGStatement").getMethod("setUseServerPrepare", boolean.class);
+      } catch (Exception e) {
+         return null;
+      }
+   }
+
+   /*
+    * Turns server-side prepare on or off; turning it off deallocates the
+    * server's prepared statement. Does nothing for other drivers.
+    */
+   private static void useServerPrepare(PreparedStatement stmt, boolean on) throws SQLException {
+      if (USE_SERVER_PREPARE == null || !USE_SERVER_PREPARE.getDeclaringClass().isInstance(stmt)) {
+         return;
+      }
+      try {
+         USE_SERVER_PREPARE.invoke(stmt, on);
+      } catch (InvocationTargetException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+         }
+         throw new SQLException(String.valueOf(cause));
+      } catch (IllegalAccessException e) {
+         throw new SQLException(e.getMessage());
+      }
+   }// end useServerPrepare
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+
+}// end StatementCache
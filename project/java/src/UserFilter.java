@@ -0,0 +1,197 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class answers "is this login or phone number taken?" without a
+ * database round trip when the answer is no. It keeps one Bloom filter
+ * over the logins and one over the phone numbers of the Users table: a
+ * value not in its filter is certainly free, and only possible hits are
+ * checked with a query.
+ *
+ * The filters are built on a background thread at start up, and rebuilt
+ * every interval to take in users created by other processes and to
+ * shed deleted ones. Users created or changed through this Cafe are added
+ * at once. Until the first build, every check goes to the database. A
+ * user created elsewhere since the last build can pass the check as free;
+ * the UNIQUE constraints on Users still reject the insert.
+ */
+public class UserFilter {
+
+   /*
+    * The two filters of one build.
+    */
+   private static class Filters {
+      final BloomFilter logins;
+      final BloomFilter phones;
+
+      Filters(long expected, double falsePositiveRate) {
+         this.logins = new BloomFilter(expected, falsePositiveRate);
+         this.phones = new BloomFilter(expected, falsePositiveRate);
+      }
+
+      void add(String login, String phone) {
+         this.logins.add(login);
+         this.phones.add(phone);
+      }
+   }// end Filters
+
+   // Room left in a new build for users added before the next one.
+   private static final double GROWTH = 1.5;
+   private static final int MIN_CAPACITY = 1024;
+
+   private final Cafe _esql;
+   private final long _rebuildIntervalMillis;
+   private final double _falsePositiveRate;
+
+   // The current build, null until the first one finished.
+   private volatile Filters _filters = null;
+
+   // Values added while a build is running, replayed into it. Guarded by this.
+   private List<String[]> _addedDuringBuild = null;
+
+   private Timer _timer = null;
+
+   private final AtomicLong _skipped = new AtomicLong();
+   private final AtomicLong _checked = new AtomicLong();
+   private final AtomicLong _falsePositives = new AtomicLong();
+   private final AtomicLong _builds = new AtomicLong();
+
+   /**
+    * Creates a new, unbuilt filter. Call start() to build it.
+    *
+    * @param esql the Cafe used to read the Users table
+    * @param rebuildIntervalMillis time between rebuilds, 0 to build only once
+    * @param falsePositiveRate the share of free values the filters may still send to the database
+    */
+   public UserFilter(Cafe esql, long rebuildIntervalMillis, double falsePositiveRate) {
+      this._esql = esql;
+      this._rebuildIntervalMillis = rebuildIntervalMillis;
+      this._falsePositiveRate = falsePositiveRate;
+   }// end UserFilter
+
+   /**
+    * Builds the filters on a daemon thread, then rebuilds them every interval.
+    */
+   public synchronized void start() {
+      if (this._timer != null) {
+         return;
+      }
+      this._timer = new Timer("cafe-user-filter", true);
+      TimerTask build = new TimerTask() {
+         public void run() {
+            try {
+               rebuild();
+            } catch (SQLException e) {
+               System.err.println("User filter build failed: " + e.getMessage());
+            }
+         }
+      };
+      if (this._rebuildIntervalMillis > 0) {
+         this._timer.schedule(build, 0, this._rebuildIntervalMillis);
+      } else {
+         this._timer.schedule(build, 0);
+      }
+   }// end start
+
+   public synchronized void stop() {
+      if (this._timer != null) {
+         this._timer.cancel();
+         this._timer = null;
+      }
+   }
+
+   /**
+    * @param login the login wanted
+    * @return true if a user already has the login
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isLoginTaken(String login) throws SQLException {
+      Filters filters = this._filters;
+      if (filters != null && !filters.logins.mightContain(login)) {
+         this._skipped.incrementAndGet();
+         return false;
+      }
+      return check(filters, "SELECT 1 FROM Users WHERE login = ?", login);
+   }
+
+   /**
+    * @param phone the phone number wanted
+    * @return true if a user already has the phone number
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isPhoneTaken(String phone) throws SQLException {
+      Filters filters = this._filters;
+      if (filters != null && !filters.phones.mightContain(phone)) {
+         this._skipped.incrementAndGet();
+         return false;
+      }
+      return check(filters, "SELECT 1 FROM Users WHERE phoneNum = ?", phone);
+   }
+
+   /**
+    * Records a login and phone number that were just stored.
+    *
+    * @param login the login, may be null
+    * @param phone the phone number, may be null
+    */
+   public synchronized void add(String login, String phone) {
+      if (this._filters != null) {
+         this._filters.add(login, phone);
+      }
+      if (this._addedDuringBuild != null) {
+         this._addedDuringBuild.add(new String[] { login, phone });
+      }
+   }
+
+   /**
+    * @return the counts of checks answered from memory and from the database
+    */
+   public String getStats() {
+      return String.format("user filter: %d builds, %d checks answered in memory, %d queried (%d false positives)",
+            this._builds.get(), this._skipped.get(), this._checked.get(), this._falsePositives.get());
+   }
+
+   /*
+    * Reads every login and phone number into new filters and swaps them in.
+    */
+   private void rebuild() throws SQLException {
+      synchronized (this) {
+         this._addedDuringBuild = new ArrayList<String[]>();
+      }
+      try {
+         long users = this._esql.queryForLong("SELECT count(*) FROM Users", 0);
+         final Filters next = new Filters(Math.max(MIN_CAPACITY, (long) (users * GROWTH)), this._falsePositiveRate);
+         this._esql.streamQuery("SELECT login, phoneNum FROM Users", new RowHandler() {
+            public void handleRow(ResultSet rs) throws SQLException {
+               next.add(rs.getString(1), rs.getString(2));
+            }
+         });
+         synchronized (this) {
+            for (String[] added : this._addedDuringBuild) {
+               next.add(added[0], added[1]);
+            }
+            this._filters = next;
+         }
+         this._builds.incrementAndGet();
+      } finally {
+         synchronized (this) {
+            this._addedDuringBuild = null;
+         }
+      }
+   }// end rebuild
+
+   private boolean check(Filters filters, String query, String value) throws SQLException {
+      this._checked.incrementAndGet();
+      boolean taken = this._esql.exists(query, value);
+      if (!taken && filters != null) {
+         this._falsePositives.incrementAndGet();
+      }
+      return taken;
+   }
+
+}// end UserFilter
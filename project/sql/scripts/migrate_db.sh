@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# converts an existing database to the compact column types
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_compact_types.sql
+# moves the favItems lists into the FavoriteItems table
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_favorites.sql
+# partitions Orders and ItemStatus by month and adds the archive tables
+psql -h localhost -p $PGPORT $USER"_DB" -f $DIR/../src/migrate_partitions.sql
+# records the price charged on every ordered item
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_item_prices.sql
+# indexes the open items the kitchen feed re-reads
+psql -h localhost -p $PGPORT $USER"_DB" -c "CREATE INDEX IF NOT EXISTS openItemsIndex ON ItemStatus (orderid) WHERE status <> 'Finished';"
+# adds the sales rollups, their triggers, and fills them from the orders
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_rollups.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_triggers.sql
+psql -h localhost -p $PGPORT $USER"_DB" -c "SELECT rebuildSalesRollups();"
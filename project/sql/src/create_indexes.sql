@@ -1,11 +1,19 @@
--- Used for displaying the 5 most recent orders
-CREATE INDEX timeStampIndex ON Orders (timeStampRecieved);
+-- Used for paging through the last 24 hours of orders, newest first
+CREATE INDEX timeStampIndex ON Orders (timeStampRecieved, orderid);
 
--- Used for looking up a user's orders
-CREATE INDEX loginIndex1 ON Orders (login);
+-- Used for looking up and paging through a user's orders, newest first
+CREATE INDEX loginTimeStampIndex ON Orders (login, timeStampRecieved DESC, orderid DESC);
 
 -- Used for logging in users
 CREATE INDEX loginIndex2 ON Users (login);
 
 -- Used for modifying/displaying orders
-CREATE INDEX orderIDIndex ON ItemStatus (orderid);
\ No newline at end of file
+CREATE INDEX orderIDIndex ON ItemStatus (orderid);
+
+-- Used by the kitchen feed for re-reading the open items
+CREATE INDEX openItemsIndex ON ItemStatus (orderid) WHERE status <> 'Finished';
+
+-- Used for paging through a user's archived orders, see AllOrders
+CREATE INDEX archiveLoginTimeStampIndex ON OrdersArchive (login, timeStampRecieved DESC, orderid DESC);
+-- Used for cascading Menu renames and deletes to favorites
+CREATE INDEX favoriteItemNameIndex ON FavoriteItems (itemName);
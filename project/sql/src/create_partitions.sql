@@ -0,0 +1,96 @@
+-- Partition maintenance and archiving for Orders and ItemStatus, run by
+-- java/src/OrderArchiver.java. Needs PostgreSQL 12 or later.
+
+-- Creates the missing monthly partitions of Orders and ItemStatus for the
+-- months from fromTime through toTime. A month that already has orders in
+-- the default partition is skipped: its orders stay there until archived.
+CREATE OR REPLACE FUNCTION createOrderPartitions(fromTime timestamp, toTime timestamp) RETURNS integer AS $$
+DECLARE
+	monthStart timestamp := date_trunc('month', fromTime);
+	monthEnd timestamp;
+	suffix text;
+	created integer := 0;
+BEGIN
+	WHILE monthStart <= toTime LOOP
+		monthEnd := monthStart + interval '1 month';
+		suffix := to_char(monthStart, '"y"YYYY"m"MM');
+		IF to_regclass('orders_' || suffix) IS NULL AND NOT EXISTS (
+				SELECT 1 FROM Orders_default WHERE timeStampRecieved >= monthStart AND timeStampRecieved < monthEnd) THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+				'orders_' || suffix, monthStart, monthEnd);
+			EXECUTE format('CREATE TABLE %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+				'itemstatus_' || suffix, monthStart, monthEnd);
+			created := created + 1;
+		END IF;
+		monthStart := monthEnd;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves up to batchSize paid orders received before cutoff whose items
+-- are all Finished, oldest first, together with their items into
+-- OrdersArchive and ItemStatusArchive, in one statement. Orders locked by
+-- someone else are left for the next call. The sales rollups and the
+-- kitchen feed triggers ignore the move.
+CREATE OR REPLACE FUNCTION archiveOrders(cutoff timestamp, batchSize integer) RETURNS integer AS $$
+DECLARE
+	moved integer;
+BEGIN
+	PERFORM set_config('cafe.archiving', 'on', true);
+	WITH O AS (
+		SELECT orderid, timeStampRecieved FROM Orders
+		WHERE paid AND timeStampRecieved < cutoff
+		AND NOT EXISTS (SELECT 1 FROM ItemStatus I WHERE I.orderid = Orders.orderid
+			AND I.timeStampRecieved = Orders.timeStampRecieved AND I.status <> 'Finished')
+		ORDER BY timeStampRecieved LIMIT batchSize
+		FOR UPDATE SKIP LOCKED),
+	DI AS (
+		DELETE FROM ItemStatus I USING O
+		WHERE I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved
+		RETURNING I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, I.price),
+	AI AS (
+		INSERT INTO ItemStatusArchive (orderid, itemName, lastUpdated, status, comments, price)
+		SELECT * FROM DI),
+	DL AS (
+		DELETE FROM Orders D USING O
+		WHERE D.orderid = O.orderid AND D.timeStampRecieved = O.timeStampRecieved
+		RETURNING D.orderid, D.login, D.paid, D.timeStampRecieved, D.total)
+	INSERT INTO OrdersArchive SELECT * FROM DL;
+	GET DIAGNOSTICS moved = ROW_COUNT;
+	PERFORM set_config('cafe.archiving', 'off', true);
+	RETURN moved;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Drops the monthly partitions that ended before cutoff and that
+-- archiveOrders() has emptied, so the live tables only span the months
+-- that still have orders in use.
+CREATE OR REPLACE FUNCTION dropArchivedPartitions(cutoff timestamp) RETURNS integer AS $$
+DECLARE
+	part record;
+	items text;
+	busy boolean;
+	dropped integer := 0;
+BEGIN
+	FOR part IN
+			SELECT C.relname FROM pg_inherits H JOIN pg_class C ON C.oid = H.inhrelid
+			WHERE H.inhparent = 'orders'::regclass AND C.relname ~ '^orders_y[0-9]{4}m[0-9]{2}$'
+			ORDER BY C.relname LOOP
+		EXIT WHEN CAST(to_date(substr(part.relname, 9, 4) || substr(part.relname, 14, 2), 'YYYYMM') AS timestamp)
+			+ interval '1 month' > cutoff;
+		items := 'itemstatus_' || substr(part.relname, 8);
+		EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I) OR EXISTS (SELECT 1 FROM %I)', part.relname, items) INTO busy;
+		IF NOT busy THEN
+			EXECUTE format('ALTER TABLE ItemStatus DETACH PARTITION %I', items);
+			EXECUTE format('DROP TABLE %I', items);
+			EXECUTE format('ALTER TABLE Orders DETACH PARTITION %I', part.relname);
+			EXECUTE format('DROP TABLE %I', part.relname);
+			dropped := dropped + 1;
+		END IF;
+	END LOOP;
+	RETURN dropped;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT createOrderPartitions(CAST(now() AS timestamp), CAST(now() + interval '1 month' AS timestamp));
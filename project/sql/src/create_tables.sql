@@ -1,38 +1,150 @@
 DROP TABLE IF EXISTS Users CASCADE;
+DROP TABLE IF EXISTS ItemStatus CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS Menu CASCADE;
-DROP TABLE IF EXISTS ItemStatus;
+DROP TABLE IF EXISTS ItemStatusArchive CASCADE;
+DROP TABLE IF EXISTS OrdersArchive CASCADE;
+DROP TABLE IF EXISTS FavoriteItems;
+DROP TABLE IF EXISTS MenuVersion;
+DROP TABLE IF EXISTS SalesByHour;
+DROP TABLE IF EXISTS ItemSalesByDay;
+DROP TYPE IF EXISTS item_status;
+
+-- Progress of an ordered item
+CREATE TYPE item_status AS ENUM ('Hasn''t started', 'Started', 'Finished');
 
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(20) NOT NULL,	-- Changed from char(8)
+	login varchar(50) UNIQUE NOT NULL, 
+	phoneNum varchar(16) UNIQUE, 
+	password varchar(50) NOT NULL,
+	favItems varchar(400),	-- as loaded from users.csv, see FavoriteItems
+	type varchar(20) NOT NULL,	-- Changed from char(8)
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
-	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	itemName varchar(50) UNIQUE NOT NULL,
+	type varchar(20) NOT NULL,
+	price numeric(6,2) NOT NULL,
+	description varchar(400),
+	imageURL varchar(256),
 	PRIMARY KEY(itemName));
 
+-- Bumped on every change to Menu so cached copies know to re-sync
+CREATE TABLE MenuVersion(
+	version bigint NOT NULL);
+INSERT INTO MenuVersion VALUES (0);
+
+-- Orders and their items are partitioned by month on the time the order
+-- was received (see create_partitions.sql); orders older than the monthly
+-- partitions, such as the loaded history, are kept in the default ones.
+-- Keys must include the partition key, so an orderid is unique through
+-- its sequence rather than a constraint.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	orderid serial NOT NULL,
+	login varchar(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
-	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	total numeric(8,2) NOT NULL,
+	PRIMARY KEY(orderid,timeStampRecieved))
+PARTITION BY RANGE (timeStampRecieved);
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
 
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50), 
+	lastUpdated timestamp NOT NULL,
+	status item_status, 
+	comments varchar(130), 
+	timeStampRecieved timestamp NOT NULL,	-- the order's, to partition by
+	price numeric(6,2),	-- the Menu price charged when the item was ordered
+	PRIMARY KEY(orderid,itemName,timeStampRecieved),
+	FOREIGN KEY(orderid,timeStampRecieved) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+PARTITION BY RANGE (timeStampRecieved);
+CREATE TABLE ItemStatus_default PARTITION OF ItemStatus DEFAULT;
+
+-- Paid orders whose items were all finished, moved out of Orders and
+-- ItemStatus by archiveOrders() once older than the retention window.
+-- Written once and never updated, so pages are packed full.
+CREATE TABLE OrdersArchive(
+	orderid integer NOT NULL,
+	login varchar(50),
+	paid boolean,
+	timeStampRecieved timestamp NOT NULL,
+	total numeric(8,2) NOT NULL,
+	PRIMARY KEY(orderid))
+WITH (fillfactor = 100);
+
+CREATE TABLE ItemStatusArchive(
+	orderid integer NOT NULL,
+	itemName varchar(50) NOT NULL,
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
+	status item_status,
+	comments varchar(130),
+	price numeric(6,2),
 	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+	FOREIGN KEY(orderid) REFERENCES OrdersArchive(orderid))
+WITH (fillfactor = 100);
+
+-- Every order and item, live or archived, for order histories
+CREATE VIEW AllOrders AS
+	SELECT orderid, login, paid, timeStampRecieved, total FROM Orders
+	UNION ALL
+	SELECT orderid, login, paid, timeStampRecieved, total FROM OrdersArchive;
+
+CREATE VIEW AllItemStatus AS
+	SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatus
+	UNION ALL
+	SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatusArchive;
+
+-- Orders and revenue per hour the orders were received, all of them and
+-- the paid ones. Kept up to date by the triggers in create_triggers.sql;
+-- days are summed from their hours. Each hour is split over shards by
+-- orderid, see rollupShard(), so concurrent orders do not queue on one
+-- row lock; readers sum the shards.
+CREATE TABLE SalesByHour(
+	hour timestamp NOT NULL,
+	shard smallint NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	paidOrders integer NOT NULL,
+	paidRevenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(hour,shard));
+
+-- Units of each menu item ordered per day the orders were received. Kept
+-- up to date by the triggers in create_triggers.sql, sharded like
+-- SalesByHour.
+CREATE TABLE ItemSalesByDay(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	shard smallint NOT NULL,
+	units integer NOT NULL,
+	PRIMARY KEY(day,itemName,shard));
+
+-- A user's favorite menu items, in the user's order. Replaces the
+-- comma-separated Users.favItems, which importFavItems() moves here.
+CREATE TABLE FavoriteItems(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	position integer NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+-- Moves the comma-separated Users.favItems lists into FavoriteItems,
+-- matching names to Menu ignoring case and blanks and dropping names that
+-- are not on the menu, then clears them. Run after loading Users and Menu.
+CREATE OR REPLACE FUNCTION importFavItems() RETURNS bigint AS $$
+	WITH F AS (
+		INSERT INTO FavoriteItems (login, itemName, position)
+		SELECT U.login, M.itemName, min(L.position)
+		FROM Users U
+		CROSS JOIN LATERAL regexp_split_to_table(U.favItems, ',') WITH ORDINALITY AS L(name, position)
+		JOIN Menu M ON lower(M.itemName) = lower(trim(L.name))
+		WHERE NOT EXISTS (SELECT 1 FROM FavoriteItems E WHERE E.login = U.login AND E.itemName = M.itemName)
+		GROUP BY U.login, M.itemName
+		RETURNING 1),
+	C AS (
+		UPDATE Users SET favItems = NULL WHERE favItems IS NOT NULL)
+	SELECT count(*) FROM F;
+$$ LANGUAGE sql;
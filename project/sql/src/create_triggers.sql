@@ -0,0 +1,148 @@
+-- Bumps the menu version after any change to Menu
+CREATE OR REPLACE FUNCTION bumpMenuVersion() RETURNS trigger AS $$
+BEGIN
+	UPDATE MenuVersion SET version = version + 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS menuVersionTrigger ON Menu;
+CREATE TRIGGER menuVersionTrigger
+AFTER INSERT OR UPDATE OR DELETE ON Menu
+FOR EACH STATEMENT EXECUTE PROCEDURE bumpMenuVersion();
+
+-- Publishes the orderid of every change to an order or its items on the
+-- cafe_items channel, for the kitchen feed. Notifications with the same
+-- payload in one transaction are delivered once. Archived orders are
+-- finished, so archiveOrders() moving them is not published.
+CREATE OR REPLACE FUNCTION notifyItemChange() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('cafe.archiving', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('cafe_items', OLD.orderid::text);
+	ELSE
+		PERFORM pg_notify('cafe_items', NEW.orderid::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS itemStatusNotifyTrigger ON ItemStatus;
+CREATE TRIGGER itemStatusNotifyTrigger
+AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+FOR EACH ROW EXECUTE PROCEDURE notifyItemChange();
+
+DROP TRIGGER IF EXISTS ordersNotifyTrigger ON Orders;
+CREATE TRIGGER ordersNotifyTrigger
+AFTER UPDATE OR DELETE ON Orders
+FOR EACH ROW EXECUTE PROCEDURE notifyItemChange();
+
+-- The rollup row an order's sales are added to within its hour or day.
+-- Orders written at the same time mostly land on different rows, so they
+-- do not wait for each other's row locks until commit.
+CREATE OR REPLACE FUNCTION rollupShard(orderid integer) RETURNS smallint AS $$
+	SELECT CAST(orderid % 16 AS smallint);
+$$ LANGUAGE sql IMMUTABLE;
+
+-- Adds the changes of one statement on Orders to SalesByHour: rows it
+-- deleted or replaced count negatively, rows it inserted or replaced
+-- positively. Runs once per statement over the transition tables, so a
+-- batch of orders costs one upsert per hour and shard it touches, and
+-- updates that leave every hour unchanged write nothing. Orders moved to
+-- the archive by archiveOrders() still count.
+CREATE OR REPLACE FUNCTION rollUpOrders() RETURNS trigger AS $$
+DECLARE
+	delta text;
+BEGIN
+	IF current_setting('cafe.archiving', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	delta := CASE TG_OP
+		WHEN 'INSERT' THEN 'SELECT 1 AS sign, * FROM new_rows'
+		WHEN 'DELETE' THEN 'SELECT -1 AS sign, * FROM old_rows'
+		ELSE 'SELECT -1 AS sign, * FROM old_rows UNION ALL SELECT 1, * FROM new_rows' END;
+	EXECUTE 'INSERT INTO SalesByHour (hour, shard, orders, revenue, paidOrders, paidRevenue) '
+		|| 'SELECT date_trunc(''hour'', D.timeStampRecieved), rollupShard(D.orderid), sum(D.sign), sum(D.sign * D.total), '
+		|| 'coalesce(sum(D.sign) FILTER (WHERE D.paid), 0), coalesce(sum(D.sign * D.total) FILTER (WHERE D.paid), 0) '
+		|| 'FROM (' || delta || ') D GROUP BY 1, 2 '
+		|| 'HAVING sum(D.sign) <> 0 OR sum(D.sign * D.total) <> 0 OR coalesce(sum(D.sign) FILTER (WHERE D.paid), 0) <> 0 '
+		|| 'ON CONFLICT (hour, shard) DO UPDATE SET orders = SalesByHour.orders + EXCLUDED.orders, '
+		|| 'revenue = SalesByHour.revenue + EXCLUDED.revenue, '
+		|| 'paidOrders = SalesByHour.paidOrders + EXCLUDED.paidOrders, '
+		|| 'paidRevenue = SalesByHour.paidRevenue + EXCLUDED.paidRevenue';
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Adds the changes of one statement on ItemStatus to ItemSalesByDay, in
+-- the same way. Items count on the day their order was received; status
+-- and comment updates leave the units unchanged and write nothing.
+CREATE OR REPLACE FUNCTION rollUpItems() RETURNS trigger AS $$
+DECLARE
+	delta text;
+BEGIN
+	IF current_setting('cafe.archiving', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	delta := CASE TG_OP
+		WHEN 'INSERT' THEN 'SELECT 1 AS sign, * FROM new_rows'
+		WHEN 'DELETE' THEN 'SELECT -1 AS sign, * FROM old_rows'
+		ELSE 'SELECT -1 AS sign, * FROM old_rows UNION ALL SELECT 1, * FROM new_rows' END;
+	EXECUTE 'INSERT INTO ItemSalesByDay (day, itemName, shard, units) '
+		|| 'SELECT CAST(D.timeStampRecieved AS date), D.itemName, rollupShard(D.orderid), sum(D.sign) '
+		|| 'FROM (' || delta || ') D GROUP BY 1, 2, 3 '
+		|| 'HAVING sum(D.sign) <> 0 '
+		|| 'ON CONFLICT (day, itemName, shard) DO UPDATE SET units = ItemSalesByDay.units + EXCLUDED.units';
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS ordersInsertRollupTrigger ON Orders;
+CREATE TRIGGER ordersInsertRollupTrigger
+AFTER INSERT ON Orders REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE rollUpOrders();
+
+DROP TRIGGER IF EXISTS ordersUpdateRollupTrigger ON Orders;
+CREATE TRIGGER ordersUpdateRollupTrigger
+AFTER UPDATE ON Orders REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE rollUpOrders();
+
+DROP TRIGGER IF EXISTS ordersDeleteRollupTrigger ON Orders;
+CREATE TRIGGER ordersDeleteRollupTrigger
+AFTER DELETE ON Orders REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE rollUpOrders();
+
+DROP TRIGGER IF EXISTS itemStatusInsertRollupTrigger ON ItemStatus;
+CREATE TRIGGER itemStatusInsertRollupTrigger
+AFTER INSERT ON ItemStatus REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE rollUpItems();
+
+DROP TRIGGER IF EXISTS itemStatusUpdateRollupTrigger ON ItemStatus;
+CREATE TRIGGER itemStatusUpdateRollupTrigger
+AFTER UPDATE ON ItemStatus REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE rollUpItems();
+
+DROP TRIGGER IF EXISTS itemStatusDeleteRollupTrigger ON ItemStatus;
+CREATE TRIGGER itemStatusDeleteRollupTrigger
+AFTER DELETE ON ItemStatus REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE PROCEDURE rollUpItems();
+
+-- Recomputes both rollups from the live and archived orders and items,
+-- e.g. after adding them to an existing database. Writes wait until it
+-- commits.
+CREATE OR REPLACE FUNCTION rebuildSalesRollups() RETURNS void AS $$
+BEGIN
+	LOCK TABLE Orders, ItemStatus, OrdersArchive, ItemStatusArchive IN SHARE MODE;
+	DELETE FROM SalesByHour;
+	DELETE FROM ItemSalesByDay;
+	INSERT INTO SalesByHour (hour, shard, orders, revenue, paidOrders, paidRevenue)
+	SELECT date_trunc('hour', timeStampRecieved), rollupShard(orderid), count(*), sum(total),
+		count(*) FILTER (WHERE paid), coalesce(sum(total) FILTER (WHERE paid), 0)
+	FROM AllOrders GROUP BY 1, 2;
+	INSERT INTO ItemSalesByDay (day, itemName, shard, units)
+	SELECT CAST(O.timeStampRecieved AS date), I.itemName, rollupShard(O.orderid), count(*)
+	FROM AllItemStatus I JOIN AllOrders O ON O.orderid = I.orderid GROUP BY 1, 2, 3;
+END;
+$$ LANGUAGE plpgsql;
@@ -1,3 +1,6 @@
+-- Server-side load from fixed paths. To load from any local path over the
+-- client connection, use java/scripts/load_data.sh instead.
+
 COPY MENU
 -- FROM 'menu.csv'
 FROM '/extra/bdenz001/needed_files/project/data/menu.csv'
@@ -14,7 +17,18 @@ FROM '/extra/bdenz001/needed_files/project/data/orders.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE orders_orderid_seq RESTART 87257;
 
-COPY ITEMSTATUS
+-- itemStatus.csv has no order time, which ItemStatus is partitioned by
+CREATE TEMP TABLE ItemStatusLoad AS
+SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatus WITH NO DATA;
+
+COPY ItemStatusLoad
 -- FROM 'itemStatus.csv'
 FROM '/extra/bdenz001/needed_files/project/data/itemStatus.csv'
-WITH DELIMITER ';';
\ No newline at end of file
+WITH DELIMITER ';';
+
+INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved, price)
+SELECT L.*, O.timeStampRecieved, M.price FROM ItemStatusLoad L JOIN Orders O ON O.orderid = L.orderid
+LEFT JOIN Menu M ON M.itemName = L.itemName;
+
+-- Moves the favItems lists into FavoriteItems
+SELECT importFavItems();
@@ -0,0 +1,60 @@
+-- Converts a database created with the original blank-padded char(n) and
+-- real columns to the types now used by create_tables.sql:
+--   char(n)       -> varchar(n), trailing padding removed
+--   real          -> numeric, rounded to cents
+--   status        -> the item_status enum
+-- Runs in one transaction and can be run again on a converted database.
+
+BEGIN;
+
+-- The item status enum holds the statuses the application writes plus any
+-- other status already stored, so no existing row is rejected.
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_type WHERE typname = 'item_status') THEN
+		EXECUTE 'CREATE TYPE item_status AS ENUM (' || (
+			SELECT string_agg(quote_literal(S.label), ', ' ORDER BY S.rank, S.label)
+			FROM (SELECT label, min(rank) AS rank
+			      FROM (SELECT * FROM (VALUES ('Hasn''t started', 1), ('Started', 2), ('Finished', 3)) AS K (label, rank)
+			            UNION ALL
+			            SELECT DISTINCT rtrim(status), 4 FROM ItemStatus WHERE rtrim(status) <> '') AS L
+			      GROUP BY label) AS S) || ')';
+	END IF;
+END $$;
+
+-- ItemStatus references Menu by name; the key types change on both sides
+ALTER TABLE ItemStatus DROP CONSTRAINT IF EXISTS itemstatus_itemname_fkey;
+
+ALTER TABLE Users
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum),
+	ALTER COLUMN password TYPE varchar(50) USING rtrim(password),
+	ALTER COLUMN favItems TYPE varchar(400) USING rtrim(favItems),
+	ALTER COLUMN type TYPE varchar(20) USING rtrim(type);
+
+ALTER TABLE Menu
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN type TYPE varchar(20) USING rtrim(type),
+	ALTER COLUMN price TYPE numeric(6,2) USING round(price::numeric, 2),
+	ALTER COLUMN description TYPE varchar(400) USING rtrim(description),
+	ALTER COLUMN imageURL TYPE varchar(256) USING rtrim(imageURL);
+
+ALTER TABLE Orders
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN total TYPE numeric(8,2) USING round(total::numeric, 2);
+
+ALTER TABLE ItemStatus
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN status TYPE item_status USING NULLIF(rtrim(status::text), '')::item_status,
+	ALTER COLUMN comments TYPE varchar(130) USING rtrim(comments);
+
+ALTER TABLE ItemStatus ADD CONSTRAINT itemstatus_itemname_fkey
+	FOREIGN KEY (itemName) REFERENCES Menu (itemName);
+
+COMMIT;
+
+-- Reclaim the space freed by the padding and refresh planner statistics
+VACUUM FULL ANALYZE Users;
+VACUUM FULL ANALYZE Menu;
+VACUUM FULL ANALYZE Orders;
+VACUUM FULL ANALYZE ItemStatus;
@@ -0,0 +1,32 @@
+-- Moves the comma-separated Users.favItems lists of an existing database
+-- into the FavoriteItems table. Safe to run more than once.
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS FavoriteItems(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	position integer NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+CREATE INDEX IF NOT EXISTS favoriteItemNameIndex ON FavoriteItems (itemName);
+
+CREATE OR REPLACE FUNCTION importFavItems() RETURNS bigint AS $$
+	WITH F AS (
+		INSERT INTO FavoriteItems (login, itemName, position)
+		SELECT U.login, M.itemName, min(L.position)
+		FROM Users U
+		CROSS JOIN LATERAL regexp_split_to_table(U.favItems, ',') WITH ORDINALITY AS L(name, position)
+		JOIN Menu M ON lower(M.itemName) = lower(trim(L.name))
+		WHERE NOT EXISTS (SELECT 1 FROM FavoriteItems E WHERE E.login = U.login AND E.itemName = M.itemName)
+		GROUP BY U.login, M.itemName
+		RETURNING 1),
+	C AS (
+		UPDATE Users SET favItems = NULL WHERE favItems IS NOT NULL)
+	SELECT count(*) FROM F;
+$$ LANGUAGE sql;
+
+SELECT importFavItems();
+
+COMMIT;
@@ -0,0 +1,12 @@
+-- Adds the charged price to the ItemStatus and ItemStatusArchive rows of
+-- an existing database, filled in from today's Menu prices. Run after
+-- migrate_partitions.sql. Safe to run more than once.
+BEGIN;
+
+ALTER TABLE ItemStatus ADD COLUMN IF NOT EXISTS price numeric(6,2);
+ALTER TABLE ItemStatusArchive ADD COLUMN IF NOT EXISTS price numeric(6,2);
+
+UPDATE ItemStatus I SET price = M.price FROM Menu M WHERE I.price IS NULL AND M.itemName = I.itemName;
+UPDATE ItemStatusArchive I SET price = M.price FROM Menu M WHERE I.price IS NULL AND M.itemName = I.itemName;
+
+COMMIT;
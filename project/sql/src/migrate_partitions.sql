@@ -0,0 +1,91 @@
+-- Converts the Orders and ItemStatus tables of an existing database into
+-- the monthly partitioned tables of create_tables.sql and adds the archive
+-- tables. Partitions are created for the last three months; older orders
+-- go to the default partitions until archived. Run with psql -f, as
+-- migrate_db.sh does, which then re-creates the triggers. Does nothing on
+-- a database that is already partitioned.
+
+SELECT relkind = 'p' AS partitioned FROM pg_class WHERE oid = 'orders'::regclass \gset
+\if :partitioned
+\echo Orders is already partitioned
+\else
+BEGIN;
+
+CREATE TEMP TABLE OrdersCopy AS SELECT * FROM Orders;
+CREATE TEMP TABLE ItemStatusCopy AS
+SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, O.timeStampRecieved
+FROM ItemStatus I JOIN Orders O ON O.orderid = I.orderid;
+
+-- keep the orderid sequence, it moves to the new Orders table
+ALTER SEQUENCE orders_orderid_seq OWNED BY NONE;
+DROP TABLE ItemStatus;
+DROP TABLE Orders;
+
+CREATE TABLE Orders(
+	orderid integer NOT NULL DEFAULT nextval('orders_orderid_seq'),
+	login varchar(50),
+	paid boolean,
+	timeStampRecieved timestamp NOT NULL,
+	total numeric(8,2) NOT NULL,
+	PRIMARY KEY(orderid,timeStampRecieved))
+PARTITION BY RANGE (timeStampRecieved);
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
+ALTER SEQUENCE orders_orderid_seq OWNED BY Orders.orderid;
+
+CREATE TABLE ItemStatus(
+	orderid integer,
+	itemName varchar(50),
+	lastUpdated timestamp NOT NULL,
+	status item_status,
+	comments varchar(130),
+	timeStampRecieved timestamp NOT NULL,	-- the order's, to partition by
+	PRIMARY KEY(orderid,itemName,timeStampRecieved),
+	FOREIGN KEY(orderid,timeStampRecieved) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+PARTITION BY RANGE (timeStampRecieved);
+CREATE TABLE ItemStatus_default PARTITION OF ItemStatus DEFAULT;
+
+CREATE TABLE IF NOT EXISTS OrdersArchive(
+	orderid integer NOT NULL,
+	login varchar(50),
+	paid boolean,
+	timeStampRecieved timestamp NOT NULL,
+	total numeric(8,2) NOT NULL,
+	PRIMARY KEY(orderid))
+WITH (fillfactor = 100);
+
+CREATE TABLE IF NOT EXISTS ItemStatusArchive(
+	orderid integer NOT NULL,
+	itemName varchar(50) NOT NULL,
+	lastUpdated timestamp NOT NULL,
+	status item_status,
+	comments varchar(130),
+	PRIMARY KEY(orderid,itemName),
+	FOREIGN KEY(orderid) REFERENCES OrdersArchive(orderid))
+WITH (fillfactor = 100);
+
+CREATE OR REPLACE VIEW AllOrders AS
+	SELECT orderid, login, paid, timeStampRecieved, total FROM Orders
+	UNION ALL
+	SELECT orderid, login, paid, timeStampRecieved, total FROM OrdersArchive;
+
+CREATE OR REPLACE VIEW AllItemStatus AS
+	SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatus
+	UNION ALL
+	SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatusArchive;
+
+\ir create_partitions.sql
+SELECT createOrderPartitions(CAST(now() - interval '3 months' AS timestamp), CAST(now() AS timestamp));
+
+INSERT INTO Orders SELECT orderid, login, paid, timeStampRecieved, total FROM OrdersCopy;
+INSERT INTO ItemStatus SELECT * FROM ItemStatusCopy;
+
+CREATE INDEX timeStampIndex ON Orders (timeStampRecieved, orderid);
+CREATE INDEX loginTimeStampIndex ON Orders (login, timeStampRecieved DESC, orderid DESC);
+CREATE INDEX orderIDIndex ON ItemStatus (orderid);
+CREATE INDEX IF NOT EXISTS archiveLoginTimeStampIndex ON OrdersArchive (login, timeStampRecieved DESC, orderid DESC);
+
+COMMIT;
+ANALYZE Orders;
+ANALYZE ItemStatus;
+\endif
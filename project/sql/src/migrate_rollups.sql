@@ -0,0 +1,30 @@
+-- Adds the sales rollup tables to an existing database, or splits the
+-- rows of unsharded ones over the shard column. migrate_db.sh then
+-- installs their triggers from create_triggers.sql and refills them with
+-- rebuildSalesRollups(). Safe to run more than once.
+CREATE TABLE IF NOT EXISTS SalesByHour(
+	hour timestamp NOT NULL,
+	shard smallint NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	paidOrders integer NOT NULL,
+	paidRevenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(hour,shard));
+
+CREATE TABLE IF NOT EXISTS ItemSalesByDay(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	shard smallint NOT NULL,
+	units integer NOT NULL,
+	PRIMARY KEY(day,itemName,shard));
+
+BEGIN;
+ALTER TABLE SalesByHour ADD COLUMN IF NOT EXISTS shard smallint NOT NULL DEFAULT 0;
+ALTER TABLE SalesByHour ALTER COLUMN shard DROP DEFAULT;
+ALTER TABLE SalesByHour DROP CONSTRAINT IF EXISTS salesbyhour_pkey;
+ALTER TABLE SalesByHour ADD PRIMARY KEY (hour, shard);
+ALTER TABLE ItemSalesByDay ADD COLUMN IF NOT EXISTS shard smallint NOT NULL DEFAULT 0;
+ALTER TABLE ItemSalesByDay ALTER COLUMN shard DROP DEFAULT;
+ALTER TABLE ItemSalesByDay DROP CONSTRAINT IF EXISTS itemsalesbyday_pkey;
+ALTER TABLE ItemSalesByDay ADD PRIMARY KEY (day, itemName, shard);
+COMMIT;